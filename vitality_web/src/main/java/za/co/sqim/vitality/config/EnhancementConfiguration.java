@@ -0,0 +1,28 @@
+package za.co.sqim.vitality.config;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.EnableLoadTimeWeaving;
+
+/**
+ * Lets Hibernate enhance the entity classes as they are loaded, when
+ * vitality.jpa.enhance=true. Enhanced entities load their lazy basic
+ * attributes (the descriptions) only when read and track their own dirty
+ * fields instead of being compared field by field at flush, see
+ * EnhancementBenchmarkTest for the difference.
+ * 
+ * Off by default. The module has no build step that could enhance the
+ * classes ahead of time, so enhancing needs Spring's agent: start the JVM
+ * with -javaagent:spring-instrument.jar and set vitality.jpa.enhance=true,
+ * startup fails if only the property is set. Without enhancement the
+ * descriptions are loaded with their entities and every managed entity is
+ * compared at flush.
+ * 
+ * @author Avuyile Malotana
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "vitality.jpa", name = "enhance")
+@EnableLoadTimeWeaving
+public class EnhancementConfiguration
+{
+}
\ No newline at end of file
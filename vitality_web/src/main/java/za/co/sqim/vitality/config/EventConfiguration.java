@@ -0,0 +1,35 @@
+package za.co.sqim.vitality.config;
+
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import za.co.sqim.vitality.event.InProcessModelChangeTransport;
+import za.co.sqim.vitality.event.LocalBrokerModelChangeTransport;
+import za.co.sqim.vitality.event.ModelChangeTransport;
+
+/**
+ * Selects the ModelChangeTransport with vitality.events.transport:
+ * "in-process" (default, single node) or "local-broker" (several contexts in
+ * one JVM, for tests).
+ * 
+ * @author Avuyile Malotana
+ */
+@Configuration
+public class EventConfiguration
+{
+  @Bean
+  public ModelChangeTransport modelChangeTransport(
+      @Value("${vitality.events.transport:in-process}") String transport,
+      @Value("${vitality.events.topic:vitality}") String topic) {
+    switch (transport) {
+    case "in-process":
+      return new InProcessModelChangeTransport();
+    case "local-broker":
+      return new LocalBrokerModelChangeTransport(topic);
+    default:
+      throw new IllegalArgumentException(
+          "Unknown vitality.events.transport " + transport);
+    }
+  }
+}
\ No newline at end of file
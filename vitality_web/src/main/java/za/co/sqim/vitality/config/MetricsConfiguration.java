@@ -0,0 +1,30 @@
+package za.co.sqim.vitality.config;
+
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+/**
+ * The registry the application's meters are kept in. Statement counting is
+ * set up in application.properties, entity loads and collection fetches are
+ * counted by RequestStatisticsIntegrator, which Hibernate finds on its own.
+ * 
+ * @author Avuyile Malotana
+ */
+@Configuration
+public class MetricsConfiguration
+{
+  /**
+   * Added to the global registry, which the model meters are created in
+   * because entities are not Spring beans. Without a registry the global one
+   * drops every measurement.
+   */
+  @Bean(destroyMethod = "close")
+  public SimpleMeterRegistry meterRegistry() {
+    SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    Metrics.addRegistry(registry);
+    return registry;
+  }
+}
\ No newline at end of file
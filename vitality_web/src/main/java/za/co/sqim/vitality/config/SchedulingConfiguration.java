@@ -0,0 +1,15 @@
+package za.co.sqim.vitality.config;
+
+import org.springframework.context.annotation.Configuration;
+import org.springframework.scheduling.annotation.EnableScheduling;
+
+/**
+ * Enables the @Scheduled maintenance jobs.
+ * 
+ * @author Avuyile Malotana
+ */
+@Configuration
+@EnableScheduling
+public class SchedulingConfiguration
+{
+}
\ No newline at end of file
@@ -0,0 +1,58 @@
+package za.co.sqim.vitality.config;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.sql.DataSource;
+
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.jdbc.DataSourceBuilder;
+import org.springframework.boot.context.properties.EnableConfigurationProperties;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Configuration;
+import org.springframework.context.annotation.Primary;
+
+import za.co.sqim.vitality.event.ModelChangePublisher;
+import za.co.sqim.vitality.shard.LevelRoutingDataSource;
+import za.co.sqim.vitality.shard.ShardDirectory;
+import za.co.sqim.vitality.shard.ShardProperties;
+
+/**
+ * Replaces the single datasource with one datasource per shard behind a
+ * LevelRoutingDataSource, when vitality.shards.enabled is set.
+ * 
+ * @author Avuyile Malotana
+ */
+@Configuration
+@ConditionalOnProperty(prefix = "vitality.shards", name = "enabled")
+@EnableConfigurationProperties(ShardProperties.class)
+public class ShardingConfiguration
+{
+  @Bean
+  @Primary
+  public LevelRoutingDataSource dataSource(ShardProperties properties) {
+    Map<String, DataSource> shards = new HashMap<>();
+    for (Map.Entry<String, ShardProperties.Shard> entry : properties
+        .getDatasources().entrySet()) {
+      ShardProperties.Shard shard = entry.getValue();
+      DataSourceBuilder builder = DataSourceBuilder.create()
+          .url(shard.getUrl())
+          .username(shard.getUsername())
+          .password(shard.getPassword());
+      // derived from the url when not given
+      if (shard.getDriverClassName() != null) {
+        builder.driverClassName(shard.getDriverClassName());
+      }
+      shards.put(entry.getKey(), builder.build());
+    }
+    return new LevelRoutingDataSource(properties.getDefaultShard(), shards);
+  }
+  
+  @Bean
+  public ShardDirectory shardDirectory(LevelRoutingDataSource dataSource,
+      ModelChangePublisher changePublisher) {
+    ShardDirectory directory = new ShardDirectory(dataSource);
+    changePublisher.subscribe(directory);
+    return directory;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,61 @@
+package za.co.sqim.vitality.event;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Delivers events to the subscribers of this node only, for single node
+ * deployments. Events are dispatched in order on one background thread.
+ * 
+ * @author Avuyile Malotana
+ */
+public class InProcessModelChangeTransport implements ModelChangeTransport
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(InProcessModelChangeTransport.class);
+  
+  private final List<Consumer<ModelChangeEvent>> consumers =
+      new CopyOnWriteArrayList<>();
+  
+  private final ExecutorService dispatcher = Executors
+      .newSingleThreadExecutor(r -> {
+        Thread thread = new Thread(r, "model-change-dispatcher");
+        thread.setDaemon(true);
+        return thread;
+      });
+  
+  @Override
+  public void publish(ModelChangeEvent event) {
+    dispatcher.execute(() -> deliver(consumers, event));
+  }
+  
+  @Override
+  public void subscribe(Consumer<ModelChangeEvent> consumer) {
+    consumers.add(consumer);
+  }
+  
+  @PreDestroy
+  public void shutdown() {
+    dispatcher.shutdown();
+  }
+  
+  static void deliver(List<Consumer<ModelChangeEvent>> consumers,
+      ModelChangeEvent event) {
+    for (Consumer<ModelChangeEvent> consumer : consumers) {
+      try {
+        consumer.accept(event);
+      }
+      catch (RuntimeException e) {
+        logger.error("Failed to handle {}", event, e);
+      }
+    }
+  }
+}
\ No newline at end of file
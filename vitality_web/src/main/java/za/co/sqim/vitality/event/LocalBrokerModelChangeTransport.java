@@ -0,0 +1,74 @@
+package za.co.sqim.vitality.event;
+
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.function.Consumer;
+
+import javax.annotation.PreDestroy;
+
+/**
+ * Stand-in for a message broker: every instance in the JVM that uses the same
+ * topic acts as a node, an event published by one is queued for all of them.
+ * Lets several application contexts in one test exchange events the way
+ * separate nodes would.
+ * 
+ * @author Avuyile Malotana
+ */
+public class LocalBrokerModelChangeTransport implements ModelChangeTransport
+{
+  private static final Map<String, List<LocalBrokerModelChangeTransport>> topics =
+      new ConcurrentHashMap<>();
+  
+  private final String topic;
+  
+  private final BlockingQueue<ModelChangeEvent> queue =
+      new LinkedBlockingQueue<>();
+  
+  private final List<Consumer<ModelChangeEvent>> consumers =
+      new CopyOnWriteArrayList<>();
+  
+  private final Thread dispatcher;
+  
+  public LocalBrokerModelChangeTransport(String topic) {
+    this.topic = topic;
+    this.dispatcher = new Thread(this::dispatch,
+        "model-change-broker-" + topic);
+    this.dispatcher.setDaemon(true);
+    this.dispatcher.start();
+    topics.computeIfAbsent(topic, k -> new CopyOnWriteArrayList<>())
+        .add(this);
+  }
+  
+  @Override
+  public void publish(ModelChangeEvent event) {
+    for (LocalBrokerModelChangeTransport node : topics.get(topic)) {
+      node.queue.offer(event);
+    }
+  }
+  
+  @Override
+  public void subscribe(Consumer<ModelChangeEvent> consumer) {
+    consumers.add(consumer);
+  }
+  
+  @PreDestroy
+  public void shutdown() {
+    topics.get(topic).remove(this);
+    dispatcher.interrupt();
+  }
+  
+  private void dispatch() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        InProcessModelChangeTransport.deliver(consumers, queue.take());
+      }
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,55 @@
+package za.co.sqim.vitality.event;
+
+import java.io.Serializable;
+
+import lombok.Value;
+
+/**
+ * Something changed that other nodes may have cached.
+ * 
+ * Events only identify what changed, subscribers reload what they need, so
+ * events can be delivered late, twice or out of order without corrupting a
+ * cache.
+ * 
+ * @author Avuyile Malotana
+ */
+@Value
+public class ModelChangeEvent implements Serializable
+{
+  private static final long serialVersionUID = 3170528113926482675L;
+  
+  public enum Type {
+    GROUP, GROUP_MEMBER, MILESTONE, POINTS, LEVEL_SHARD, ACTIVITY,
+    
+    /** A user's points reached a milestone, the id is the milestone's. */
+    MILESTONE_ACHIEVED
+  }
+  
+  public enum Action {
+    SAVED, REMOVED
+  }
+  
+  private final Type type;
+  
+  private final Action action;
+  
+  /**
+   * Id of the changed entity, for POINTS the receiving user, for GROUP_MEMBER
+   * the group.
+   */
+  private final Long id;
+  
+  /** Level of the changed entity, may be null. */
+  private final Long levelId;
+  
+  /**
+   * The receiving user for ACTIVITY and MILESTONE_ACHIEVED, the member for
+   * GROUP_MEMBER, else null.
+   */
+  private final Long userId;
+  
+  /** Node that published the event. */
+  private final String origin;
+  
+  private final long timestamp;
+}
\ No newline at end of file
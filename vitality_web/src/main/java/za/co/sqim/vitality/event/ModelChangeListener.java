@@ -0,0 +1,71 @@
+package za.co.sqim.vitality.event;
+
+import za.co.sqim.vitality.event.ModelChangeEvent.Action;
+import za.co.sqim.vitality.event.ModelChangeEvent.Type;
+import za.co.sqim.vitality.model.Activity;
+import za.co.sqim.vitality.model.EntityChangeListener;
+import za.co.sqim.vitality.model.Group;
+import za.co.sqim.vitality.model.GroupMember;
+import za.co.sqim.vitality.model.Level;
+import za.co.sqim.vitality.model.Milestone;
+
+/**
+ * Publishes a ModelChangeEvent for every saved or removed Activity, Group,
+ * GroupMember and Milestone, as reported by the EntityChangeListener of those
+ * entities (through GroupMemberChangeIntegrator for GroupMembers).
+ * 
+ * @author Avuyile Malotana
+ */
+class ModelChangeListener implements EntityChangeListener.Observer
+{
+  private final ModelChangePublisher publisher;
+  
+  ModelChangeListener(ModelChangePublisher publisher) {
+    this.publisher = publisher;
+  }
+  
+  @Override
+  public void persisted(Object entity) {
+    changed(entity, Action.SAVED);
+  }
+  
+  @Override
+  public void updated(Object entity) {
+    changed(entity, Action.SAVED);
+  }
+  
+  @Override
+  public void removed(Object entity) {
+    changed(entity, Action.REMOVED);
+  }
+  
+  private void changed(Object entity, Action action) {
+    if (entity instanceof Group) {
+      Group group = (Group) entity;
+      publisher.publish(Type.GROUP, action, group.getId(),
+          levelId(group.getLevel()));
+    }
+    else if (entity instanceof GroupMember) {
+      GroupMember member = (GroupMember) entity;
+      Group group = member.getGroup();
+      publisher.publish(Type.GROUP_MEMBER, action,
+          group == null ? null : group.getId(),
+          group == null ? null : levelId(group.getLevel()),
+          member.getUser() == null ? null : member.getUser().getId());
+    }
+    else if (entity instanceof Milestone) {
+      Milestone milestone = (Milestone) entity;
+      publisher.publish(Type.MILESTONE, action, milestone.getId(),
+          levelId(milestone.getLevel()));
+    }
+    else if (entity instanceof Activity) {
+      Activity activity = (Activity) entity;
+      publisher.publish(Type.ACTIVITY, action, activity.getId(),
+          activity.getLevelId(), activity.getReceivingUserId());
+    }
+  }
+  
+  private static Long levelId(Level level) {
+    return level == null ? null : level.getId();
+  }
+}
\ No newline at end of file
@@ -0,0 +1,84 @@
+package za.co.sqim.vitality.event;
+
+import java.util.UUID;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+
+import za.co.sqim.vitality.event.ModelChangeEvent.Action;
+import za.co.sqim.vitality.event.ModelChangeEvent.Type;
+import za.co.sqim.vitality.model.EntityChangeListener;
+
+/**
+ * Publishes ModelChangeEvents once the current transaction has committed,
+ * and hands the events of all nodes to the ModelChangeSubscribers that
+ * subscribed on this node.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+public class ModelChangePublisher
+{
+  /** Identifies this node in the events it publishes. */
+  private final String nodeId = UUID.randomUUID().toString();
+  
+  @Autowired
+  private ModelChangeTransport transport;
+  
+  private final ModelChangeListener listener = new ModelChangeListener(this);
+  
+  @PostConstruct
+  public void register() {
+    EntityChangeListener.register(listener);
+  }
+  
+  @PreDestroy
+  public void unregister() {
+    EntityChangeListener.unregister(listener);
+  }
+  
+  /**
+   * Receive the events of all nodes from now on.
+   */
+  public void subscribe(ModelChangeSubscriber subscriber) {
+    transport.subscribe(subscriber::onChange);
+  }
+  
+  public String getNodeId() {
+    return nodeId;
+  }
+  
+  /**
+   * Publish after commit, or immediately without a transaction. Changes in a
+   * transaction that rolls back are never published.
+   */
+  public void publish(Type type, Action action, Long id, Long levelId) {
+    publish(type, action, id, levelId, null);
+  }
+  
+  /**
+   * Same as {@link #publish(Type, Action, Long, Long)} for a change that
+   * concerns a single user.
+   */
+  public void publish(Type type, Action action, Long id, Long levelId,
+      Long userId) {
+    ModelChangeEvent event = new ModelChangeEvent(type, action, id, levelId,
+        userId, nodeId, System.currentTimeMillis());
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      transport.publish(event);
+      return;
+    }
+    TransactionSynchronizationManager
+        .registerSynchronization(new TransactionSynchronizationAdapter() {
+          @Override
+          public void afterCommit() {
+            transport.publish(event);
+          }
+        });
+  }
+}
\ No newline at end of file
@@ -0,0 +1,14 @@
+package za.co.sqim.vitality.event;
+
+/**
+ * Receives every ModelChangeEvent, from this node and all others, on a
+ * dispatcher thread. Subscribers register themselves with
+ * ModelChangePublisher.subscribe when they start, so the publisher doesn't
+ * depend on the services that react to its events.
+ * 
+ * @author Avuyile Malotana
+ */
+public interface ModelChangeSubscriber
+{
+  void onChange(ModelChangeEvent event);
+}
\ No newline at end of file
@@ -0,0 +1,21 @@
+package za.co.sqim.vitality.event;
+
+import java.util.function.Consumer;
+
+/**
+ * Carries ModelChangeEvents between nodes.
+ * 
+ * @author Avuyile Malotana
+ */
+public interface ModelChangeTransport
+{
+  /**
+   * Send the event to every node, this one included. Must not block.
+   */
+  void publish(ModelChangeEvent event);
+  
+  /**
+   * Receive the events of every node.
+   */
+  void subscribe(Consumer<ModelChangeEvent> consumer);
+}
\ No newline at end of file
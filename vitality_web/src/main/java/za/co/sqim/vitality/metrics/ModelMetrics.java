@@ -0,0 +1,32 @@
+package za.co.sqim.vitality.metrics;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Meters for the hot paths of the model. Entities are not Spring beans, so
+ * the meters live in the global registry which forwards to every registry
+ * added to it, MetricsConfiguration adds the application's registry.
+ * 
+ * @author Avuyile Malotana
+ */
+public final class ModelMetrics
+{
+  /** Groups visited while walking the hierarchy. */
+  public static final Counter GROUP_VISITS = Metrics
+      .counter("vitality.group.traversal.visits");
+  
+  /** Group members compared in membership checks. */
+  public static final Counter MEMBER_COMPARISONS = Metrics
+      .counter("vitality.group.membership.comparisons");
+  
+  public static final Timer POINTS_ASSIGNMENT = Metrics
+      .timer("vitality.points.assignment");
+  
+  public static final Timer POINTS_EXPIRY = Metrics
+      .timer("vitality.points.expiry");
+  
+  private ModelMetrics() {
+  }
+}
\ No newline at end of file
@@ -0,0 +1,62 @@
+package za.co.sqim.vitality.metrics;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import javax.servlet.FilterChain;
+import javax.servlet.ServletException;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Metrics;
+import io.micrometer.core.instrument.Timer;
+
+/**
+ * Times every request and records the statements, entity loads and
+ * collection fetches it caused.
+ * 
+ * @author Avuyile Malotana
+ */
+@Component
+public class RequestMetricsFilter extends OncePerRequestFilter
+{
+  private final Timer requests = Metrics.timer("vitality.requests");
+  
+  private final DistributionSummary statements = Metrics
+      .summary("vitality.requests.statements");
+  
+  private final DistributionSummary entityLoads = Metrics
+      .summary("vitality.requests.entity.loads");
+  
+  private final DistributionSummary collectionFetches = Metrics
+      .summary("vitality.requests.collection.fetches");
+  
+  @Autowired
+  private SlowRequestLog slowRequestLog;
+  
+  @Override
+  protected void doFilterInternal(HttpServletRequest request,
+      HttpServletResponse response, FilterChain chain)
+      throws ServletException, IOException {
+    RequestStatistics statistics = RequestStatistics.start();
+    long start = System.nanoTime();
+    try {
+      chain.doFilter(request, response);
+    }
+    finally {
+      long nanos = System.nanoTime() - start;
+      RequestStatistics.stop();
+      requests.record(nanos, TimeUnit.NANOSECONDS);
+      statements.record(statistics.getStatements());
+      entityLoads.record(statistics.getEntityLoads());
+      collectionFetches.record(statistics.getCollectionFetches());
+      slowRequestLog.record(request.getMethod(), request.getRequestURI(),
+          TimeUnit.NANOSECONDS.toMillis(nanos), statistics);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,60 @@
+package za.co.sqim.vitality.metrics;
+
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * What the persistence layer did for the request on the current thread.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+@ToString
+public class RequestStatistics
+{
+  private static final ThreadLocal<RequestStatistics> current =
+      new ThreadLocal<>();
+  
+  private int statements;
+  
+  private int entityLoads;
+  
+  private int collectionFetches;
+  
+  /**
+   * Start counting for the current thread.
+   */
+  public static RequestStatistics start() {
+    RequestStatistics statistics = new RequestStatistics();
+    current.set(statistics);
+    return statistics;
+  }
+  
+  /**
+   * Stop counting for the current thread.
+   */
+  public static void stop() {
+    current.remove();
+  }
+  
+  static void statement() {
+    RequestStatistics statistics = current.get();
+    if (statistics != null) {
+      statistics.statements++;
+    }
+  }
+  
+  static void entityLoad() {
+    RequestStatistics statistics = current.get();
+    if (statistics != null) {
+      statistics.entityLoads++;
+    }
+  }
+  
+  static void collectionFetch() {
+    RequestStatistics statistics = current.get();
+    if (statistics != null) {
+      statistics.collectionFetches++;
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,37 @@
+package za.co.sqim.vitality.metrics;
+
+import org.hibernate.boot.Metadata;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.InitializeCollectionEventListener;
+import org.hibernate.event.spi.PostLoadEventListener;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+/**
+ * Counts entity loads and lazy collection fetches per request, registered
+ * through META-INF/services.
+ * 
+ * @author Avuyile Malotana
+ */
+public class RequestStatisticsIntegrator implements Integrator
+{
+  @Override
+  public void integrate(Metadata metadata,
+      SessionFactoryImplementor sessionFactory,
+      SessionFactoryServiceRegistry serviceRegistry) {
+    EventListenerRegistry registry = serviceRegistry
+        .getService(EventListenerRegistry.class);
+    registry.appendListeners(EventType.POST_LOAD,
+        (PostLoadEventListener) event -> RequestStatistics.entityLoad());
+    registry.appendListeners(EventType.INIT_COLLECTION,
+        (InitializeCollectionEventListener) event -> RequestStatistics
+            .collectionFetch());
+  }
+  
+  @Override
+  public void disintegrate(SessionFactoryImplementor sessionFactory,
+      SessionFactoryServiceRegistry serviceRegistry) {
+  }
+}
\ No newline at end of file
@@ -0,0 +1,86 @@
+package za.co.sqim.vitality.metrics;
+
+import java.time.LocalDateTime;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import lombok.Data;
+
+/**
+ * Logs requests that were slow or ran too many statements and keeps the most
+ * recent of them for the metrics endpoint.
+ * 
+ * @author Avuyile Malotana
+ */
+@Component
+public class SlowRequestLog
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(SlowRequestLog.class);
+  
+  @Value("${vitality.metrics.slow-request-millis:1000}")
+  private long slowMillis = 1000;
+  
+  @Value("${vitality.metrics.slow-request-statements:100}")
+  private int slowStatements = 100;
+  
+  @Value("${vitality.metrics.slow-request-history:200}")
+  private int history = 200;
+  
+  private final Deque<Entry> entries = new ArrayDeque<>();
+  
+  /**
+   * Record the request if it crossed one of the thresholds.
+   */
+  public void record(String method, String uri, long millis,
+      RequestStatistics statistics) {
+    if (millis < slowMillis && statistics.getStatements() < slowStatements) {
+      return;
+    }
+    logger.warn("Slow request {} {} took {}ms: {}", method, uri, millis,
+        statistics);
+    Entry entry = new Entry(LocalDateTime.now(), method, uri, millis,
+        statistics.getStatements(), statistics.getEntityLoads(),
+        statistics.getCollectionFetches());
+    synchronized (entries) {
+      entries.addFirst(entry);
+      while (entries.size() > history) {
+        entries.removeLast();
+      }
+    }
+  }
+  
+  /**
+   * The recorded requests, newest first.
+   */
+  public List<Entry> getEntries() {
+    synchronized (entries) {
+      return new ArrayList<>(entries);
+    }
+  }
+  
+  @Data
+  public static class Entry
+  {
+    private final LocalDateTime date;
+    
+    private final String method;
+    
+    private final String uri;
+    
+    private final long millis;
+    
+    private final int statements;
+    
+    private final int entityLoads;
+    
+    private final int collectionFetches;
+  }
+}
\ No newline at end of file
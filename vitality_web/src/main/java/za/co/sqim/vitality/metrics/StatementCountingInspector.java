@@ -0,0 +1,20 @@
+package za.co.sqim.vitality.metrics;
+
+import org.hibernate.resource.jdbc.spi.StatementInspector;
+
+/**
+ * Counts the SQL statements Hibernate prepares, registered as
+ * hibernate.session_factory.statement_inspector in application.properties.
+ * 
+ * @author Avuyile Malotana
+ */
+public class StatementCountingInspector implements StatementInspector
+{
+  private static final long serialVersionUID = -2349117620574021193L;
+  
+  @Override
+  public String inspect(String sql) {
+    RequestStatistics.statement();
+    return sql;
+  }
+}
\ No newline at end of file
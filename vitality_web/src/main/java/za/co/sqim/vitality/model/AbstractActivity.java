@@ -0,0 +1,353 @@
+package za.co.sqim.vitality.model;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+
+import javax.persistence.Basic;
+import javax.persistence.Column;
+import javax.persistence.FetchType;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.MappedSuperclass;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.PostUpdate;
+import javax.persistence.PrePersist;
+import javax.persistence.PreUpdate;
+import javax.persistence.Transient;
+import javax.persistence.Version;
+import javax.validation.constraints.NotNull;
+
+import org.hibernate.validator.constraints.Length;
+import org.hibernate.validator.constraints.NotEmpty;
+import org.springframework.data.annotation.CreatedDate;
+import org.springframework.format.annotation.DateTimeFormat;
+
+import za.co.sqim.vitality.model.Activity.ExpiryPeriod;
+import za.co.sqim.vitality.model.Activity.Status;
+import za.co.sqim.vitality.model.Activity.StatusSnapshot;
+import lombok.AccessLevel;
+import lombok.Data;
+import lombok.EqualsAndHashCode;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * The columns and behaviour of an activity, shared by the Activity entity and
+ * its archived copy ArchivedActivity so both tables always have the same
+ * columns.
+ * 
+ * @author Avuyile Malotana
+ */
+@Data
+@EqualsAndHashCode(callSuper = false,
+    exclude = { "description", "statusSnapshot" })
+@ToString(callSuper = false, exclude = { "receivingUser", "consentingUser",
+    "activityMaster", "description", "statusSnapshot" })
+@MappedSuperclass
+public abstract class AbstractActivity extends BaseEntity
+{
+  /**
+   * Rules:
+   * (1) receivingUser must belong to this level or a sub group of this level
+   * (2) never null
+   * (3) if activityMaster != null then level = activityMaster.level
+   */
+  @ManyToOne
+  @JoinColumn(name = "LEVEL_ID", nullable = false)
+  @NotNull
+  private Level level;
+  
+  /**
+   * Rules:
+   * (1) receivingUser must belong to this group
+   * (2) never null (new field hence @NotNull is missing)
+   * (3) if activityMaster != null then group = activityMaster.group
+   * (4) updatable = false
+   */
+  @ManyToOne
+  @JoinColumn(name = "GROUP_ID") // , nullable = false, updatable = false)
+  // @NotNull
+  private Group group;
+  
+  @ManyToOne
+  @JoinColumn(name = "RECEIVING_USER", nullable = false, updatable = false)
+  @NotNull
+  protected User receivingUser = null;
+  
+  @ManyToOne
+  @JoinColumn(name = "CONSENTING_USER", nullable = false, updatable = false)
+  @NotNull
+  protected User consentingUser = null;
+  
+  /**
+   * Rules:
+   * (1) can be null
+   */
+  @ManyToOne
+  @JoinColumn(name = "ACTIVITY_MASTER", updatable = false)
+  protected ActivityMaster activityMaster;
+  
+  /**
+   * Identifies the fan-out run that created this activity from its
+   * activityMaster, used to make retries of the same run idempotent.
+   * 
+   * Rules:
+   * (1) can be null
+   * (2) unique per receivingUser
+   */
+  @Column(name = "FAN_OUT_KEY", updatable = false)
+  private String fanOutKey;
+  
+  @Column(name = "NAME")
+  @NotEmpty
+  private String name;
+  
+  // TODO change length of description in databases
+  /**
+   * Lazy when the entities are enhanced, see EnhancementConfiguration. Left
+   * out of equals, hashCode and toString so they don't load it.
+   */
+  @Column(name = "DESCRIPTION")
+  @Basic(fetch = FetchType.LAZY)
+  @NotEmpty
+  @Length(max = 255)
+  private String description;
+  
+  @Column(name = "POINTS")
+  private int points = 1;
+  
+  @Column(name = "POINTS_EXPIRE_IN_DAYS")
+  private long pointsExpireInDays = ExpiryPeriod.SIX_MONTHS.getDays();
+  
+  @Column(name = "COMPLETED")
+  private boolean completed = false;
+  
+  @Column(name = "COMPLETED_DATE")
+  private LocalDateTime completedDate = null;
+  
+  @Column(name = "POINTS_ASSIGNED")
+  private boolean pointsAssigned = false;
+  
+  @Column(name = "POINTS_ASSIGNED_DATE")
+  private LocalDateTime pointsAssignedDate = null;
+  
+  /**
+   * Set once the expired points have been subtracted from the receiving
+   * user's UserPointsTotal.
+   */
+  @Column(name = "POINTS_EXPIRED")
+  private Boolean pointsExpired = null;
+  
+  /**
+   * Stored copy of getPointsExpiryDate() so the expiry sweep can select the
+   * expired points in the database, kept in step on every save.
+   */
+  @Column(name = "POINTS_EXPIRY_DATE")
+  @Setter(AccessLevel.NONE)
+  private LocalDateTime pointsExpiryDate = null;
+  
+  /**
+   * Optimistic lock, concurrent updates (e.g. two consenting users assigning
+   * the points at the same time) fail instead of overwriting each other.
+   */
+  @Version
+  @Column(name = "VERSION", nullable = false,
+      columnDefinition = "bigint default 0")
+  private long version = 0;
+  
+  @Deprecated
+  @CreatedDate
+  @Column(name = "CREATION_DATE")
+  private LocalDateTime creationDate = LocalDateTime.now();
+  
+  @DateTimeFormat(pattern = "yyyy/MM/dd HH:mm")
+  // @NotNull
+  @Column(name = "ACTIVE_FROM")
+  private LocalDateTime activeFrom = null;
+  
+  // can be null, if not null then this must be greater than or equal to start
+  @DateTimeFormat(pattern = "yyyy/MM/dd HH:mm")
+  // @NotNull
+  @Column(name = "ACTIVE_TO")
+  private LocalDateTime activeTo = null;
+  
+  // utility functions
+  
+  public void setGroupAndLevel(Group group) {
+    if (group == null) {
+      this.group = null;
+      this.level = null;
+    }
+    else {
+      this.group = group;
+      this.level = group.getLevel();
+    }
+  }
+  
+  /// Transient properties
+  
+  @Transient
+  private long pointsTotal;
+  
+  /**
+   * Used in the getStatus() and isActive() calculations.
+   */
+  @Transient
+  private LocalDateTime statusDateTime = LocalDateTime.now();
+  
+  /**
+   * The status relevant state as last read or written, used to maintain the
+   * status counts.
+   */
+  @Transient
+  private StatusSnapshot statusSnapshot;
+  
+  // Custom Getters and Setters
+  
+  public void setCompleted(boolean completed) {
+    this.completed = completed;
+    if (completed && this.completedDate == null) {
+      completedDate = LocalDateTime.now();
+    }
+  }
+  
+  /**
+   * Custom getter for pointsExpired variable.
+   */
+  public boolean isPointsExpired() {
+    return this.pointsExpired == null ? false : this.pointsExpired;
+  }
+  
+  /**
+   * Mark the points as assigned.
+   * 
+   * @return false if the points were already assigned.
+   */
+  public boolean assignPoints() {
+    if (pointsAssigned) {
+      return false;
+    }
+    pointsAssigned = true;
+    pointsAssignedDate = LocalDateTime.now();
+    return true;
+  }
+  
+  /// other
+  
+  public Status getStatus() {
+    if (statusDateTime == null) {
+      statusDateTime = LocalDateTime.now();
+    }
+    return Status.of(completed, pointsAssigned, activeFrom, activeTo,
+        statusDateTime);
+  }
+  
+  public boolean isActive() {
+    boolean ret = true;
+    if (activeFrom != null) {
+      ret &= activeFrom.isBefore(statusDateTime);
+    }
+    if (activeTo != null) {
+      ret &= activeTo.isAfter(statusDateTime);
+    }
+    return ret;
+  }
+  
+  public Duration getExpiryDuration() {
+    return Duration.between(statusDateTime,
+        activeTo == null ? LocalDateTime.MAX : activeTo);
+  }
+  
+  public ExpiryPeriod getExpiryPeriod() {
+    for (ExpiryPeriod period : ExpiryPeriod.values()) {
+      if (period.getDays() == this.pointsExpireInDays) {
+        return period;
+      }
+    }
+    return ExpiryPeriod.CUSTOM;
+  }
+  
+  public Long getLevelId() {
+    return this.level == null ? null : this.level.getId();
+  }
+  
+  public Long getReceivingUserId() {
+    return this.receivingUser == null ? null : this.receivingUser.getId();
+  }
+  
+  public Long getConsentingUserId() {
+    return this.consentingUser == null ? null : this.consentingUser.getId();
+  }
+  
+  /**
+   * The moment the assigned points stop counting towards the receiving user's
+   * total, null if points are not assigned yet or never expire.
+   */
+  public LocalDateTime getPointsExpiryDate() {
+    if (!pointsAssigned || pointsAssignedDate == null || pointsExpireInDays <= 0) {
+      return null;
+    }
+    return pointsAssignedDate.plusDays(pointsExpireInDays);
+  }
+  
+  /**
+   * Capture the current status relevant state.
+   */
+  public StatusSnapshot createStatusSnapshot() {
+    Long levelId = getLevelId();
+    Long groupId = group == null ? levelId : group.getId();
+    return new StatusSnapshot(levelId, groupId, completed, pointsAssigned,
+        activeFrom, activeTo);
+  }
+  
+  /**
+   * Keep the status snapshot in step with the database. Entity listeners are
+   * called before this and still see the previous snapshot.
+   */
+  @PostLoad
+  @PostPersist
+  @PostUpdate
+  void updateStatusSnapshot() {
+    statusSnapshot = createStatusSnapshot();
+  }
+  
+  @PrePersist
+  @PreUpdate
+  void updatePointsExpiryDate() {
+    pointsExpiryDate = getPointsExpiryDate();
+  }
+  
+  /**
+   * Get the LocalDateTime to use with the first (the positive) LevelUpdate when
+   * assigning points.
+   * 
+   * @return
+   */
+  public LocalDateTime getLevelUpdateEntryTimestamp() {
+    LocalDateTime entryTimestamp = LocalDateTime.now();
+    if (activeFrom != null && entryTimestamp.isAfter(activeFrom)) {
+      entryTimestamp = activeFrom;
+    }
+    if (activeTo != null && entryTimestamp.isAfter(activeTo)) {
+      entryTimestamp = activeTo;
+    }
+    if (getCreatedDate() != null && entryTimestamp.isAfter(getCreatedDate())) {
+      entryTimestamp = getCreatedDate();
+    }
+    return entryTimestamp;
+  }
+  
+  /**
+   * Make sure the end date is always after start (swaps them if need be).
+   */
+  public void swapStartAndEndIfNeedBe() {
+    if (activeFrom == null || activeTo == null)
+      return;
+    if (activeFrom.isAfter(activeTo)) {
+      LocalDateTime t = this.activeFrom;
+      this.activeFrom = this.activeTo;
+      this.activeTo = t;
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,248 @@
+package za.co.sqim.vitality.model;
+
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.Arrays;
+import java.util.stream.IntStream;
+
+/**
+ * Column oriented, read only snapshot of the Activity facts needed for
+ * reporting: one primitive array per column, one index per activity.
+ * 
+ * Aggregations split the rows into chunks that are summed in parallel into
+ * per chunk arrays, no objects are created per row.
+ * 
+ * @author Avuyile Malotana
+ */
+public class ActivityFacts
+{
+  /** Day value used when there is no date. */
+  public static final int NO_DAY = Integer.MIN_VALUE;
+  
+  /** Use -1 to aggregate over all levels. */
+  public static final long ALL_LEVELS = -1;
+  
+  private static final int CHUNK_SIZE = 64 * 1024;
+  
+  private static final Activity.Status[] STATUSES = Activity.Status.values();
+  
+  private final int size;
+  
+  private final long[] ids;
+  
+  private final long[] levelIds;
+  
+  /** Index into groupIds, so group-by needs no hashing. */
+  private final int[] groupIndexes;
+  
+  private final long[] groupIds;
+  
+  private final long[] receivingUserIds;
+  
+  private final int[] points;
+  
+  /** Epoch day of pointsAssignedDate, NO_DAY if not assigned. */
+  private final int[] assignedDays;
+  
+  private final byte[] statuses;
+  
+  private final LocalDateTime createdAt;
+  
+  private ActivityFacts(Builder builder) {
+    this.size = builder.size;
+    this.ids = Arrays.copyOf(builder.ids, size);
+    this.levelIds = Arrays.copyOf(builder.levelIds, size);
+    this.receivingUserIds = Arrays.copyOf(builder.receivingUserIds, size);
+    this.points = Arrays.copyOf(builder.points, size);
+    this.assignedDays = Arrays.copyOf(builder.assignedDays, size);
+    this.statuses = Arrays.copyOf(builder.statuses, size);
+    this.createdAt = builder.createdAt;
+    
+    long[] distinct = Arrays.copyOf(builder.groupIds, size);
+    Arrays.sort(distinct);
+    int count = 0;
+    for (int i = 0; i < size; i++) {
+      if (count == 0 || distinct[count - 1] != distinct[i]) {
+        distinct[count++] = distinct[i];
+      }
+    }
+    this.groupIds = Arrays.copyOf(distinct, count);
+    this.groupIndexes = new int[size];
+    for (int i = 0; i < size; i++) {
+      groupIndexes[i] = Arrays.binarySearch(groupIds, builder.groupIds[i]);
+    }
+  }
+  
+  public static Builder builder(LocalDateTime createdAt) {
+    return new Builder(createdAt);
+  }
+  
+  public int size() {
+    return size;
+  }
+  
+  /**
+   * Moment the statuses were calculated.
+   */
+  public LocalDateTime getCreatedAt() {
+    return createdAt;
+  }
+  
+  /**
+   * The distinct group ids, in the order used by sumPointsByGroup().
+   */
+  public long[] getGroupIds() {
+    return groupIds.clone();
+  }
+  
+  public long getId(int row) {
+    return ids[row];
+  }
+  
+  public long getReceivingUserId(int row) {
+    return receivingUserIds[row];
+  }
+  
+  /**
+   * Points assigned per day, index 0 is fromDay.
+   */
+  public long[] sumPointsByDay(long levelId, LocalDate from, LocalDate to) {
+    int fromDay = (int) from.toEpochDay();
+    int days = (int) (to.toEpochDay() - fromDay) + 1;
+    if (days <= 0) {
+      return new long[0];
+    }
+    return IntStream.range(0, chunks()).parallel().mapToObj(chunk -> {
+      long[] sums = new long[days];
+      for (int i = start(chunk), end = end(chunk); i < end; i++) {
+        int day = assignedDays[i] - fromDay;
+        if (day >= 0 && day < days
+            && (levelId == ALL_LEVELS || levelIds[i] == levelId)) {
+          sums[day] += points[i];
+        }
+      }
+      return sums;
+    }).reduce(new long[days], ActivityFacts::add);
+  }
+  
+  /**
+   * Points assigned per group between the dates (inclusive), aligned with
+   * getGroupIds().
+   */
+  public long[] sumPointsByGroup(LocalDate from, LocalDate to) {
+    int fromDay = (int) from.toEpochDay();
+    int toDay = (int) to.toEpochDay();
+    int groups = groupIds.length;
+    return IntStream.range(0, chunks()).parallel().mapToObj(chunk -> {
+      long[] sums = new long[groups];
+      for (int i = start(chunk), end = end(chunk); i < end; i++) {
+        int day = assignedDays[i];
+        if (day != NO_DAY && day >= fromDay && day <= toDay) {
+          sums[groupIndexes[i]] += points[i];
+        }
+      }
+      return sums;
+    }).reduce(new long[groups], ActivityFacts::add);
+  }
+  
+  /**
+   * Number of activities per status, indexed by Activity.Status ordinal.
+   */
+  public long[] countByStatus(long levelId) {
+    int statusCount = STATUSES.length;
+    return IntStream.range(0, chunks()).parallel().mapToObj(chunk -> {
+      long[] counts = new long[statusCount];
+      for (int i = start(chunk), end = end(chunk); i < end; i++) {
+        if (levelId == ALL_LEVELS || levelIds[i] == levelId) {
+          counts[statuses[i]]++;
+        }
+      }
+      return counts;
+    }).reduce(new long[statusCount], ActivityFacts::add);
+  }
+  
+  private int chunks() {
+    return (size + CHUNK_SIZE - 1) / CHUNK_SIZE;
+  }
+  
+  private static int start(int chunk) {
+    return chunk * CHUNK_SIZE;
+  }
+  
+  private int end(int chunk) {
+    return Math.min(size, (chunk + 1) * CHUNK_SIZE);
+  }
+  
+  /**
+   * Combine two partial results into a new array, the identity passed to
+   * reduce() is shared between threads so it must never be written to.
+   */
+  private static long[] add(long[] a, long[] b) {
+    long[] sum = new long[a.length];
+    for (int i = 0; i < sum.length; i++) {
+      sum[i] = a[i] + b[i];
+    }
+    return sum;
+  }
+  
+  /**
+   * Appends rows into growing primitive arrays.
+   */
+  public static class Builder
+  {
+    private final LocalDateTime createdAt;
+    
+    private int size = 0;
+    
+    private long[] ids = new long[1024];
+    
+    private long[] levelIds = new long[1024];
+    
+    private long[] groupIds = new long[1024];
+    
+    private long[] receivingUserIds = new long[1024];
+    
+    private int[] points = new int[1024];
+    
+    private int[] assignedDays = new int[1024];
+    
+    private byte[] statuses = new byte[1024];
+    
+    private Builder(LocalDateTime createdAt) {
+      this.createdAt = createdAt;
+    }
+    
+    /**
+     * @param groupId
+     *          Use the level id for activities without a group.
+     */
+    public Builder add(long id, long levelId, long groupId,
+        long receivingUserId, int points, LocalDateTime pointsAssignedDate,
+        Activity.Status status) {
+      if (size == ids.length) {
+        int capacity = size * 2;
+        ids = Arrays.copyOf(ids, capacity);
+        levelIds = Arrays.copyOf(levelIds, capacity);
+        groupIds = Arrays.copyOf(groupIds, capacity);
+        receivingUserIds = Arrays.copyOf(receivingUserIds, capacity);
+        this.points = Arrays.copyOf(this.points, capacity);
+        assignedDays = Arrays.copyOf(assignedDays, capacity);
+        statuses = Arrays.copyOf(statuses, capacity);
+      }
+      ids[size] = id;
+      levelIds[size] = levelId;
+      groupIds[size] = groupId;
+      receivingUserIds[size] = receivingUserId;
+      this.points[size] = points;
+      assignedDays[size] = pointsAssignedDate == null ? NO_DAY
+          : (int) pointsAssignedDate.toLocalDate().toEpochDay();
+      statuses[size] = (byte) status.ordinal();
+      size++;
+      return this;
+    }
+    
+    public ActivityFacts build() {
+      return new ActivityFacts(this);
+    }
+  }
+}
\ No newline at end of file
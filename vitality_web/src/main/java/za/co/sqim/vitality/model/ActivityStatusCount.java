@@ -0,0 +1,72 @@
+package za.co.sqim.vitality.model;
+
+import static javax.persistence.GenerationType.IDENTITY;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.validation.constraints.NotNull;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * Number of activities in a status per group, maintained incrementally so
+ * dashboards don't have to load the activities.
+ * 
+ * Activities without a group are counted under their level.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+@Setter
+@EqualsAndHashCode(of = { "groupId", "status" })
+@ToString(of = { "levelId", "groupId", "status", "count" })
+@Entity
+@Table(name = "ACTIVITY_STATUS_COUNTS",
+    uniqueConstraints = @UniqueConstraint(columnNames = { "GROUP_ID",
+        "STATUS" }),
+    indexes = { @Index(columnList = "LEVEL_ID") })
+public class ActivityStatusCount
+{
+  @Id
+  @GeneratedValue(strategy = IDENTITY)
+  @Column(name = "ID", nullable = false, unique = true, updatable = false)
+  private Long id;
+  
+  @Column(name = "LEVEL_ID", nullable = false, updatable = false)
+  @NotNull
+  private Long levelId;
+  
+  @Column(name = "GROUP_ID", nullable = false, updatable = false)
+  @NotNull
+  private Long groupId;
+  
+  @Enumerated(EnumType.STRING)
+  @Column(name = "STATUS", nullable = false, updatable = false, length = 32)
+  @NotNull
+  private Activity.Status status;
+  
+  @Column(name = "ACTIVITY_COUNT", nullable = false)
+  private long count = 0;
+  
+  public ActivityStatusCount() {
+    super();
+  }
+  
+  public ActivityStatusCount(Long levelId, Long groupId,
+      Activity.Status status, long count) {
+    this.levelId = levelId;
+    this.groupId = groupId;
+    this.status = status;
+    this.count = count;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,41 @@
+package za.co.sqim.vitality.model;
+
+import java.time.LocalDateTime;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * The moment up to which the ActivityStatusCounts of a level include the
+ * status changes that happen by time passing (activeFrom and activeTo),
+ * shared by all nodes.
+ * 
+ * There is a row per level. Changes to the counts of a level lock its row
+ * shared, the sweep and rebuild lock it exclusively, so they never
+ * interleave.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+@Setter
+@ToString
+@Entity
+@Table(name = "ACTIVITY_STATUS_SWEEP")
+public class ActivityStatusSweep
+{
+  @Id
+  @Column(name = "LEVEL_ID", nullable = false, unique = true,
+      updatable = false)
+  private Long levelId;
+  
+  @Column(name = "SWEPT_UNTIL", nullable = false)
+  @NotNull
+  private LocalDateTime sweptUntil;
+}
\ No newline at end of file
@@ -0,0 +1,36 @@
+package za.co.sqim.vitality.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+import org.hibernate.annotations.Immutable;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * An activity moved out of ACTIVITY by the ActivityArchiveService, with the
+ * same id and columns. Rows are only ever inserted by the archive job.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+@Setter
+@EqualsAndHashCode(callSuper = true)
+@ToString(callSuper = true, of = { "id" })
+@Entity
+@Immutable
+@Table(name = "ACTIVITY_ARCHIVE", indexes = {
+    @Index(columnList = "RECEIVING_USER"), @Index(columnList = "LEVEL_ID"),
+    @Index(columnList = "GROUP_ID") })
+public class ArchivedActivity extends AbstractActivity
+{
+  @Id
+  @Column(name = "ID", nullable = false, unique = true, updatable = false)
+  private Long id;
+}
\ No newline at end of file
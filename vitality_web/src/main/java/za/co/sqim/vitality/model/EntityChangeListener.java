@@ -0,0 +1,68 @@
+package za.co.sqim.vitality.model;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import javax.persistence.PostPersist;
+import javax.persistence.PostRemove;
+import javax.persistence.PostUpdate;
+
+/**
+ * JPA entity listener that hands the changes of entities to the observers
+ * registered by the layers above, so the model doesn't depend on the services
+ * that react to it.
+ * 
+ * Entity listeners are created by the JPA provider and not by Spring, the
+ * observers register themselves on start up.
+ * 
+ * @author Avuyile Malotana
+ */
+public class EntityChangeListener
+{
+  /**
+   * Receives the changes while the persistence context is flushed, on the
+   * thread and in the transaction that made them.
+   */
+  public interface Observer
+  {
+    default void persisted(Object entity) {
+    }
+    
+    default void updated(Object entity) {
+    }
+    
+    default void removed(Object entity) {
+    }
+  }
+  
+  private static final List<Observer> observers = new CopyOnWriteArrayList<>();
+  
+  public static void register(Observer observer) {
+    observers.add(observer);
+  }
+  
+  public static void unregister(Observer observer) {
+    observers.remove(observer);
+  }
+  
+  @PostPersist
+  public void postPersist(Object entity) {
+    for (Observer observer : observers) {
+      observer.persisted(entity);
+    }
+  }
+  
+  @PostUpdate
+  public void postUpdate(Object entity) {
+    for (Observer observer : observers) {
+      observer.updated(entity);
+    }
+  }
+  
+  @PostRemove
+  public void postRemove(Object entity) {
+    for (Observer observer : observers) {
+      observer.removed(entity);
+    }
+  }
+}
\ No newline at end of file
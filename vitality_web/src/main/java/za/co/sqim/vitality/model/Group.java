@@ -7,11 +7,14 @@ import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
 import java.util.UUID;
+import java.util.concurrent.ThreadLocalRandom;
 
+import javax.persistence.Basic;
 import javax.persistence.CascadeType;
 import javax.persistence.Column;
 import javax.persistence.Entity;
 import javax.persistence.EntityListeners;
+import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
 import javax.persistence.Index;
@@ -21,6 +24,9 @@ import javax.persistence.JoinColumn;
 import javax.persistence.ManyToOne;
 import javax.persistence.OneToMany;
 import javax.persistence.OrderBy;
+import javax.persistence.PostLoad;
+import javax.persistence.PostPersist;
+import javax.persistence.PostUpdate;
 import javax.persistence.Table;
 import javax.persistence.Transient;
 import javax.validation.constraints.AssertTrue;
@@ -36,6 +42,8 @@ import org.springframework.data.annotation.LastModifiedBy;
 import org.springframework.data.annotation.LastModifiedDate;
 import org.springframework.data.jpa.domain.support.AuditingEntityListener;
 
+import za.co.sqim.vitality.metrics.ModelMetrics;
+import lombok.AccessLevel;
 import lombok.EqualsAndHashCode;
 import lombok.Getter;
 import lombok.Setter;
@@ -49,7 +57,8 @@ import lombok.ToString;
 @EqualsAndHashCode(of = { "code" })
 @ToString(of = { "id", "name", "code" })
 @Entity
-@EntityListeners({ AuditingEntityListener.class })
+@EntityListeners({ AuditingEntityListener.class,
+    EntityChangeListener.class })
 @Table(name = "GROUPS", indexes = { @Index(columnList = "code") })
 @Inheritance(strategy = InheritanceType.SINGLE_TABLE)
 public class Group
@@ -72,7 +81,7 @@ public class Group
   @Column(name = "CODE", unique = true, nullable = true)
   @Pattern(regexp = CODE_PATTERN)
   @NotEmpty
-  private String code = "ugid-" + UUID.randomUUID().toString();
+  private String code = newCode();
   
   @ManyToOne(cascade = {})
   @JoinColumn(name = "PARENT_ID", nullable = true)
@@ -82,7 +91,9 @@ public class Group
   @NotEmpty
   private String name = "";
   
+  /** Lazy when the entities are enhanced, see EnhancementConfiguration. */
   @Column(name = "DESCRIPTION", nullable = false, length = 2048)
+  @Basic(fetch = FetchType.LAZY)
   @NotNull
   private String description = "";
   
@@ -147,6 +158,19 @@ public class Group
   @Transient
   private boolean checked = false;
   
+  /**
+   * The parent as last read or written, so a move can be reported for the
+   * old parent too.
+   */
+  @Transient
+  @Setter(AccessLevel.NONE)
+  private Group loadedParent;
+  
+  /** The deleted flag as last read or written, so a restore can be seen. */
+  @Transient
+  @Setter(AccessLevel.NONE)
+  private boolean loadedDeleted;
+  
   /**
    * Custom setter for the parent group.
    * 
@@ -181,6 +205,22 @@ public class Group
     this.name = name;
   }
   
+  /**
+   * A new random default code, "ugid-" and a version 4 style UUID.
+   * 
+   * UUID.randomUUID() shares one SecureRandom between all threads, which
+   * becomes the bottleneck when groups are created in bulk. The code only has
+   * to be unique, not unpredictable, so ThreadLocalRandom is used instead,
+   * the unique constraint on the column still guards against a collision.
+   */
+  public static String newCode() {
+    ThreadLocalRandom random = ThreadLocalRandom.current();
+    long mostSigBits = (random.nextLong() & ~0xf000L) | 0x4000L;
+    long leastSigBits = (random.nextLong() & ~(0xc000L << 48))
+        | (0x8000L << 48);
+    return "ugid-" + new UUID(mostSigBits, leastSigBits);
+  }
+  
   /**
    * Custom getter for natural order.
    */
@@ -230,6 +270,7 @@ public class Group
       return false;
     }
     for (Group child : children) {
+      ModelMetrics.GROUP_VISITS.increment();
       if (child.equals(test)) {
         return true;
       }
@@ -248,6 +289,7 @@ public class Group
     if (count == 0) {
       return count;
     }
+    ModelMetrics.GROUP_VISITS.increment(count);
     for (Group c : this.getChildren()) {
       count += c.getDescendantCount();
     }
@@ -260,6 +302,7 @@ public class Group
   public List<Group> getDescendants() {
     List<Group> descendants = new ArrayList<>();
     descendants.addAll(children);
+    ModelMetrics.GROUP_VISITS.increment(children.size());
     for (Group child : children) {
       descendants.addAll(child.getDescendants());
     }
@@ -323,6 +366,7 @@ public class Group
       return false;
     }
     for (GroupMember member : members) {
+      ModelMetrics.MEMBER_COMPARISONS.increment();
       logger.debug("Comparing {} against {}", test, member.getUser());
       if (member.getUser().equals(test)) {
         logger.debug("Found member, returning true");
@@ -487,6 +531,18 @@ public class Group
     return this.getLongName(" / ");
   }
   
+  /**
+   * Keep the loaded parent and deleted flag in step with the database. Entity
+   * listeners are called before this and still see the previous values.
+   */
+  @PostLoad
+  @PostPersist
+  @PostUpdate
+  void updateLoaded() {
+    loadedParent = parent;
+    loadedDeleted = getDeleted();
+  }
+  
   /**
    * Find the top group or Level.
    */
@@ -511,22 +567,32 @@ public class Group
    * Try and be a bit more intelligent regarding modified or not.
    */
   public boolean isModified() {
+    return isModified(this.createdBy, this.createdDate, this.lastModifiedBy,
+        this.lastModifiedDate);
+  }
+  
+  /**
+   * The rules of isModified() for callers that only have the audit values,
+   * e.g. projections that select the user ids instead of the users.
+   */
+  public static boolean isModified(Object createdBy, LocalDateTime createdDate,
+      Object lastModifiedBy, LocalDateTime lastModifiedDate) {
     // data missing, not modified (audting was added later so we need to look
     // after null data)
-    if (this.lastModifiedBy == null || this.lastModifiedDate == null) {
+    if (lastModifiedBy == null || lastModifiedDate == null) {
       return false;
     }
     
     // if users are different, it is modified
-    if (!this.lastModifiedBy.equals(this.createdBy))
+    if (!lastModifiedBy.equals(createdBy))
       return true;
     
     // if no created date, treat as modified
-    if (this.createdDate == null)
+    if (createdDate == null)
       return true;
     
     // allow 15 minute for quick fixes
-    if (this.createdDate.isBefore(this.lastModifiedDate.minusMinutes(15)))
+    if (createdDate.isBefore(lastModifiedDate.minusMinutes(15)))
       return true;
     
     // default, not modified
@@ -0,0 +1,77 @@
+package za.co.sqim.vitality.model;
+
+import org.hibernate.boot.Metadata;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.event.service.spi.EventListenerRegistry;
+import org.hibernate.event.spi.EventType;
+import org.hibernate.event.spi.PostDeleteEvent;
+import org.hibernate.event.spi.PostDeleteEventListener;
+import org.hibernate.event.spi.PostInsertEvent;
+import org.hibernate.event.spi.PostInsertEventListener;
+import org.hibernate.event.spi.PostUpdateEvent;
+import org.hibernate.event.spi.PostUpdateEventListener;
+import org.hibernate.integrator.spi.Integrator;
+import org.hibernate.persister.entity.EntityPersister;
+import org.hibernate.service.spi.SessionFactoryServiceRegistry;
+
+/**
+ * Reports the changes of GroupMembers to the EntityChangeListener observers.
+ * GroupMember is mapped outside this module and can't name the listener, so
+ * its changes are taken from Hibernate's events, registered through
+ * META-INF/services.
+ * 
+ * @author Avuyile Malotana
+ */
+public class GroupMemberChangeIntegrator implements Integrator
+{
+  @Override
+  public void integrate(Metadata metadata,
+      SessionFactoryImplementor sessionFactory,
+      SessionFactoryServiceRegistry serviceRegistry) {
+    EventListenerRegistry registry = serviceRegistry
+        .getService(EventListenerRegistry.class);
+    Listener listener = new Listener();
+    registry.appendListeners(EventType.POST_INSERT, listener);
+    registry.appendListeners(EventType.POST_UPDATE, listener);
+    registry.appendListeners(EventType.POST_DELETE, listener);
+  }
+  
+  @Override
+  public void disintegrate(SessionFactoryImplementor sessionFactory,
+      SessionFactoryServiceRegistry serviceRegistry) {
+  }
+  
+  private static class Listener implements PostInsertEventListener,
+      PostUpdateEventListener, PostDeleteEventListener
+  {
+    private static final long serialVersionUID = 6204583419117350671L;
+    
+    private final EntityChangeListener listener = new EntityChangeListener();
+    
+    @Override
+    public void onPostInsert(PostInsertEvent event) {
+      if (event.getEntity() instanceof GroupMember) {
+        listener.postPersist(event.getEntity());
+      }
+    }
+    
+    @Override
+    public void onPostUpdate(PostUpdateEvent event) {
+      if (event.getEntity() instanceof GroupMember) {
+        listener.postUpdate(event.getEntity());
+      }
+    }
+    
+    @Override
+    public void onPostDelete(PostDeleteEvent event) {
+      if (event.getEntity() instanceof GroupMember) {
+        listener.postRemove(event.getEntity());
+      }
+    }
+    
+    @Override
+    public boolean requiresPostCommitHanding(EntityPersister persister) {
+      return false;
+    }
+  }
+}
\ No newline at end of file
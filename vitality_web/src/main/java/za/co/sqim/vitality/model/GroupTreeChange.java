@@ -0,0 +1,43 @@
+package za.co.sqim.vitality.model;
+
+import static javax.persistence.GenerationType.IDENTITY;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Index;
+import javax.persistence.Table;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * A group whose node in the tree of a Level changed at a version, see
+ * GroupTreeVersion.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+@Setter
+@ToString
+@Entity
+@Table(name = "GROUP_TREE_CHANGES",
+    indexes = { @Index(columnList = "LEVEL_ID, VERSION") })
+public class GroupTreeChange
+{
+  @Id
+  @GeneratedValue(strategy = IDENTITY)
+  @Column(name = "ID", nullable = false, unique = true, updatable = false)
+  private Long id;
+  
+  @Column(name = "LEVEL_ID", nullable = false, updatable = false)
+  private Long levelId;
+  
+  @Column(name = "GROUP_ID", nullable = false, updatable = false)
+  private Long groupId;
+  
+  @Column(name = "VERSION", nullable = false, updatable = false)
+  private long version;
+}
\ No newline at end of file
@@ -0,0 +1,35 @@
+package za.co.sqim.vitality.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * The version of the group tree of a Level, one up for every transaction that
+ * changes the tree. The changes of every version are in GroupTreeChange,
+ * those up to prunedVersion have been removed.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+@Setter
+@ToString
+@Entity
+@Table(name = "GROUP_TREE_VERSIONS")
+public class GroupTreeVersion
+{
+  @Id
+  @Column(name = "LEVEL_ID", nullable = false, unique = true, updatable = false)
+  private Long levelId;
+  
+  @Column(name = "VERSION", nullable = false)
+  private long version;
+  
+  @Column(name = "PRUNED_VERSION", nullable = false)
+  private long prunedVersion;
+}
\ No newline at end of file
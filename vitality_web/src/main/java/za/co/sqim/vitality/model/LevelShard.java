@@ -0,0 +1,43 @@
+package za.co.sqim.vitality.model;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.validation.constraints.NotNull;
+
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * The shard a Level lives on, Levels without a row live on the default
+ * shard. Only kept on the default shard, read and written by the
+ * ShardDirectory.
+ * 
+ * While the Level is moved movingFrom and movingTo are set, every node
+ * blocks writes to the Level until they are cleared.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+@Setter
+@ToString
+@Entity
+@Table(name = "LEVEL_SHARDS")
+public class LevelShard
+{
+  @Id
+  @Column(name = "LEVEL_ID", nullable = false, unique = true, updatable = false)
+  private Long levelId;
+  
+  @Column(name = "SHARD", nullable = false, length = 64)
+  @NotNull
+  private String shard;
+  
+  @Column(name = "MOVING_FROM", length = 64)
+  private String movingFrom;
+  
+  @Column(name = "MOVING_TO", length = 64)
+  private String movingTo;
+}
\ No newline at end of file
@@ -4,6 +4,7 @@ import static javax.persistence.GenerationType.IDENTITY;
 
 import javax.persistence.Column;
 import javax.persistence.Entity;
+import javax.persistence.EntityListeners;
 import javax.persistence.FetchType;
 import javax.persistence.GeneratedValue;
 import javax.persistence.Id;
@@ -30,6 +31,7 @@ import lombok.ToString;
 @Getter
 @Setter
 @Entity
+@EntityListeners({ EntityChangeListener.class })
 @Table(name = "LEVEL_MILESTONES")
 @EqualsAndHashCode(of = { "level", "points" })
 @ToString(of = { "name", "points" })
@@ -0,0 +1,197 @@
+package za.co.sqim.vitality.model;
+
+import java.time.Duration;
+import java.time.LocalDateTime;
+import java.time.ZoneOffset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Point-in-time index over a user's points ledger.
+ * 
+ * Every assignment adds a positive entry at the assignment date and, when the
+ * points expire, a negative entry at the expiry date. The entries are sorted
+ * and summed once, after that the total at any moment is a binary search and a
+ * whole time series is a single merge pass.
+ * 
+ * Instances are immutable and safe to share between threads.
+ * 
+ * @author Avuyile Malotana
+ */
+public class PointsHistory
+{
+  public static final PointsHistory EMPTY = new PointsHistory(new long[0],
+      new long[0]);
+  
+  /** Epoch seconds (UTC) of each change, ascending and unique. */
+  private final long[] timestamps;
+  
+  /** Running total after applying all changes up to and including index i. */
+  private final long[] totals;
+  
+  private PointsHistory(long[] timestamps, long[] totals) {
+    this.timestamps = timestamps;
+    this.totals = totals;
+  }
+  
+  /**
+   * Build the history from activities, activities without assigned points are
+   * ignored.
+   */
+  public static PointsHistory of(
+      Collection<? extends AbstractActivity> activities) {
+    Builder builder = new Builder();
+    for (AbstractActivity activity : activities) {
+      if (activity.isPointsAssigned()) {
+        builder.add(activity.getPointsAssignedDate(), activity.getPoints(),
+            activity.getPointsExpireInDays());
+      }
+    }
+    return builder.build();
+  }
+  
+  public static Builder builder() {
+    return new Builder();
+  }
+  
+  /**
+   * The points total at the given moment.
+   */
+  public long getPointsAt(LocalDateTime dateTime) {
+    int index = indexOf(toEpochSecond(dateTime));
+    return index < 0 ? 0 : totals[index];
+  }
+  
+  /**
+   * The points total at each of the given moments, in one pass.
+   * 
+   * @param dateTimes
+   *          Must be in ascending order.
+   * @throws IllegalArgumentException
+   *           When the moments are not in ascending order.
+   */
+  public long[] getPointsAt(List<LocalDateTime> dateTimes) {
+    long[] series = new long[dateTimes.size()];
+    int index = -1;
+    long previous = Long.MIN_VALUE;
+    for (int i = 0; i < series.length; i++) {
+      long second = toEpochSecond(dateTimes.get(i));
+      if (second < previous) {
+        throw new IllegalArgumentException(
+            "Moments must be in ascending order.");
+      }
+      previous = second;
+      while (index + 1 < timestamps.length && timestamps[index + 1] <= second) {
+        index++;
+      }
+      series[i] = index < 0 ? 0 : totals[index];
+    }
+    return series;
+  }
+  
+  /**
+   * The points total sampled every step from start to end (inclusive).
+   */
+  public long[] getPointsBetween(LocalDateTime start, LocalDateTime end,
+      Duration step) {
+    if (step.isZero() || step.isNegative()) {
+      throw new IllegalArgumentException("Step must be positive.");
+    }
+    List<LocalDateTime> dateTimes = new ArrayList<>();
+    for (LocalDateTime t = start; !t.isAfter(end); t = t.plus(step)) {
+      dateTimes.add(t);
+    }
+    return getPointsAt(dateTimes);
+  }
+  
+  /**
+   * Number of distinct moments at which the total changes.
+   */
+  public int size() {
+    return timestamps.length;
+  }
+  
+  /**
+   * Index of the last change at or before the given second, -1 if none.
+   */
+  private int indexOf(long second) {
+    int index = Arrays.binarySearch(timestamps, second);
+    return index >= 0 ? index : -index - 2;
+  }
+  
+  private static long toEpochSecond(LocalDateTime dateTime) {
+    return dateTime.toEpochSecond(ZoneOffset.UTC);
+  }
+  
+  /**
+   * Collects ledger entries and sorts them into a PointsHistory.
+   */
+  public static class Builder
+  {
+    private long[] seconds = new long[16];
+    
+    private long[] deltas = new long[16];
+    
+    private int size = 0;
+    
+    /**
+     * Add an assignment of points.
+     * 
+     * @param pointsExpireInDays
+     *          Zero or less means the points never expire.
+     */
+    public Builder add(LocalDateTime assignedDate, int points,
+        long pointsExpireInDays) {
+      if (assignedDate == null || points == 0) {
+        return this;
+      }
+      append(toEpochSecond(assignedDate), points);
+      if (pointsExpireInDays > 0) {
+        append(toEpochSecond(assignedDate.plusDays(pointsExpireInDays)),
+            -points);
+      }
+      return this;
+    }
+    
+    public PointsHistory build() {
+      if (size == 0) {
+        return EMPTY;
+      }
+      Integer[] order = new Integer[size];
+      for (int i = 0; i < size; i++) {
+        order[i] = i;
+      }
+      Arrays.sort(order, (a, b) -> Long.compare(seconds[a], seconds[b]));
+      
+      long[] timestamps = new long[size];
+      long[] totals = new long[size];
+      int count = 0;
+      long total = 0;
+      for (int i : order) {
+        total += deltas[i];
+        if (count > 0 && timestamps[count - 1] == seconds[i]) {
+          totals[count - 1] = total;
+        }
+        else {
+          timestamps[count] = seconds[i];
+          totals[count] = total;
+          count++;
+        }
+      }
+      return new PointsHistory(Arrays.copyOf(timestamps, count),
+          Arrays.copyOf(totals, count));
+    }
+    
+    private void append(long second, long delta) {
+      if (size == seconds.length) {
+        seconds = Arrays.copyOf(seconds, size * 2);
+        deltas = Arrays.copyOf(deltas, size * 2);
+      }
+      seconds[size] = second;
+      deltas[size] = delta;
+      size++;
+    }
+  }
+}
\ No newline at end of file
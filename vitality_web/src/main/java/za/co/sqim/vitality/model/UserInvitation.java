@@ -38,6 +38,11 @@ public class UserInvitation
   @NotNull
   private User sender;
   
+  /** The Level invited to, which also decides the shard of the invitation. */
+  @ManyToOne(fetch = FetchType.EAGER)
+  @JoinColumn(name = "LEVEL_ID")
+  private Level level;
+  
   @NotNull
   private String receiverName;
   
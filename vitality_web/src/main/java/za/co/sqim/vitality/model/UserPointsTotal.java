@@ -0,0 +1,65 @@
+package za.co.sqim.vitality.model;
+
+import static javax.persistence.GenerationType.IDENTITY;
+
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.Table;
+import javax.persistence.UniqueConstraint;
+import javax.persistence.Version;
+import javax.validation.constraints.NotNull;
+
+import lombok.EqualsAndHashCode;
+import lombok.Getter;
+import lombok.Setter;
+import lombok.ToString;
+
+/**
+ * The current (assigned and not expired) points of a user in a level.
+ * 
+ * Only change the points through UserPointsTotalRepository.increment(), the
+ * database does the addition so concurrent changes are never lost.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+@Setter
+@EqualsAndHashCode(of = { "userId", "levelId" })
+@ToString(of = { "userId", "levelId", "points" })
+@Entity
+@Table(name = "USER_POINTS_TOTALS",
+    uniqueConstraints = @UniqueConstraint(columnNames = { "USER_ID",
+        "LEVEL_ID" }))
+public class UserPointsTotal
+{
+  @Id
+  @GeneratedValue(strategy = IDENTITY)
+  @Column(name = "ID", nullable = false, unique = true, updatable = false)
+  private Long id;
+  
+  @Column(name = "USER_ID", nullable = false, updatable = false)
+  @NotNull
+  private Long userId;
+  
+  @Column(name = "LEVEL_ID", nullable = false, updatable = false)
+  @NotNull
+  private Long levelId;
+  
+  @Column(name = "POINTS", nullable = false)
+  private long points = 0;
+  
+  @Version
+  @Column(name = "VERSION", nullable = false)
+  private long version = 0;
+  
+  public UserPointsTotal() {
+    super();
+  }
+  
+  public UserPointsTotal(Long userId, Long levelId) {
+    this.userId = userId;
+    this.levelId = levelId;
+  }
+}
\ No newline at end of file
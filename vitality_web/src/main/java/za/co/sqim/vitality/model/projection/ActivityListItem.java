@@ -0,0 +1,95 @@
+package za.co.sqim.vitality.model.projection;
+
+import java.time.LocalDateTime;
+
+import za.co.sqim.vitality.model.Activity;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Read only row for the activity list views, selected with a constructor
+ * expression so no Activity or User entities are loaded.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+@ToString(of = { "id", "name", "status" })
+public class ActivityListItem
+{
+  // @formatter:off
+  private static final String COLUMNS = "select new "
+      + "za.co.sqim.vitality.model.projection.ActivityListItem("
+      + "a.id, a.name, a.points, a.completed, a.completedDate, "
+      + "a.pointsAssigned, a.pointsAssignedDate, a.activeFrom, a.activeTo, "
+      + "a.level.id, g.id, g.name, "
+      + "ru.id, ru.firstName, ru.lastName, "
+      + "cu.id, cu.firstName, cu.lastName) ";
+  
+  private static final String JOINS = "a join a.receivingUser ru "
+      + "join a.consentingUser cu left join a.group g ";
+  
+  public static final String SELECT = COLUMNS + "from Activity " + JOINS;
+  
+  /** Same as SELECT for the ArchivedActivities. */
+  public static final String SELECT_ARCHIVED = COLUMNS
+      + "from ArchivedActivity " + JOINS;
+  // @formatter:on
+  
+  private final Long id;
+  
+  private final String name;
+  
+  private final int points;
+  
+  private final boolean completed;
+  
+  private final LocalDateTime completedDate;
+  
+  private final boolean pointsAssigned;
+  
+  private final LocalDateTime pointsAssignedDate;
+  
+  private final LocalDateTime activeFrom;
+  
+  private final LocalDateTime activeTo;
+  
+  private final Long levelId;
+  
+  private final Long groupId;
+  
+  private final String groupName;
+  
+  private final UserName receivingUser;
+  
+  private final UserName consentingUser;
+  
+  /** Same as Activity.getStatus(), at the moment the row was read. */
+  private final Activity.Status status;
+  
+  public ActivityListItem(Long id, String name, int points,
+      boolean completed, LocalDateTime completedDate, boolean pointsAssigned,
+      LocalDateTime pointsAssignedDate, LocalDateTime activeFrom,
+      LocalDateTime activeTo, Long levelId, Long groupId, String groupName,
+      Long receivingUserId, String receivingUserFirstName,
+      String receivingUserLastName, Long consentingUserId,
+      String consentingUserFirstName, String consentingUserLastName) {
+    this.id = id;
+    this.name = name;
+    this.points = points;
+    this.completed = completed;
+    this.completedDate = completedDate;
+    this.pointsAssigned = pointsAssigned;
+    this.pointsAssignedDate = pointsAssignedDate;
+    this.activeFrom = activeFrom;
+    this.activeTo = activeTo;
+    this.levelId = levelId;
+    this.groupId = groupId;
+    this.groupName = groupName;
+    this.receivingUser = UserName.of(receivingUserId, receivingUserFirstName,
+        receivingUserLastName);
+    this.consentingUser = UserName.of(consentingUserId,
+        consentingUserFirstName, consentingUserLastName);
+    this.status = Activity.Status.of(completed, pointsAssigned, activeFrom,
+        activeTo, LocalDateTime.now());
+  }
+}
\ No newline at end of file
@@ -0,0 +1,94 @@
+package za.co.sqim.vitality.model.projection;
+
+import java.time.LocalDateTime;
+
+import za.co.sqim.vitality.model.Group;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * Read only row for the group list and audit views, selected with a
+ * constructor expression so no Group or User entities are loaded.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+@ToString(of = { "id", "name", "code" })
+public class GroupListItem
+{
+  // @formatter:off
+  public static final String SELECT = "select new "
+      + "za.co.sqim.vitality.model.projection.GroupListItem("
+      + "g.id, g.code, g.name, "
+      + "case when type(g) = Level then 'Level' "
+      + "when type(g) = Role then 'Role' "
+      + "when type(g) = Department then 'Department' else 'Group' end, "
+      + "g.parent.id, g.deleted, size(g.members), size(g.children), "
+      + "cb.id, cb.firstName, cb.lastName, g.createdDate, "
+      + "lm.id, lm.firstName, lm.lastName, g.lastModifiedDate, "
+      + "db.id, db.firstName, db.lastName, g.deletedDateTime) "
+      + "from Group g left join g.createdBy cb left join g.lastModifiedBy lm "
+      + "left join g.deletedBy db ";
+  // @formatter:on
+  
+  private final Long id;
+  
+  private final String code;
+  
+  private final String name;
+  
+  /** Same as Group.getType(). */
+  private final String type;
+  
+  private final Long parentId;
+  
+  private final boolean deleted;
+  
+  private final int memberCount;
+  
+  private final int childCount;
+  
+  private final UserName createdBy;
+  
+  private final LocalDateTime createdDate;
+  
+  private final UserName lastModifiedBy;
+  
+  private final LocalDateTime lastModifiedDate;
+  
+  private final UserName deletedBy;
+  
+  private final LocalDateTime deletedDateTime;
+  
+  /** Same as Group.isModified(). */
+  private final boolean modified;
+  
+  public GroupListItem(Long id, String code, String name, String type,
+      Long parentId, Boolean deleted, int memberCount, int childCount,
+      Long createdById, String createdByFirstName, String createdByLastName,
+      LocalDateTime createdDate, Long lastModifiedById,
+      String lastModifiedByFirstName, String lastModifiedByLastName,
+      LocalDateTime lastModifiedDate, Long deletedById,
+      String deletedByFirstName, String deletedByLastName,
+      LocalDateTime deletedDateTime) {
+    this.id = id;
+    this.code = code;
+    this.name = name;
+    this.type = type;
+    this.parentId = parentId;
+    this.deleted = deleted == null ? false : deleted;
+    this.memberCount = memberCount;
+    this.childCount = childCount;
+    this.createdBy = UserName.of(createdById, createdByFirstName,
+        createdByLastName);
+    this.createdDate = createdDate;
+    this.lastModifiedBy = UserName.of(lastModifiedById,
+        lastModifiedByFirstName, lastModifiedByLastName);
+    this.lastModifiedDate = lastModifiedDate;
+    this.deletedBy = UserName.of(deletedById, deletedByFirstName,
+        deletedByLastName);
+    this.deletedDateTime = deletedDateTime;
+    this.modified = Group.isModified(createdById, createdDate,
+        lastModifiedById, lastModifiedDate);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,60 @@
+package za.co.sqim.vitality.model.projection;
+
+import com.fasterxml.jackson.annotation.JsonFormat;
+import com.fasterxml.jackson.annotation.JsonPropertyOrder;
+import lombok.Getter;
+import lombok.ToString;
+
+/**
+ * One group in the compact tree, serialised as the array [id, parentId, code,
+ * name, type, deleted, memberCount, childCount] to keep large trees small.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+@ToString(of = { "id", "name", "code" })
+@JsonFormat(shape = JsonFormat.Shape.ARRAY)
+@JsonPropertyOrder({ "id", "parentId", "code", "name", "type", "deleted",
+    "memberCount", "childCount" })
+public class GroupTreeNode
+{
+  // @formatter:off
+  public static final String SELECT = "select new "
+      + "za.co.sqim.vitality.model.projection.GroupTreeNode("
+      + "g.id, g.parent.id, g.code, g.name, "
+      + "case when type(g) = Level then 'Level' "
+      + "when type(g) = Role then 'Role' "
+      + "when type(g) = Department then 'Department' else 'Group' end, "
+      + "g.deleted, size(g.members), size(g.children)) "
+      + "from Group g ";
+  // @formatter:on
+  
+  private final Long id;
+  
+  private final Long parentId;
+  
+  private final String code;
+  
+  private final String name;
+  
+  /** Same as Group.getType(). */
+  private final String type;
+  
+  private final boolean deleted;
+  
+  private final int memberCount;
+  
+  private final int childCount;
+  
+  public GroupTreeNode(Long id, Long parentId, String code, String name,
+      String type, Boolean deleted, int memberCount, int childCount) {
+    this.id = id;
+    this.parentId = parentId;
+    this.code = code;
+    this.name = name;
+    this.type = type;
+    this.deleted = deleted == null ? false : deleted;
+    this.memberCount = memberCount;
+    this.childCount = childCount;
+  }
+}
\ No newline at end of file
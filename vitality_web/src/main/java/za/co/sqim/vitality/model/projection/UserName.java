@@ -0,0 +1,39 @@
+package za.co.sqim.vitality.model.projection;
+
+import lombok.Value;
+
+/**
+ * Just enough of a User to show who did something.
+ * 
+ * @author Avuyile Malotana
+ */
+@Value
+public class UserName
+{
+  private final Long id;
+  
+  private final String firstName;
+  
+  private final String lastName;
+  
+  /**
+   * Null if there is no user, so joins on optional users stay simple.
+   */
+  public static UserName of(Long id, String firstName, String lastName) {
+    return id == null ? null : new UserName(id, firstName, lastName);
+  }
+  
+  public String getFullName() {
+    StringBuilder builder = new StringBuilder();
+    if (firstName != null) {
+      builder.append(firstName);
+    }
+    if (lastName != null) {
+      if (builder.length() > 0) {
+        builder.append(' ');
+      }
+      builder.append(lastName);
+    }
+    return builder.toString();
+  }
+}
\ No newline at end of file
@@ -0,0 +1,154 @@
+package za.co.sqim.vitality.repository;
+
+import java.time.LocalDateTime;
+import java.util.Collection;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Stream;
+
+import javax.persistence.QueryHint;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.jpa.repository.QueryHints;
+import org.springframework.data.repository.query.Param;
+
+import za.co.sqim.vitality.model.Activity;
+import za.co.sqim.vitality.model.User;
+import za.co.sqim.vitality.model.projection.ActivityListItem;
+
+/**
+ * @author Avuyile Malotana
+ */
+public interface ActivityRepository extends JpaRepository<Activity, Long>
+{
+  /**
+   * The points ledger of a user as [pointsAssignedDate, points,
+   * pointsExpireInDays] rows, without loading the activities themselves.
+   */
+  @Query("select a.pointsAssignedDate, a.points, a.pointsExpireInDays "
+      + "from Activity a "
+      + "where a.receivingUser = :user and a.pointsAssigned = true")
+  List<Object[]> findPointsLedger(@Param("user") User user);
+  
+  /**
+   * Receiving users that already got an activity from the given fan-out run.
+   */
+  @Query("select a.receivingUser.id from Activity a "
+      + "where a.fanOutKey = :fanOutKey")
+  Set<Long> findReceivingUserIdsByFanOutKey(
+      @Param("fanOutKey") String fanOutKey);
+  
+  /**
+   * The activities of a fan-out run for the given receiving users, as [id,
+   * receivingUserId] rows.
+   */
+  @Query("select a.id, a.receivingUser.id from Activity a "
+      + "where a.fanOutKey = :fanOutKey and a.receivingUser.id in :userIds")
+  List<Object[]> findFanOutRows(@Param("fanOutKey") String fanOutKey,
+      @Param("userIds") Collection<Long> userIds);
+  
+  /**
+   * Status relevant state of every activity in a level as [levelId, groupId
+   * (level id if none), completed, pointsAssigned, activeFrom, activeTo]
+   * rows.
+   */
+  @Query("select a.level.id, coalesce(g.id, a.level.id), a.completed, "
+      + "a.pointsAssigned, a.activeFrom, a.activeTo "
+      + "from Activity a left join a.group g where a.level.id = :levelId")
+  Stream<Object[]> streamStatusStates(@Param("levelId") Long levelId);
+  
+  /**
+   * Same rows as streamStatusStates() but only for activities that become
+   * available or run out in the period (from, to].
+   */
+  @Query("select a.level.id, coalesce(g.id, a.level.id), a.completed, "
+      + "a.pointsAssigned, a.activeFrom, a.activeTo "
+      + "from Activity a left join a.group g where a.level.id = :levelId "
+      + "and ((a.activeFrom > :from and a.activeFrom <= :to) "
+      + "or (a.activeTo > :from and a.activeTo <= :to))")
+  List<Object[]> findStatusStatesChangingBetween(
+      @Param("levelId") Long levelId, @Param("from") LocalDateTime from,
+      @Param("to") LocalDateTime to);
+  
+  /**
+   * Reporting facts of every activity as [id, levelId, groupId (level id if
+   * none), receivingUserId, points, pointsAssigned, pointsAssignedDate,
+   * completed, activeFrom, activeTo] rows.
+   */
+  @QueryHints(@QueryHint(name = "org.hibernate.fetchSize", value = "1000"))
+  @Query("select a.id, a.level.id, coalesce(g.id, a.level.id), "
+      + "a.receivingUser.id, a.points, a.pointsAssigned, "
+      + "a.pointsAssignedDate, a.completed, a.activeFrom, a.activeTo "
+      + "from Activity a left join a.group g")
+  Stream<Object[]> streamFacts();
+  
+  /**
+   * The list items of a user's live activities only, the list views read
+   * them through ActivityArchiveService which adds the archived ones.
+   */
+  @Query(value = ActivityListItem.SELECT + "where ru.id = :userId",
+      countQuery = "select count(a) from Activity a "
+          + "where a.receivingUser.id = :userId")
+  Page<ActivityListItem> findListItemsByReceivingUserId(
+      @Param("userId") Long userId, Pageable pageable);
+  
+  /**
+   * Same as findListItemsByReceivingUserId() for a group.
+   */
+  @Query(value = ActivityListItem.SELECT + "where g.id = :groupId",
+      countQuery = "select count(a) from Activity a "
+          + "where a.group.id = :groupId")
+  Page<ActivityListItem> findListItemsByGroupId(
+      @Param("groupId") Long groupId, Pageable pageable);
+  
+  /**
+   * Same as findListItemsByReceivingUserId() for a level.
+   */
+  @Query(value = ActivityListItem.SELECT + "where a.level.id = :levelId",
+      countQuery = "select count(a) from Activity a "
+          + "where a.level.id = :levelId")
+  Page<ActivityListItem> findListItemsByLevelId(
+      @Param("levelId") Long levelId, Pageable pageable);
+  
+  @Query(ActivityListItem.SELECT + "where a.id = :id")
+  ActivityListItem findListItemById(@Param("id") Long id);
+  
+  /**
+   * Assigned points whose expiry date is at or before the given moment but
+   * that have not been expired yet, as [id, receivingUserId, levelId, points]
+   * rows ordered by id, starting after the given id.
+   */
+  @Query("select a.id, a.receivingUser.id, a.level.id, a.points "
+      + "from Activity a where a.pointsExpiryDate <= :now and a.id > :afterId "
+      + "and (a.pointsExpired is null or a.pointsExpired = false) "
+      + "order by a.id")
+  List<Object[]> findPointsExpiredBy(@Param("now") LocalDateTime now,
+      @Param("afterId") Long afterId, Pageable pageable);
+  
+  /**
+   * Assigned points with an expiry period but no stored expiry date (saved
+   * before it was stored, or inserted without it), as [id,
+   * pointsAssignedDate, pointsExpireInDays] rows ordered by id, starting
+   * after the given id.
+   */
+  @Query("select a.id, a.pointsAssignedDate, a.pointsExpireInDays "
+      + "from Activity a where a.pointsAssigned = true "
+      + "and a.pointsExpireInDays > 0 and a.pointsAssignedDate is not null "
+      + "and a.pointsExpiryDate is null and a.id > :afterId order by a.id")
+  List<Object[]> findMissingPointsExpiryDates(@Param("afterId") Long afterId,
+      Pageable pageable);
+  
+  /**
+   * Flag the points of an activity as expired, returns 0 if another
+   * transaction did so first.
+   */
+  @Modifying
+  @Query("update Activity a set a.pointsExpired = true, "
+      + "a.version = a.version + 1 where a.id = :id "
+      + "and (a.pointsExpired is null or a.pointsExpired = false)")
+  int markPointsExpired(@Param("id") Long id);
+}
\ No newline at end of file
@@ -0,0 +1,37 @@
+package za.co.sqim.vitality.repository;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import za.co.sqim.vitality.model.Activity;
+import za.co.sqim.vitality.model.ActivityStatusCount;
+
+/**
+ * @author Avuyile Malotana
+ */
+public interface ActivityStatusCountRepository
+    extends JpaRepository<ActivityStatusCount, Long>
+{
+  List<ActivityStatusCount> findByGroupId(Long groupId);
+  
+  /**
+   * Status counts of a whole level as [status, count] rows.
+   */
+  @Query("select c.status, sum(c.count) from ActivityStatusCount c "
+      + "where c.levelId = :levelId group by c.status")
+  List<Object[]> sumByLevelId(@Param("levelId") Long levelId);
+  
+  /**
+   * Add delta to the count in the database, returns 0 if the row does not
+   * exist yet.
+   */
+  @Modifying
+  @Query("update ActivityStatusCount c set c.count = c.count + :delta "
+      + "where c.groupId = :groupId and c.status = :status")
+  int increment(@Param("groupId") Long groupId,
+      @Param("status") Activity.Status status, @Param("delta") long delta);
+}
\ No newline at end of file
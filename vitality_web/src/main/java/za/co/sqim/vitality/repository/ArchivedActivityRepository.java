@@ -0,0 +1,35 @@
+package za.co.sqim.vitality.repository;
+
+import java.util.List;
+import java.util.stream.Stream;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import za.co.sqim.vitality.model.ArchivedActivity;
+import za.co.sqim.vitality.model.User;
+
+/**
+ * @author Avuyile Malotana
+ */
+public interface ArchivedActivityRepository
+    extends JpaRepository<ArchivedActivity, Long>
+{
+  /**
+   * Same as ActivityRepository#findPointsLedger(User) for the archive.
+   */
+  @Query("select a.pointsAssignedDate, a.points, a.pointsExpireInDays "
+      + "from ArchivedActivity a "
+      + "where a.receivingUser = :user and a.pointsAssigned = true")
+  List<Object[]> findPointsLedger(@Param("user") User user);
+  
+  /**
+   * Same as ActivityRepository#streamStatusStates(Long) for the archive.
+   */
+  @Query("select a.level.id, coalesce(g.id, a.level.id), a.completed, "
+      + "a.pointsAssigned, a.activeFrom, a.activeTo "
+      + "from ArchivedActivity a left join a.group g "
+      + "where a.level.id = :levelId")
+  Stream<Object[]> streamStatusStates(@Param("levelId") Long levelId);
+}
\ No newline at end of file
@@ -0,0 +1,23 @@
+package za.co.sqim.vitality.repository;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import za.co.sqim.vitality.model.GroupMember;
+
+/**
+ * @author Avuyile Malotana
+ */
+public interface GroupMemberRepository extends JpaRepository<GroupMember, Long>
+{
+  @Query("select gm from GroupMember gm join fetch gm.user "
+      + "where gm.group.id in :groupIds")
+  List<GroupMember> findByGroupIds(@Param("groupIds") Collection<Long> groupIds);
+  
+  @Query("select gm.group.id from GroupMember gm where gm.user.id = :userId")
+  List<Long> findGroupIdsByUserId(@Param("userId") Long userId);
+}
\ No newline at end of file
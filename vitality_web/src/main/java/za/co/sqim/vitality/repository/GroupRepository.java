@@ -0,0 +1,72 @@
+package za.co.sqim.vitality.repository;
+
+import java.util.Collection;
+import java.util.List;
+
+import org.springframework.data.domain.Page;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import za.co.sqim.vitality.model.Group;
+import za.co.sqim.vitality.model.projection.GroupListItem;
+import za.co.sqim.vitality.model.projection.GroupTreeNode;
+
+/**
+ * @author Avuyile Malotana
+ */
+public interface GroupRepository extends JpaRepository<Group, Long>
+{
+  /**
+   * Ids of the children (not deleted) of the given groups, one level down.
+   */
+  @Query("select g.id from Group g where g.parent.id in :parentIds "
+      + "and (g.deleted is null or g.deleted = false)")
+  List<Long> findEnabledChildIds(@Param("parentIds") Collection<Long> parentIds);
+  
+  /**
+   * The fields needed by the GroupNameIndex as [id, parentId, name, code,
+   * deleted, level] rows, level is 1 for a Level and 0 otherwise.
+   */
+  @Query("select g.id, g.parent.id, g.name, g.code, g.deleted, "
+      + "case when type(g) = Level then 1 else 0 end from Group g")
+  List<Object[]> findNameIndexRows();
+  
+  @Query("select g.id, g.parent.id, g.name, g.code, g.deleted, "
+      + "case when type(g) = Level then 1 else 0 end from Group g "
+      + "where g.id = :id")
+  List<Object[]> findNameIndexRow(@Param("id") Long id);
+  
+  @Query(GroupListItem.SELECT + "where g.parent.id = :parentId "
+      + "order by g.order, g.name")
+  List<GroupListItem> findListItemsByParentId(
+      @Param("parentId") Long parentId);
+  
+  @Query(value = GroupListItem.SELECT,
+      countQuery = "select count(g) from Group g")
+  Page<GroupListItem> findListItems(Pageable pageable);
+  
+  @Query(GroupTreeNode.SELECT + "where g.id in :ids order by g.id")
+  List<GroupTreeNode> findTreeNodesByIds(@Param("ids") Collection<Long> ids);
+  
+  /**
+   * The children of the given groups that aren't deleted, one level down.
+   */
+  @Query(GroupTreeNode.SELECT + "where g.parent.id in :parentIds "
+      + "and (g.deleted is null or g.deleted = false) order by g.id")
+  List<GroupTreeNode> findTreeNodesByParentIds(
+      @Param("parentIds") Collection<Long> parentIds);
+  
+  /**
+   * [id, code] rows of all groups.
+   */
+  @Query("select g.id, g.code from Group g")
+  List<Object[]> findCodeRows();
+  
+  @Query("select g.id from Group g where g.code = :code")
+  Long findIdByCode(@Param("code") String code);
+  
+  @Query("select g.code from Group g where g.id = :id")
+  String findCodeById(@Param("id") Long id);
+}
\ No newline at end of file
@@ -0,0 +1,29 @@
+package za.co.sqim.vitality.repository;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import za.co.sqim.vitality.model.GroupTreeVersion;
+
+/**
+ * @author Avuyile Malotana
+ */
+public interface GroupTreeVersionRepository
+    extends JpaRepository<GroupTreeVersion, Long>
+{
+  @Query("select v from GroupTreeVersion v where v.levelId = :levelId")
+  GroupTreeVersion findByLevelId(@Param("levelId") Long levelId);
+  
+  /**
+   * Ids of the groups that changed after version since, up to and including
+   * version.
+   */
+  @Query("select distinct c.groupId from GroupTreeChange c "
+      + "where c.levelId = :levelId and c.version > :since "
+      + "and c.version <= :version")
+  List<Long> findChangedGroupIds(@Param("levelId") Long levelId,
+      @Param("since") long since, @Param("version") long version);
+}
\ No newline at end of file
@@ -0,0 +1,24 @@
+package za.co.sqim.vitality.repository;
+
+import java.util.List;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import za.co.sqim.vitality.model.Milestone;
+
+/**
+ * @author Avuyile Malotana
+ */
+public interface MilestoneRepository extends JpaRepository<Milestone, Long>
+{
+  /**
+   * Ids of the milestones of a level a total passes when it grows from
+   * "from" (exclusive) to "to" (inclusive), lowest first.
+   */
+  @Query("select m.id from Milestone m where m.level.id = :levelId "
+      + "and m.points > :from and m.points <= :to order by m.points")
+  List<Long> findIdsReachedBetween(@Param("levelId") Long levelId,
+      @Param("from") long from, @Param("to") long to);
+}
\ No newline at end of file
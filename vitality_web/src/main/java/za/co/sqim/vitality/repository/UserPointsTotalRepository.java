@@ -0,0 +1,37 @@
+package za.co.sqim.vitality.repository;
+
+import org.springframework.data.jpa.repository.JpaRepository;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
+import org.springframework.data.repository.query.Param;
+
+import za.co.sqim.vitality.model.UserPointsTotal;
+
+/**
+ * @author Avuyile Malotana
+ */
+public interface UserPointsTotalRepository
+    extends JpaRepository<UserPointsTotal, Long>
+{
+  UserPointsTotal findByUserIdAndLevelId(Long userId, Long levelId);
+  
+  /**
+   * The points as stored in the database, unlike findByUserIdAndLevelId this
+   * is not affected by a stale UserPointsTotal in the persistence context.
+   */
+  @Query("select t.points from UserPointsTotal t "
+      + "where t.userId = :userId and t.levelId = :levelId")
+  Long findPoints(@Param("userId") Long userId,
+      @Param("levelId") Long levelId);
+  
+  /**
+   * Add delta to the points in the database, returns 0 if the row does not
+   * exist yet.
+   */
+  @Modifying
+  @Query("update UserPointsTotal t set t.points = t.points + :delta, "
+      + "t.version = t.version + 1 "
+      + "where t.userId = :userId and t.levelId = :levelId")
+  int increment(@Param("userId") Long userId, @Param("levelId") Long levelId,
+      @Param("delta") long delta);
+}
\ No newline at end of file
@@ -0,0 +1,367 @@
+package za.co.sqim.vitality.service;
+
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.data.domain.Pageable;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.domain.SliceImpl;
+import org.springframework.data.domain.Sort;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import za.co.sqim.vitality.model.AbstractActivity;
+import za.co.sqim.vitality.model.Activity;
+import za.co.sqim.vitality.model.ArchivedActivity;
+import za.co.sqim.vitality.model.projection.ActivityListItem;
+import za.co.sqim.vitality.shard.ShardContext;
+
+/**
+ * Moves closed activities that are older than the retention period from the
+ * ACTIVITY table to ACTIVITY_ARCHIVE, and reads them back when a requested
+ * period reaches past the retention period.
+ * 
+ * The archive table is mapped by ArchivedActivity, which shares its columns
+ * with Activity. Rows are moved in batches, each batch in its own
+ * transaction. An activity qualifies when its closing date (the points
+ * assigned date for CLOSED_COMPLETE, activeTo for CLOSED_INCOMPLETE) is
+ * before the cut-off. Points that expire must have been expired by the sweep
+ * first, points that never expire are archived as they are and still count
+ * towards the UserPointsTotal, the readers of points include the archive.
+ * Archived activities stay in the ActivityStatusCounts as well, the CLOSED_*
+ * counts of a group don't drop when its old activities are archived.
+ * 
+ * Archiving runs on every shard. The readers go over every shard too, each
+ * shard in a read-only transaction of its own.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+public class ActivityArchiveService
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(ActivityArchiveService.class);
+  
+  public static final String TABLE = "ACTIVITY";
+  
+  public static final String ARCHIVE_TABLE = "ACTIVITY_ARCHIVE";
+  
+  // @formatter:off
+  private static final String SELECT_BATCH = "select ID from " + TABLE
+      + " where (COMPLETED = ? and POINTS_ASSIGNED = ? "
+      + "and POINTS_ASSIGNED_DATE < ? "
+      + "and (POINTS_EXPIRED = ? or POINTS_EXPIRE_IN_DAYS <= 0)) "
+      + "or (COMPLETED = ? and ACTIVE_TO < ?)";
+  // @formatter:on
+  
+  /** The properties the list items can be sorted by. */
+  private static final Set<String> SORTABLE = new HashSet<>(Arrays.asList(
+      "id", "name", "points", "completed", "completedDate", "pointsAssigned",
+      "pointsAssignedDate", "activeFrom", "activeTo", "creationDate"));
+  
+  @PersistenceContext
+  private EntityManager entityManager;
+  
+  private final JdbcTemplate jdbcTemplate;
+  
+  /** Same as jdbcTemplate but reads at most batchSize rows. */
+  private final JdbcTemplate batchTemplate;
+  
+  private final TransactionTemplate transactionTemplate;
+  
+  private final TransactionTemplate readOnlyTemplate;
+  
+  private final DataSource dataSource;
+  
+  @Value("${vitality.archive.retention-days:365}")
+  private int retentionDays = 365;
+  
+  private final int batchSize;
+  
+  @Value("${vitality.archive.enabled:true}")
+  private boolean enabled = true;
+  
+  private volatile List<String> columns;
+  
+  @Autowired
+  public ActivityArchiveService(DataSource dataSource,
+      PlatformTransactionManager transactionManager,
+      @Value("${vitality.archive.batch-size:1000}") int batchSize) {
+    this.batchSize = batchSize;
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.batchTemplate = new JdbcTemplate(dataSource);
+    this.batchTemplate.setMaxRows(batchSize);
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.readOnlyTemplate = new TransactionTemplate(transactionManager);
+    this.readOnlyTemplate.setReadOnly(true);
+    this.dataSource = dataSource;
+  }
+  
+  /**
+   * Activities closed before this moment may be in the archive.
+   */
+  public LocalDateTime getArchiveHorizon() {
+    return LocalDateTime.now().minusDays(retentionDays);
+  }
+  
+  /**
+   * Archive everything that qualifies on every shard, batch by batch.
+   * 
+   * @return The number of activities archived.
+   */
+  @Scheduled(cron = "${vitality.archive.cron:0 0 3 * * *}")
+  public long archive() {
+    if (!enabled) {
+      return 0;
+    }
+    LocalDateTime cutOff = getArchiveHorizon();
+    long total = 0;
+    for (String shard : ShardContext.shardsOf(dataSource)) {
+      try (ShardContext.Scope scope = ShardContext.open(shard)) {
+        int moved;
+        do {
+          moved = transactionTemplate.execute(status -> archiveBatch(cutOff));
+          total += moved;
+        } while (moved == batchSize);
+      }
+    }
+    logger.info("Archived {} activities closed before {}", total, cutOff);
+    return total;
+  }
+  
+  /**
+   * The activities of a user closed in the period [from, to), oldest first.
+   * The archive is only queried if the period starts before the archive
+   * horizon.
+   */
+  public List<AbstractActivity> findClosedByReceivingUser(Long userId,
+      LocalDateTime from, LocalDateTime to) {
+    boolean archived = from.isBefore(getArchiveHorizon());
+    List<AbstractActivity> activities = new ArrayList<>();
+    for (String shard : ShardContext.shardsOf(dataSource)) {
+      try (ShardContext.Scope scope = ShardContext.open(shard)) {
+        readOnlyTemplate.execute(status -> {
+          activities.addAll(findClosed(Activity.class, userId, from, to));
+          if (archived) {
+            activities.addAll(findClosed(ArchivedActivity.class, userId,
+                from, to));
+          }
+          return null;
+        });
+      }
+    }
+    activities.sort((a, b) -> closingDate(a).compareTo(closingDate(b)));
+    return activities;
+  }
+  
+  /**
+   * The list items of a user's activities, shard by shard the live ones
+   * followed by the archived ones (each in the order of the pageable).
+   * 
+   * A Slice and not a Page, the total would need a count of the archive for
+   * every page. The archive is only read once the page reaches past the live
+   * activities.
+   * 
+   * @throws IllegalArgumentException
+   *           If the pageable sorts by a property that isn't sortable.
+   */
+  public Slice<ActivityListItem> findListItemsByReceivingUserId(Long userId,
+      Pageable pageable) {
+    return findListItems("a.receivingUser.id", userId, pageable);
+  }
+  
+  /**
+   * Same as {@link #findListItemsByReceivingUserId(Long, Pageable)} for the
+   * activities of a group.
+   */
+  public Slice<ActivityListItem> findListItemsByGroupId(Long groupId,
+      Pageable pageable) {
+    return findListItems("a.group.id", groupId, pageable);
+  }
+  
+  /**
+   * Same as {@link #findListItemsByReceivingUserId(Long, Pageable)} for the
+   * activities of a level.
+   */
+  public Slice<ActivityListItem> findListItemsByLevelId(Long levelId,
+      Pageable pageable) {
+    return findListItems("a.level.id", levelId, pageable);
+  }
+  
+  private <T extends AbstractActivity> List<T> findClosed(Class<T> type,
+      Long userId, LocalDateTime from, LocalDateTime to) {
+    return entityManager.createQuery("select a from "
+        + type.getSimpleName() + " a "
+        + "where a.receivingUser.id = :userId "
+        + "and coalesce(a.pointsAssignedDate, a.activeTo) >= :from "
+        + "and coalesce(a.pointsAssignedDate, a.activeTo) < :to", type)
+        .setParameter("userId", userId)
+        .setParameter("from", from)
+        .setParameter("to", to)
+        .getResultList();
+  }
+  
+  /**
+   * One slice over the rows matching "path = :id", per shard the live rows
+   * followed by the archived rows. Parts are read until the slice (and one
+   * more row, to know if there is a next slice) is full, a part is only
+   * counted when the offset skips past all of its rows.
+   */
+  private Slice<ActivityListItem> findListItems(String path, Long id,
+      Pageable pageable) {
+    String where = "where " + path + " = :id";
+    String orderBy = orderBy(pageable.getSort());
+    int wanted = pageable.getPageSize() + 1;
+    List<ActivityListItem> items = new ArrayList<>(wanted);
+    long[] skip = { pageable.getOffset() };
+    for (String shard : ShardContext.shardsOf(dataSource)) {
+      if (items.size() == wanted) {
+        break;
+      }
+      try (ShardContext.Scope scope = ShardContext.open(shard)) {
+        readOnlyTemplate.execute(status -> {
+          skip[0] = addListItems(Activity.class, ActivityListItem.SELECT,
+              where, orderBy, id, skip[0], wanted, items);
+          skip[0] = addListItems(ArchivedActivity.class,
+              ActivityListItem.SELECT_ARCHIVED, where, orderBy, id, skip[0],
+              wanted, items);
+          return null;
+        });
+      }
+    }
+    boolean hasNext = items.size() == wanted;
+    return new SliceImpl<>(hasNext ? items.subList(0, wanted - 1) : items,
+        pageable, hasNext);
+  }
+  
+  /**
+   * Add the rows of one entity that fall in the slice.
+   * 
+   * @param skip
+   *          The number of rows of the offset not skipped by the parts
+   *          before this one.
+   * @return The number of rows of the offset left for the parts after this
+   *         one.
+   */
+  private long addListItems(Class<?> entity, String select, String where,
+      String orderBy, Long id, long skip, int wanted,
+      List<ActivityListItem> items) {
+    int max = wanted - items.size();
+    if (max == 0) {
+      return skip;
+    }
+    List<ActivityListItem> rows = entityManager
+        .createQuery(select + where + orderBy, ActivityListItem.class)
+        .setParameter("id", id).setFirstResult((int) skip)
+        .setMaxResults(max).getResultList();
+    items.addAll(rows);
+    if (!rows.isEmpty() || skip == 0) {
+      return 0;
+    }
+    long count = entityManager.createQuery("select count(a) from "
+        + entity.getSimpleName() + " a " + where, Long.class)
+        .setParameter("id", id).getSingleResult();
+    return skip - count;
+  }
+  
+  /**
+   * The order by clause of the sort, the properties are checked against
+   * SORTABLE as they end up in the query.
+   */
+  private static String orderBy(Sort sort) {
+    if (sort == null) {
+      return "";
+    }
+    StringBuilder orderBy = new StringBuilder();
+    String separator = " order by ";
+    for (Sort.Order order : sort) {
+      if (!SORTABLE.contains(order.getProperty())) {
+        throw new IllegalArgumentException("Activities can't be sorted by "
+            + order.getProperty());
+      }
+      orderBy.append(separator).append("a.").append(order.getProperty())
+          .append(order.isAscending() ? " asc" : " desc");
+      separator = ", ";
+    }
+    return orderBy.toString();
+  }
+  
+  private int archiveBatch(LocalDateTime cutOff) {
+    Timestamp before = Timestamp.valueOf(cutOff);
+    List<Long> rows = batchTemplate.queryForList(SELECT_BATCH, Long.class,
+        true, true, before, true, false, before);
+    if (rows.isEmpty()) {
+      return 0;
+    }
+    String ids = rows.stream().map(String::valueOf)
+        .collect(Collectors.joining(","));
+    String columnList = String.join(", ", getColumns());
+    jdbcTemplate.update("insert into " + ARCHIVE_TABLE + " (" + columnList
+        + ") select " + columnList + " from " + TABLE + " where ID in (" + ids
+        + ")");
+    // the status counts keep the archived activities, nothing to record
+    jdbcTemplate.update("delete from " + TABLE + " where ID in (" + ids + ")");
+    return rows.size();
+  }
+  
+  /**
+   * The columns of ACTIVITY, read once from the database so the archive
+   * follows schema changes without code changes.
+   */
+  private List<String> getColumns() {
+    List<String> current = columns;
+    if (current == null) {
+      Set<String> activity = readColumns(TABLE);
+      Set<String> archive = readColumns(ARCHIVE_TABLE);
+      if (!archive.containsAll(activity)) {
+        Set<String> missing = new LinkedHashSet<>(activity);
+        missing.removeAll(archive);
+        throw new IllegalStateException(
+            ARCHIVE_TABLE + " is missing the columns " + missing);
+      }
+      current = Collections.unmodifiableList(new ArrayList<>(activity));
+      columns = current;
+    }
+    return current;
+  }
+  
+  private Set<String> readColumns(String table) {
+    return jdbcTemplate.query("select * from " + table + " where 1 = 0",
+        rs -> {
+          ResultSetMetaData meta = rs.getMetaData();
+          Set<String> names = new LinkedHashSet<>();
+          for (int i = 1; i <= meta.getColumnCount(); i++) {
+            names.add(meta.getColumnName(i).toUpperCase());
+          }
+          return names;
+        });
+  }
+  
+  private static LocalDateTime closingDate(AbstractActivity activity) {
+    if (activity.getPointsAssignedDate() != null) {
+      return activity.getPointsAssignedDate();
+    }
+    return activity.getActiveTo() == null ? LocalDateTime.MAX
+        : activity.getActiveTo();
+  }
+}
\ No newline at end of file
@@ -0,0 +1,200 @@
+package za.co.sqim.vitality.service;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.time.LocalDateTime;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
+import org.hibernate.Session;
+import org.hibernate.dialect.MySQLDialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import za.co.sqim.vitality.model.Activity;
+
+/**
+ * Streams the Activity history of a Level as CSV or JSON Lines, the archived
+ * activities follow the live ones unless they are left out.
+ * 
+ * Rows are read as scalars through a forward only cursor and written straight
+ * to the output, nothing is kept in the persistence context, so memory use is
+ * bounded by the fetch size and not by the number of activities.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+public class ActivityExportService
+{
+  /** Used when no fetch size is configured and the database is not MySQL. */
+  public static final int DEFAULT_FETCH_SIZE = 500;
+  
+  // @formatter:off
+  private static final String[] COLUMNS = {
+      "id", "levelId", "groupId", "receivingUserId", "consentingUserId",
+      "activityMasterId", "name", "description", "points",
+      "pointsExpireInDays", "completed", "completedDate", "pointsAssigned",
+      "pointsAssignedDate", "activeFrom", "activeTo", "status" };
+  
+  private static final String SELECT = "select a.id, a.level.id, g.id, "
+      + "a.receivingUser.id, a.consentingUser.id, m.id, a.name, "
+      + "a.description, a.points, a.pointsExpireInDays, a.completed, "
+      + "a.completedDate, a.pointsAssigned, a.pointsAssignedDate, "
+      + "a.activeFrom, a.activeTo from ";
+  
+  private static final String JOINS = " a left join a.group g "
+      + "left join a.activityMaster m "
+      + "where a.level.id = :levelId order by a.id";
+  
+  private static final String QUERY = SELECT + "Activity" + JOINS;
+  
+  private static final String ARCHIVED_QUERY = SELECT + "ArchivedActivity"
+      + JOINS;
+  // @formatter:on
+  
+  @PersistenceContext
+  private EntityManager entityManager;
+  
+  /**
+   * Rows fetched from the database per round trip, by default chosen for the
+   * dialect: MySQL Connector/J only streams with Integer.MIN_VALUE and reads
+   * the whole result into memory with any other value.
+   */
+  @Value("${vitality.export.fetch-size:#{null}}")
+  private Integer fetchSize;
+  
+  private final JsonFactory jsonFactory = new JsonFactory();
+  
+  public interface RowWriter
+  {
+    void write(Object[] row) throws IOException;
+  }
+  
+  @Transactional(readOnly = true)
+  public long exportCsv(Long levelId, boolean includeArchived, Writer writer)
+      throws IOException {
+    writer.write(String.join(",", COLUMNS));
+    writer.write("\r\n");
+    long count = export(levelId, includeArchived, row -> {
+      for (int i = 0; i < row.length; i++) {
+        if (i > 0) {
+          writer.write(',');
+        }
+        writer.write(csv(row[i]));
+      }
+      writer.write("\r\n");
+    });
+    writer.flush();
+    return count;
+  }
+  
+  @Transactional(readOnly = true)
+  public long exportJsonLines(Long levelId, boolean includeArchived,
+      Writer writer) throws IOException {
+    JsonGenerator generator = jsonFactory.createGenerator(writer);
+    generator.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+    long count = export(levelId, includeArchived, row -> {
+      generator.writeStartObject();
+      for (int i = 0; i < row.length; i++) {
+        generator.writeFieldName(COLUMNS[i]);
+        writeJsonValue(generator, row[i]);
+      }
+      generator.writeEndObject();
+      generator.writeRaw('\n');
+    });
+    generator.flush();
+    return count;
+  }
+  
+  /**
+   * Walk the activities of a Level in id order, then the archived ones in id
+   * order if includeArchived is set, handing each row (including the
+   * calculated status as the last column) to the row writer.
+   * 
+   * @return The number of rows written.
+   */
+  @Transactional(readOnly = true)
+  public long export(Long levelId, boolean includeArchived,
+      RowWriter rowWriter) throws IOException {
+    Session session = entityManager.unwrap(Session.class);
+    LocalDateTime now = LocalDateTime.now();
+    long count = export(session, QUERY, levelId, now, rowWriter);
+    if (includeArchived) {
+      count += export(session, ARCHIVED_QUERY, levelId, now, rowWriter);
+    }
+    return count;
+  }
+  
+  private long export(Session session, String query, Long levelId,
+      LocalDateTime now, RowWriter rowWriter) throws IOException {
+    long count = 0;
+    ScrollableResults results = session.createQuery(query)
+        .setParameter("levelId", levelId)
+        .setFetchSize(getFetchSize(session))
+        .setReadOnly(true)
+        .scroll(ScrollMode.FORWARD_ONLY);
+    try {
+      Object[] row = new Object[COLUMNS.length];
+      while (results.next()) {
+        Object[] values = results.get();
+        System.arraycopy(values, 0, row, 0, values.length);
+        row[values.length] = Activity.Status.of((Boolean) values[10],
+            (Boolean) values[12], (LocalDateTime) values[14],
+            (LocalDateTime) values[15], now);
+        rowWriter.write(row);
+        count++;
+      }
+    }
+    finally {
+      results.close();
+    }
+    return count;
+  }
+  
+  private int getFetchSize(Session session) {
+    if (fetchSize == null) {
+      SessionFactoryImplementor factory = (SessionFactoryImplementor) session
+          .getSessionFactory();
+      boolean mysql = factory.getJdbcServices()
+          .getDialect() instanceof MySQLDialect;
+      fetchSize = mysql ? Integer.MIN_VALUE : DEFAULT_FETCH_SIZE;
+    }
+    return fetchSize;
+  }
+  
+  private static String csv(Object value) {
+    if (value == null) {
+      return "";
+    }
+    String s = value.toString();
+    if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0
+        && s.indexOf('\r') < 0) {
+      return s;
+    }
+    return '"' + s.replace("\"", "\"\"") + '"';
+  }
+  
+  private static void writeJsonValue(JsonGenerator generator, Object value)
+      throws IOException {
+    if (value == null) {
+      generator.writeNull();
+    }
+    else if (value instanceof Number) {
+      generator.writeNumber(((Number) value).longValue());
+    }
+    else if (value instanceof Boolean) {
+      generator.writeBoolean((Boolean) value);
+    }
+    else {
+      generator.writeString(value.toString());
+    }
+  }
+}
\ No newline at end of file
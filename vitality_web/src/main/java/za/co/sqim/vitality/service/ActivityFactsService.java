@@ -0,0 +1,127 @@
+package za.co.sqim.vitality.service;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.stream.Stream;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import za.co.sqim.vitality.model.Activity;
+import za.co.sqim.vitality.model.ActivityFacts;
+import za.co.sqim.vitality.repository.ActivityRepository;
+import za.co.sqim.vitality.shard.ShardContext;
+
+/**
+ * Holds the ActivityFacts snapshot used by the reports, refreshed
+ * periodically so reports never hydrate Activity entities.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+public class ActivityFactsService
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(ActivityFactsService.class);
+  
+  @Autowired
+  private ActivityRepository activityRepository;
+  
+  private final DataSource dataSource;
+  
+  private final TransactionTemplate transactionTemplate;
+  
+  private final JdbcTemplate jdbcTemplate;
+  
+  private volatile ActivityFacts facts;
+  
+  @Autowired
+  public ActivityFactsService(PlatformTransactionManager transactionManager,
+      DataSource dataSource) {
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.transactionTemplate.setReadOnly(true);
+    this.dataSource = dataSource;
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.jdbcTemplate.setFetchSize(1000);
+  }
+  
+  /**
+   * The current snapshot, loaded on first use.
+   */
+  public ActivityFacts getFacts() {
+    ActivityFacts current = facts;
+    if (current == null) {
+      synchronized (this) {
+        current = facts;
+        if (current == null) {
+          current = load();
+          facts = current;
+        }
+      }
+    }
+    return current;
+  }
+  
+  @Scheduled(cron = "${vitality.activity-facts.refresh-cron:0 0 * * * *}")
+  public void refresh() {
+    if (facts != null) {
+      facts = load();
+    }
+  }
+  
+  /**
+   * Read a new snapshot from the database, from every shard.
+   */
+  public ActivityFacts load() {
+    long start = System.currentTimeMillis();
+    LocalDateTime now = LocalDateTime.now();
+    ActivityFacts.Builder builder = ActivityFacts.builder(now);
+    for (String shard : ShardContext.shardsOf(dataSource)) {
+      try (ShardContext.Scope scope = ShardContext.open(shard)) {
+        load(builder, now);
+      }
+    }
+    ActivityFacts loaded = builder.build();
+    logger.info("Loaded {} activity facts in {} ms", loaded.size(),
+        System.currentTimeMillis() - start);
+    return loaded;
+  }
+  
+  private void load(ActivityFacts.Builder builder, LocalDateTime now) {
+    transactionTemplate.execute(status -> {
+      try (Stream<Object[]> rows = activityRepository.streamFacts()) {
+        rows.forEach(row -> builder.add((Long) row[0], (Long) row[1],
+            (Long) row[2], (Long) row[3], ((Number) row[4]).intValue(),
+            Boolean.TRUE.equals(row[5]) ? (LocalDateTime) row[6] : null,
+            Activity.Status.of((Boolean) row[7], (Boolean) row[5],
+                (LocalDateTime) row[8], (LocalDateTime) row[9], now)));
+      }
+      // archived activities are closed, their status can't change any more
+      jdbcTemplate.query("select ID, LEVEL_ID, coalesce(GROUP_ID, LEVEL_ID), "
+          + "RECEIVING_USER, POINTS, POINTS_ASSIGNED, POINTS_ASSIGNED_DATE, "
+          + "COMPLETED, ACTIVE_FROM, ACTIVE_TO from "
+          + ActivityArchiveService.ARCHIVE_TABLE, rs -> {
+            boolean assigned = rs.getBoolean(6);
+            Timestamp assignedDate = rs.getTimestamp(7);
+            Timestamp activeFrom = rs.getTimestamp(9);
+            Timestamp activeTo = rs.getTimestamp(10);
+            builder.add(rs.getLong(1), rs.getLong(2), rs.getLong(3),
+                rs.getLong(4), rs.getInt(5), assigned && assignedDate != null
+                    ? assignedDate.toLocalDateTime() : null,
+                Activity.Status.of(rs.getBoolean(8), assigned,
+                    activeFrom == null ? null : activeFrom.toLocalDateTime(),
+                    activeTo == null ? null : activeTo.toLocalDateTime(),
+                    now));
+          });
+      return null;
+    });
+  }
+}
\ No newline at end of file
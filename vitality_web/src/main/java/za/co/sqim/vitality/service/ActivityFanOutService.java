@@ -0,0 +1,358 @@
+package za.co.sqim.vitality.service;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import za.co.sqim.vitality.event.ModelChangeEvent;
+import za.co.sqim.vitality.event.ModelChangePublisher;
+import za.co.sqim.vitality.model.Activity;
+import za.co.sqim.vitality.model.ActivityMaster;
+import za.co.sqim.vitality.model.Group;
+import za.co.sqim.vitality.model.GroupMember;
+import za.co.sqim.vitality.model.User;
+import za.co.sqim.vitality.repository.ActivityRepository;
+import za.co.sqim.vitality.repository.GroupMemberRepository;
+import za.co.sqim.vitality.repository.GroupRepository;
+import za.co.sqim.vitality.shard.ShardContext;
+
+/**
+ * Creates an Activity from an ActivityMaster for every enabled member of the
+ * master's group and its descendants.
+ * 
+ * Recipients are resolved with set based queries, one per level of the tree
+ * instead of walking the children and members collections. Activities are
+ * then inserted with JDBC batches in chunks, each chunk in its own
+ * transaction on a worker thread, so a failing chunk does not roll back the
+ * whole run.
+ * 
+ * A run is identified by a fan-out key stored on each Activity, calling
+ * {@link #fanOut} again with the same key only creates the activities that
+ * are still missing. The unique constraint on the fan-out key and receiving
+ * user makes this hold across nodes: a chunk that collides with an activity
+ * created concurrently by another attempt is rolled back and retried without
+ * the users that already have one.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+public class ActivityFanOutService
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(ActivityFanOutService.class);
+  
+  /** Keep IN lists well below the limits of the common databases. */
+  private static final int IN_LIST_SIZE = 500;
+  
+  // @formatter:off
+  private static final String INSERT = "insert into ACTIVITY (LEVEL_ID, "
+      + "GROUP_ID, RECEIVING_USER, CONSENTING_USER, ACTIVITY_MASTER, "
+      + "FAN_OUT_KEY, NAME, DESCRIPTION, POINTS, POINTS_EXPIRE_IN_DAYS, "
+      + "COMPLETED, POINTS_ASSIGNED, VERSION, CREATION_DATE, ACTIVE_FROM, "
+      + "ACTIVE_TO) values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0, ?, ?, ?)";
+  // @formatter:on
+  
+  @PersistenceContext
+  private EntityManager entityManager;
+  
+  @Autowired
+  private ActivityRepository activityRepository;
+  
+  @Autowired
+  private GroupRepository groupRepository;
+  
+  @Autowired
+  private GroupMemberRepository groupMemberRepository;
+  
+  @Autowired
+  private ActivityStatusCountService statusCountService;
+  
+  @Autowired
+  private ModelChangePublisher changePublisher;
+  
+  private final JdbcTemplate jdbcTemplate;
+  
+  private final TransactionTemplate transactionTemplate;
+  
+  private final ExecutorService executor;
+  
+  private final int chunkSize;
+  
+  /** Milliseconds the progress of a finished run is kept. */
+  @Value("${vitality.fan-out.retention:3600000}")
+  private long retention = 3600000;
+  
+  /**
+   * Progress of the runs started on this node, only for reporting, the
+   * database decides which activities still have to be created.
+   */
+  private final Map<String, FanOutProgress> runs = new ConcurrentHashMap<>();
+  
+  @Autowired
+  public ActivityFanOutService(DataSource dataSource,
+      PlatformTransactionManager transactionManager,
+      @Value("${vitality.fan-out.threads:4}") int threads,
+      @Value("${vitality.fan-out.chunk-size:500}") int chunkSize) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.executor = Executors.newFixedThreadPool(threads);
+    this.chunkSize = chunkSize;
+  }
+  
+  @PreDestroy
+  public void shutdown() {
+    executor.shutdown();
+  }
+  
+  /**
+   * Start (or resume) a fan-out run, returns immediately.
+   * 
+   * @param fanOutKey
+   *          Identifies the run, reuse it to retry a failed or interrupted run.
+   * @throws IllegalStateException
+   *           When a run with the same key is still busy on this node.
+   */
+  public FanOutProgress fanOut(String fanOutKey, ActivityMaster master,
+      User consentingUser) {
+    prune();
+    FanOutProgress running = runs.get(fanOutKey);
+    if (running != null && !running.isDone()) {
+      throw new IllegalStateException(
+          "Fan-out " + fanOutKey + " is already running.");
+    }
+    
+    Set<Long> existing = activityRepository
+        .findReceivingUserIdsByFanOutKey(fanOutKey);
+    List<Long> recipients = new ArrayList<>();
+    for (Long userId : findRecipientIds(master.getGroup())) {
+      if (!existing.contains(userId)) {
+        recipients.add(userId);
+      }
+    }
+    
+    FanOutProgress progress = new FanOutProgress(fanOutKey, recipients.size(),
+        existing.size());
+    runs.compute(fanOutKey, (key, previous) -> {
+      if (previous != null && !previous.isDone()) {
+        throw new IllegalStateException(
+            "Fan-out " + fanOutKey + " is already running.");
+      }
+      return progress;
+    });
+    logger.info("Fan-out {} of {}: {} recipients, {} skipped", fanOutKey,
+        master, recipients.size(), existing.size());
+    
+    List<CompletableFuture<Void>> chunks = new ArrayList<>();
+    for (List<Long> chunk : partition(recipients, chunkSize)) {
+      chunks.add(CompletableFuture.runAsync(ShardContext.wrap(
+          () -> createChunk(fanOutKey, master.getId(), consentingUser.getId(),
+              chunk, progress)),
+          executor));
+    }
+    CompletableFuture.allOf(chunks.toArray(new CompletableFuture[0]))
+        .whenComplete((v, e) -> {
+          logger.info("Fan-out {} finished: {} created, {} skipped, {} failed",
+              fanOutKey, progress.getCreatedCount(),
+              progress.getSkippedCount(), progress.getFailedCount());
+          progress.finish();
+        });
+    return progress;
+  }
+  
+  /**
+   * Progress of the last run with the given key, null if unknown to this node
+   * or finished longer than the retention ago.
+   */
+  public FanOutProgress getProgress(String fanOutKey) {
+    return runs.get(fanOutKey);
+  }
+  
+  /**
+   * Ids of the enabled members of the group and all of its enabled
+   * descendants, each user once.
+   */
+  public Set<Long> findRecipientIds(Group group) {
+    Set<Long> recipients = new HashSet<>();
+    if (group == null || group.isDisabled()) {
+      return recipients;
+    }
+    Set<Long> groupIds = new HashSet<>();
+    List<Long> frontier = new ArrayList<>();
+    frontier.add(group.getId());
+    while (!frontier.isEmpty()) {
+      groupIds.addAll(frontier);
+      List<Long> next = new ArrayList<>();
+      for (List<Long> parents : partition(frontier, IN_LIST_SIZE)) {
+        for (Long childId : groupRepository.findEnabledChildIds(parents)) {
+          if (!groupIds.contains(childId)) {
+            next.add(childId);
+          }
+        }
+      }
+      frontier = next;
+    }
+    for (List<Long> ids : partition(groupIds, IN_LIST_SIZE)) {
+      for (GroupMember member : groupMemberRepository.findByGroupIds(ids)) {
+        if (member.isEnabled()) {
+          recipients.add(member.getUser().getId());
+        }
+      }
+    }
+    return recipients;
+  }
+  
+  private void createChunk(String fanOutKey, Long masterId,
+      Long consentingUserId, List<Long> userIds, FanOutProgress progress) {
+    for (int attempt = 1;; attempt++) {
+      try {
+        int[] counts = transactionTemplate.execute(status -> insertChunk(
+            fanOutKey, masterId, consentingUserId, userIds));
+        progress.getCreated().addAndGet(counts[0]);
+        progress.getSkipped().addAndGet(counts[1]);
+        return;
+      }
+      catch (DataIntegrityViolationException e) {
+        if (attempt == 1) {
+          // another attempt of the same run created some of these activities
+          logger.debug("Fan-out {} collided, retrying a chunk", fanOutKey);
+          continue;
+        }
+        fail(fanOutKey, userIds, progress, e);
+        return;
+      }
+      catch (RuntimeException e) {
+        fail(fanOutKey, userIds, progress, e);
+        return;
+      }
+    }
+  }
+  
+  /**
+   * Insert the missing activities of a chunk.
+   * 
+   * @return The number of activities created and skipped.
+   */
+  private int[] insertChunk(String fanOutKey, Long masterId,
+      Long consentingUserId, List<Long> userIds) {
+    Set<Long> existing = new HashSet<>();
+    for (Object[] row : activityRepository.findFanOutRows(fanOutKey,
+        userIds)) {
+      existing.add((Long) row[1]);
+    }
+    ActivityMaster master = entityManager.find(ActivityMaster.class,
+        masterId);
+    User consentingUser = entityManager.getReference(User.class,
+        consentingUserId);
+    List<Long> missing = new ArrayList<>();
+    List<Object[]> values = new ArrayList<>();
+    Activity activity = null;
+    for (Long userId : userIds) {
+      if (!existing.contains(userId)) {
+        activity = createActivity(fanOutKey, master, consentingUser,
+            entityManager.getReference(User.class, userId));
+        missing.add(userId);
+        values.add(toValues(activity));
+      }
+    }
+    if (activity == null) {
+      return new int[] { 0, existing.size() };
+    }
+    jdbcTemplate.batchUpdate(INSERT, values);
+    
+    // rows inserted with SQL bypass the entity listeners
+    statusCountService.record(activity.createStatusSnapshot(),
+        missing.size());
+    for (Object[] row : activityRepository.findFanOutRows(fanOutKey,
+        missing)) {
+      changePublisher.publish(ModelChangeEvent.Type.ACTIVITY,
+          ModelChangeEvent.Action.SAVED, (Long) row[0], activity.getLevelId(),
+          (Long) row[1]);
+    }
+    return new int[] { missing.size(), existing.size() };
+  }
+  
+  private void fail(String fanOutKey, List<Long> userIds,
+      FanOutProgress progress, RuntimeException e) {
+    logger.error("Fan-out {} failed for a chunk of {} users", fanOutKey,
+        userIds.size(), e);
+    progress.getFailed().addAndGet(userIds.size());
+  }
+  
+  /**
+   * Forget the runs that finished longer than the retention ago.
+   */
+  private void prune() {
+    long before = System.currentTimeMillis() - retention;
+    runs.values().removeIf(
+        progress -> progress.isDone() && progress.getFinished() < before);
+  }
+  
+  protected Activity createActivity(String fanOutKey, ActivityMaster master,
+      User consentingUser, User receivingUser) {
+    Activity activity = new Activity();
+    activity.setFanOutKey(fanOutKey);
+    activity.setActivityMaster(master);
+    activity.setGroupAndLevel(master.getGroup());
+    activity.setReceivingUser(receivingUser);
+    activity.setConsentingUser(consentingUser);
+    activity.setName(master.getName());
+    activity.setDescription(master.getDescription());
+    activity.setPoints(master.getPoints());
+    return activity;
+  }
+  
+  private static Object[] toValues(Activity activity) {
+    return new Object[] { activity.getLevelId(), activity.getGroup().getId(),
+        activity.getReceivingUserId(), activity.getConsentingUserId(),
+        activity.getActivityMaster().getId(), activity.getFanOutKey(),
+        activity.getName(), activity.getDescription(), activity.getPoints(),
+        activity.getPointsExpireInDays(), activity.isCompleted(),
+        activity.isPointsAssigned(), timestamp(activity.getCreationDate()),
+        timestamp(activity.getActiveFrom()),
+        timestamp(activity.getActiveTo()) };
+  }
+  
+  private static Timestamp timestamp(LocalDateTime dateTime) {
+    return dateTime == null ? null : Timestamp.valueOf(dateTime);
+  }
+  
+  private static <T> List<List<T>> partition(Collection<T> items, int size) {
+    List<List<T>> partitions = new ArrayList<>();
+    List<T> current = new ArrayList<>(Math.min(size, items.size()));
+    for (T item : items) {
+      current.add(item);
+      if (current.size() == size) {
+        partitions.add(current);
+        current = new ArrayList<>(size);
+      }
+    }
+    if (!current.isEmpty()) {
+      partitions.add(current);
+    }
+    return partitions;
+  }
+}
\ No newline at end of file
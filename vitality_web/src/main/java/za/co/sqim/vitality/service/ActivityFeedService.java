@@ -0,0 +1,271 @@
+package za.co.sqim.vitality.service;
+
+import java.io.IOException;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArraySet;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import za.co.sqim.vitality.event.ModelChangeEvent;
+import za.co.sqim.vitality.event.ModelChangePublisher;
+import za.co.sqim.vitality.event.ModelChangeSubscriber;
+import za.co.sqim.vitality.model.Milestone;
+import za.co.sqim.vitality.model.projection.ActivityListItem;
+import za.co.sqim.vitality.repository.ActivityRepository;
+import za.co.sqim.vitality.repository.MilestoneRepository;
+import lombok.Data;
+
+/**
+ * Pushes activity changes, points and milestone achievements to the open
+ * server-sent event streams of the receiving user.
+ * 
+ * Streams are asynchronous requests, an open stream holds a connection but
+ * no thread. Only events for users with an open stream on this node are
+ * loaded, sending happens on a small pool so a slow client can't hold up the
+ * event dispatcher. A comment is sent every heartbeat interval to find
+ * streams whose client went away.
+ * 
+ * The pool has a bounded queue. Events are coalesced per user: while an
+ * event for the same user and activity, milestone or level is still queued
+ * no other one is queued, the queued one loads the latest state when it
+ * runs. When the queue is full the event is dropped, the client gets the
+ * state with the next event.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+public class ActivityFeedService implements ModelChangeSubscriber
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(ActivityFeedService.class);
+  
+  @Autowired
+  private ModelChangePublisher changePublisher;
+  
+  @Autowired
+  private ActivityRepository activityRepository;
+  
+  @Autowired
+  private MilestoneRepository milestoneRepository;
+  
+  @Autowired
+  private PointsAssignmentService pointsAssignmentService;
+  
+  private final Map<Long, Set<SseEmitter>> emitters = new ConcurrentHashMap<>();
+  
+  private final ThreadPoolExecutor sender;
+  
+  /** The events queued and not started yet. */
+  private final Set<Pending> pending = ConcurrentHashMap.newKeySet();
+  
+  private final AtomicLong dropped = new AtomicLong();
+  
+  /** Zero keeps a stream open until the client closes it. */
+  @Value("${vitality.feed.timeout:0}")
+  private long timeout = 0;
+  
+  @Autowired
+  public ActivityFeedService(@Value("${vitality.feed.threads:4}") int threads,
+      @Value("${vitality.feed.queue-size:10000}") int queueSize) {
+    this.sender = new ThreadPoolExecutor(threads, threads, 0,
+        TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(queueSize),
+        new ThreadPoolExecutor.AbortPolicy());
+  }
+  
+  @PreDestroy
+  public void shutdown() {
+    sender.shutdown();
+    for (Set<SseEmitter> streams : emitters.values()) {
+      streams.forEach(SseEmitter::complete);
+    }
+  }
+  
+  /**
+   * Points for a level, the data of a "points" event.
+   */
+  @Data
+  public static class Points
+  {
+    private final Long levelId;
+    
+    private final long points;
+  }
+  
+  /**
+   * An event queued for a user: the activity, milestone or level it is about.
+   */
+  @Data
+  private static class Pending
+  {
+    private final Long userId;
+    
+    private final ModelChangeEvent.Type type;
+    
+    private final Long id;
+  }
+  
+  /**
+   * Open a stream for a receiving user.
+   */
+  public SseEmitter subscribe(Long userId) {
+    return subscribe(userId, new SseEmitter(timeout));
+  }
+  
+  SseEmitter subscribe(Long userId, SseEmitter emitter) {
+    emitters.compute(userId, (k, streams) -> {
+      Set<SseEmitter> current = streams == null ? new CopyOnWriteArraySet<>()
+          : streams;
+      current.add(emitter);
+      return current;
+    });
+    emitter.onCompletion(() -> remove(userId, emitter));
+    emitter.onTimeout(() -> remove(userId, emitter));
+    return emitter;
+  }
+  
+  /**
+   * Number of open streams on this node.
+   */
+  public int getStreamCount() {
+    return emitters.values().stream().mapToInt(Set::size).sum();
+  }
+  
+  /**
+   * Number of events dropped because the queue was full.
+   */
+  public long getDroppedCount() {
+    return dropped.get();
+  }
+  
+  @PostConstruct
+  public void register() {
+    changePublisher.subscribe(this);
+  }
+  
+  @Override
+  public void onChange(ModelChangeEvent event) {
+    switch (event.getType()) {
+      case ACTIVITY:
+        if (event.getAction() == ModelChangeEvent.Action.SAVED
+            && hasStreams(event.getUserId())) {
+          queue(new Pending(event.getUserId(), event.getType(),
+              event.getId()), () -> {
+                ActivityListItem item = activityRepository
+                    .findListItemById(event.getId());
+                if (item != null) {
+                  send(event.getUserId(), "activity", item);
+                }
+              });
+        }
+        break;
+      case POINTS:
+        // the id of a POINTS event is the user
+        if (hasStreams(event.getId())) {
+          queue(new Pending(event.getId(), event.getType(),
+              event.getLevelId()), () -> send(event.getId(), "points",
+                  new Points(event.getLevelId(), pointsAssignmentService
+                      .getPoints(event.getId(), event.getLevelId()))));
+        }
+        break;
+      case MILESTONE_ACHIEVED:
+        if (hasStreams(event.getUserId())) {
+          queue(new Pending(event.getUserId(), event.getType(),
+              event.getId()), () -> {
+                Milestone milestone = milestoneRepository
+                    .findOne(event.getId());
+                if (milestone != null) {
+                  send(event.getUserId(), "milestone", milestone);
+                }
+              });
+        }
+        break;
+      default:
+        break;
+    }
+  }
+  
+  @Scheduled(fixedDelayString = "${vitality.feed.heartbeat-interval:30000}")
+  public void heartbeat() {
+    for (Map.Entry<Long, Set<SseEmitter>> entry : emitters.entrySet()) {
+      for (SseEmitter emitter : entry.getValue()) {
+        try {
+          emitter.send(SseEmitter.event().comment("heartbeat"));
+        }
+        catch (IOException | IllegalStateException e) {
+          fail(entry.getKey(), emitter, e);
+        }
+      }
+    }
+  }
+  
+  /**
+   * Queue sending an event unless the same one is queued already, drop it
+   * when the queue is full.
+   */
+  private void queue(Pending event, Runnable send) {
+    if (!pending.add(event)) {
+      return;
+    }
+    try {
+      sender.execute(() -> {
+        // a change from now on queues again, this one may load it too late
+        pending.remove(event);
+        send.run();
+      });
+    }
+    catch (RejectedExecutionException e) {
+      pending.remove(event);
+      dropped.incrementAndGet();
+      logger.debug("Dropped {}, the activity stream queue is full", event);
+    }
+  }
+  
+  private boolean hasStreams(Long userId) {
+    return userId != null && emitters.containsKey(userId);
+  }
+  
+  private void send(Long userId, String name, Object data) {
+    Set<SseEmitter> streams = emitters.get(userId);
+    if (streams == null) {
+      return;
+    }
+    for (SseEmitter emitter : streams) {
+      try {
+        emitter.send(SseEmitter.event().name(name).data(data));
+      }
+      catch (IOException | IllegalStateException e) {
+        fail(userId, emitter, e);
+      }
+    }
+  }
+  
+  private void fail(Long userId, SseEmitter emitter, Exception e) {
+    logger.debug("Closing the activity stream of user {}: {}", userId,
+        e.getMessage());
+    remove(userId, emitter);
+    emitter.completeWithError(e);
+  }
+  
+  private void remove(Long userId, SseEmitter emitter) {
+    emitters.computeIfPresent(userId, (k, streams) -> {
+      streams.remove(emitter);
+      return streams.isEmpty() ? null : streams;
+    });
+  }
+}
\ No newline at end of file
@@ -0,0 +1,621 @@
+package za.co.sqim.vitality.service;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.stream.Stream;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+
+import org.hibernate.LockOptions;
+import org.hibernate.action.spi.BeforeTransactionCompletionProcess;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.engine.spi.SessionFactoryImplementor;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.event.spi.EventSource;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import za.co.sqim.vitality.model.Activity;
+import za.co.sqim.vitality.model.Activity.StatusSnapshot;
+import za.co.sqim.vitality.model.ActivityStatusCount;
+import za.co.sqim.vitality.model.EntityChangeListener;
+import za.co.sqim.vitality.model.Group;
+import za.co.sqim.vitality.repository.ActivityRepository;
+import za.co.sqim.vitality.repository.ActivityStatusCountRepository;
+import za.co.sqim.vitality.repository.ArchivedActivityRepository;
+import za.co.sqim.vitality.repository.GroupRepository;
+import za.co.sqim.vitality.shard.ShardContext;
+import lombok.Data;
+
+/**
+ * Maintains the ActivityStatusCount table.
+ * 
+ * The counts hold the status of every activity as of the sweep moment stored
+ * in the ActivityStatusSweep of its level. Changes made through JPA are
+ * collected per transaction and applied in that transaction, after its last
+ * flush, with the statuses at the sweep moment. Activities that become available
+ * (activeFrom) or run out (activeTo) change status without being written,
+ * those are moved by a periodic sweep that advances the sweep moment. A
+ * nightly rebuild recalculates everything to correct any drift, e.g. from
+ * changes made outside of JPA. Archived activities are included, archiving
+ * doesn't change the counts.
+ * 
+ * Every level has its own sweep row. Applying changes locks the rows of the
+ * levels it touches shared, the sweep and the rebuild lock one level at a
+ * time exclusively, so on all nodes a change is either counted before a sweep
+ * or rebuild of its level or seen by it, and writers of different levels
+ * never wait for each other.
+ * 
+ * The count rows of a group, and the sweep row of a level, are inserted in
+ * the transaction that creates it, no other transaction knows its id yet.
+ * Rows of groups created without JPA are inserted on start up and by the
+ * sweep and rebuild, never in the transaction of a caller. Changes to a group
+ * without rows are left to the rebuild.
+ * 
+ * The sweep and rebuild only run on nodes with
+ * vitality.status-counts.scheduled, which is off by default, enable it on
+ * one node.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+public class ActivityStatusCountService implements EntityChangeListener.Observer
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(ActivityStatusCountService.class);
+  
+  // @formatter:off
+  private static final String SELECT_SWEPT_UNTIL = "select SWEPT_UNTIL "
+      + "from ACTIVITY_STATUS_SWEEP where LEVEL_ID = ?";
+  
+  private static final String SELECT_SWEPT_LEVELS = "select LEVEL_ID "
+      + "from ACTIVITY_STATUS_SWEEP order by LEVEL_ID";
+  
+  private static final String UPDATE_SWEPT_UNTIL = "update "
+      + "ACTIVITY_STATUS_SWEEP set SWEPT_UNTIL = ? where LEVEL_ID = ?";
+  
+  private static final String INSERT_SWEPT_UNTIL = "insert into "
+      + "ACTIVITY_STATUS_SWEEP (LEVEL_ID, SWEPT_UNTIL) values (?, ?)";
+  
+  private static final String SELECT_STATUSES = "select STATUS from "
+      + "ACTIVITY_STATUS_COUNTS where GROUP_ID = ?";
+  
+  private static final String SELECT_COUNTED_GROUPS = "select distinct "
+      + "GROUP_ID from ACTIVITY_STATUS_COUNTS";
+  
+  private static final String INSERT_COUNT = "insert into "
+      + "ACTIVITY_STATUS_COUNTS (LEVEL_ID, GROUP_ID, STATUS, ACTIVITY_COUNT) "
+      + "values (?, ?, ?, 0)";
+  
+  private static final String INCREMENT_COUNT = "update ACTIVITY_STATUS_COUNTS "
+      + "set ACTIVITY_COUNT = ACTIVITY_COUNT + ? "
+      + "where GROUP_ID = ? and STATUS = ?";
+  
+  private static final String RESET_COUNTS = "update ACTIVITY_STATUS_COUNTS "
+      + "set ACTIVITY_COUNT = 0 where LEVEL_ID = ?";
+  
+  private static final String SET_COUNT = "update ACTIVITY_STATUS_COUNTS "
+      + "set ACTIVITY_COUNT = ? where GROUP_ID = ? and STATUS = ?";
+  // @formatter:on
+  
+  /**
+   * A count row, ordered so every transaction updates rows in the same order
+   * and two of them can't deadlock.
+   */
+  @Data
+  private static class Key implements Comparable<Key> {
+    
+    private final Long levelId;
+    
+    private final Long groupId;
+    
+    private final Activity.Status status;
+    
+    @Override
+    public int compareTo(Key other) {
+      int result = groupId.compareTo(other.groupId);
+      return result != 0 ? result : status.compareTo(other.status);
+    }
+  }
+  
+  @PersistenceContext
+  private EntityManager entityManager;
+  
+  @Autowired
+  private EntityManagerFactory entityManagerFactory;
+  
+  @Autowired
+  private ActivityRepository activityRepository;
+  
+  @Autowired
+  private ArchivedActivityRepository archivedRepository;
+  
+  @Autowired
+  private ActivityStatusCountRepository countRepository;
+  
+  @Autowired
+  private GroupRepository groupRepository;
+  
+  /** Only enable the sweep and rebuild on one node. */
+  @Value("${vitality.status-counts.scheduled:false}")
+  private boolean scheduled = false;
+  
+  private final DataSource dataSource;
+  
+  private final JdbcTemplate jdbcTemplate;
+  
+  private final TransactionTemplate transactionTemplate;
+  
+  private Dialect dialect;
+  
+  @Autowired
+  public ActivityStatusCountService(DataSource dataSource,
+      PlatformTransactionManager transactionManager) {
+    this.dataSource = dataSource;
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.transactionTemplate.setPropagationBehavior(
+        TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+  }
+  
+  @PostConstruct
+  public void register() {
+    dialect = entityManagerFactory.unwrap(SessionFactoryImplementor.class)
+        .getJdbcServices().getDialect();
+    for (String shard : ShardContext.shardsOf(dataSource)) {
+      try (ShardContext.Scope scope = ShardContext.open(shard)) {
+        createMissingRows();
+      }
+    }
+    EntityChangeListener.register(this);
+  }
+  
+  @PreDestroy
+  public void unregister() {
+    EntityChangeListener.unregister(this);
+  }
+  
+  /**
+   * Counts per status for a group, statuses without activities are 0.
+   */
+  @Transactional(readOnly = true)
+  public Map<Activity.Status, Long> getCountsForGroup(Long groupId) {
+    Map<Activity.Status, Long> counts = emptyCounts();
+    for (ActivityStatusCount count : countRepository.findByGroupId(groupId)) {
+      counts.put(count.getStatus(), count.getCount());
+    }
+    return counts;
+  }
+  
+  /**
+   * Counts per status for a whole level, statuses without activities are 0.
+   */
+  @Transactional(readOnly = true)
+  public Map<Activity.Status, Long> getCountsForLevel(Long levelId) {
+    Map<Activity.Status, Long> counts = emptyCounts();
+    for (Object[] row : countRepository.sumByLevelId(levelId)) {
+      counts.put((Activity.Status) row[0], ((Number) row[1]).longValue());
+    }
+    return counts;
+  }
+  
+  @Override
+  public void persisted(Object entity) {
+    if (entity instanceof Group) {
+      created((Group) entity);
+    }
+    if (entity instanceof Activity) {
+      Activity activity = (Activity) entity;
+      record(null, activity.createStatusSnapshot());
+    }
+  }
+  
+  @Override
+  public void updated(Object entity) {
+    if (entity instanceof Activity) {
+      Activity activity = (Activity) entity;
+      record(activity.getStatusSnapshot(), activity.createStatusSnapshot());
+    }
+  }
+  
+  @Override
+  public void removed(Object entity) {
+    if (entity instanceof Activity) {
+      Activity activity = (Activity) entity;
+      record(activity.getStatusSnapshot(), null);
+    }
+  }
+  
+  /**
+   * Record that an activity changed from one state to another, null for
+   * none. Applied before the current transaction commits (immediately if
+   * there is no transaction).
+   */
+  void record(StatusSnapshot before, StatusSnapshot after) {
+    if (before != null && before.equals(after)) {
+      return;
+    }
+    if (before != null) {
+      record(before, -1);
+    }
+    if (after != null) {
+      record(after, 1);
+    }
+  }
+  
+  /**
+   * Record that delta activities with the given state were added (or
+   * removed), for changes made without JPA.
+   */
+  void record(StatusSnapshot snapshot, long delta) {
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      Deltas deltas = new Deltas();
+      deltas.values.put(snapshot, delta);
+      transactionTemplate.execute(status -> {
+        deltas.apply();
+        return null;
+      });
+      return;
+    }
+    currentDeltas().values.merge(snapshot, delta, Long::sum);
+  }
+  
+  /**
+   * Create the rows of a new group with the transaction that persists it.
+   */
+  private void created(Group group) {
+    Group level = group.getLevel();
+    if (level == null) {
+      return;
+    }
+    Key key = new Key(level.getId(), group.getId(), null);
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      transactionTemplate.execute(status -> {
+        createRows(key);
+        return null;
+      });
+      return;
+    }
+    currentDeltas().created.add(key);
+  }
+  
+  private Deltas currentDeltas() {
+    Deltas deltas = (Deltas) TransactionSynchronizationManager
+        .getResource(Deltas.class);
+    if (deltas == null) {
+      deltas = new Deltas();
+      TransactionSynchronizationManager.bindResource(Deltas.class, deltas);
+      TransactionSynchronizationManager.registerSynchronization(deltas);
+      // runs after the flush that commits, the last entity changes included
+      entityManager.unwrap(EventSource.class).getActionQueue()
+          .registerProcess(deltas);
+    }
+    return deltas;
+  }
+  
+  /**
+   * Move the activities that became available or ran out since the last
+   * sweep to their new status, on every shard, one level at a time.
+   */
+  public void sweep() {
+    for (String shard : ShardContext.shardsOf(dataSource)) {
+      try (ShardContext.Scope scope = ShardContext.open(shard)) {
+        sweepShard();
+      }
+    }
+  }
+  
+  /**
+   * Recalculate all counts from the activities, on every shard, one level at
+   * a time.
+   */
+  public void rebuild() {
+    int size = 0;
+    for (String shard : ShardContext.shardsOf(dataSource)) {
+      try (ShardContext.Scope scope = ShardContext.open(shard)) {
+        size += rebuildShard();
+      }
+    }
+    logger.info("Rebuilt {} activity status counts", size);
+  }
+  
+  @Scheduled(fixedDelayString = "${vitality.status-counts.sweep-interval:60000}")
+  public void scheduledSweep() {
+    if (scheduled) {
+      sweep();
+    }
+  }
+  
+  @Scheduled(cron = "${vitality.status-counts.rebuild-cron:0 30 2 * * *}")
+  public void scheduledRebuild() {
+    if (scheduled) {
+      rebuild();
+    }
+  }
+  
+  /**
+   * Insert the sweep rows of the levels and the count rows of the groups
+   * that were created without JPA, outside of any caller's transaction. A row
+   * another node inserted first is simply used.
+   */
+  private void createMissingRows() {
+    Set<Long> swept = new HashSet<>(
+        jdbcTemplate.queryForList(SELECT_SWEPT_LEVELS, Long.class));
+    Set<Long> counted = new HashSet<>(
+        jdbcTemplate.queryForList(SELECT_COUNTED_GROUPS, Long.class));
+    Map<Long, Long> parents = new HashMap<>();
+    Set<Long> levels = new HashSet<>();
+    for (Object[] row : groupRepository.findNameIndexRows()) {
+      parents.put((Long) row[0], (Long) row[1]);
+      if (((Number) row[5]).intValue() == 1) {
+        levels.add((Long) row[0]);
+      }
+    }
+    Timestamp now = Timestamp.valueOf(LocalDateTime.now());
+    for (Long levelId : levels) {
+      if (!swept.contains(levelId)) {
+        try {
+          jdbcTemplate.update(INSERT_SWEPT_UNTIL, levelId, now);
+        }
+        catch (DataIntegrityViolationException e) {
+          // created by another node
+        }
+      }
+    }
+    for (Long groupId : parents.keySet()) {
+      Long levelId = levelOf(groupId, parents, levels);
+      if (levelId != null && !counted.contains(groupId)) {
+        for (Activity.Status status : Activity.Status.values()) {
+          try {
+            jdbcTemplate.update(INSERT_COUNT, levelId, groupId, status.name());
+          }
+          catch (DataIntegrityViolationException e) {
+            // created by another node
+          }
+        }
+      }
+    }
+  }
+  
+  /**
+   * Insert the count rows of a new group, and the sweep row if it is a
+   * level, in the current transaction.
+   */
+  private void createRows(Key group) {
+    if (group.getLevelId().equals(group.getGroupId())) {
+      jdbcTemplate.update(INSERT_SWEPT_UNTIL, group.getLevelId(),
+          Timestamp.valueOf(LocalDateTime.now()));
+    }
+    List<Object[]> args = new ArrayList<>();
+    for (Activity.Status status : Activity.Status.values()) {
+      args.add(new Object[] { group.getLevelId(), group.getGroupId(),
+          status.name() });
+    }
+    jdbcTemplate.batchUpdate(INSERT_COUNT, args);
+  }
+  
+  private void sweepShard() {
+    for (Long levelId : jdbcTemplate.queryForList(SELECT_SWEPT_LEVELS,
+        Long.class)) {
+      transactionTemplate.execute(status -> {
+        LocalDateTime from = lockSweep(levelId, true);
+        LocalDateTime to = LocalDateTime.now();
+        Map<Key, Long> deltas = new TreeMap<>();
+        for (Object[] row : activityRepository
+            .findStatusStatesChangingBetween(levelId, from, to)) {
+          Activity.Status before = statusOf(row, from);
+          Activity.Status after = statusOf(row, to);
+          if (before != after) {
+            deltas.merge(new Key((Long) row[0], (Long) row[1], before), -1L,
+                Long::sum);
+            deltas.merge(new Key((Long) row[0], (Long) row[1], after), 1L,
+                Long::sum);
+          }
+        }
+        deltas.values().removeIf(delta -> delta == 0);
+        createMissingRows(deltas.keySet());
+        jdbcTemplate.batchUpdate(INCREMENT_COUNT, toArgs(deltas));
+        jdbcTemplate.update(UPDATE_SWEPT_UNTIL, Timestamp.valueOf(to),
+            levelId);
+        return null;
+      });
+    }
+  }
+  
+  private int rebuildShard() {
+    createMissingRows();
+    int size = 0;
+    for (Long levelId : jdbcTemplate.queryForList(SELECT_SWEPT_LEVELS,
+        Long.class)) {
+      size += transactionTemplate.execute(status -> {
+        lockSweep(levelId, true);
+        LocalDateTime now = LocalDateTime.now();
+        Map<Key, Long> counts = new TreeMap<>();
+        // archived activities are counted too, they are closed for good
+        try (Stream<Object[]> rows = Stream.concat(
+            activityRepository.streamStatusStates(levelId),
+            archivedRepository.streamStatusStates(levelId))) {
+          rows.forEach(row -> counts.merge(
+              new Key((Long) row[0], (Long) row[1], statusOf(row, now)), 1L,
+              Long::sum));
+        }
+        createMissingRows(counts.keySet());
+        jdbcTemplate.update(RESET_COUNTS, levelId);
+        jdbcTemplate.batchUpdate(SET_COUNT, toArgs(counts));
+        jdbcTemplate.update(UPDATE_SWEPT_UNTIL, Timestamp.valueOf(now),
+            levelId);
+        return counts.size();
+      });
+    }
+    return size;
+  }
+  
+  /**
+   * Apply the changes of a transaction to one level in that transaction.
+   */
+  private void applyToLevel(Long levelId,
+      Map<StatusSnapshot, Long> deltas) {
+    LocalDateTime at = lockSweep(levelId, false);
+    if (at == null) {
+      logger.warn("No activity status sweep row for level {}, its counts "
+          + "are corrected by the next rebuild", levelId);
+      return;
+    }
+    Map<Key, Long> counts = new TreeMap<>();
+    for (Map.Entry<StatusSnapshot, Long> entry : deltas.entrySet()) {
+      StatusSnapshot snapshot = entry.getKey();
+      counts.merge(new Key(levelId, snapshot.getGroupId(),
+          snapshot.getStatusAt(at)), entry.getValue(), Long::sum);
+    }
+    counts.values().removeIf(delta -> delta == 0);
+    if (counts.isEmpty()) {
+      return;
+    }
+    int[] updated = jdbcTemplate.batchUpdate(INCREMENT_COUNT, toArgs(counts));
+    for (int count : updated) {
+      if (count == 0) {
+        logger.warn("Missing activity status counts in level {}, they are "
+            + "created by the next sweep and corrected by the next rebuild",
+            levelId);
+        break;
+      }
+    }
+  }
+  
+  /**
+   * Insert the count rows that don't exist yet, only from the sweep and
+   * rebuild which hold the sweep row of the level exclusively.
+   */
+  private void createMissingRows(Set<Key> keys) {
+    Map<Long, List<String>> existing = new HashMap<>();
+    List<Object[]> missing = new ArrayList<>();
+    for (Key key : keys) {
+      List<String> statuses = existing.computeIfAbsent(key.getGroupId(),
+          groupId -> jdbcTemplate.queryForList(SELECT_STATUSES, String.class,
+              groupId));
+      if (!statuses.contains(key.getStatus().name())) {
+        missing.add(new Object[] { key.getLevelId(), key.getGroupId(),
+            key.getStatus().name() });
+      }
+    }
+    jdbcTemplate.batchUpdate(INSERT_COUNT, missing);
+  }
+  
+  /**
+   * Lock the sweep row of a level and read the moment its counts are at,
+   * null if the level has no sweep row.
+   */
+  private LocalDateTime lockSweep(Long levelId, boolean exclusive) {
+    String lock = exclusive ? dialect.getForUpdateString()
+        : dialect.getReadLockString(LockOptions.WAIT_FOREVER);
+    List<Timestamp> sweptUntil = jdbcTemplate.queryForList(
+        SELECT_SWEPT_UNTIL + lock, Timestamp.class, levelId);
+    return sweptUntil.isEmpty() ? null : sweptUntil.get(0).toLocalDateTime();
+  }
+  
+  /**
+   * The level of a group from the [id, parentId] pairs, null if it has none.
+   */
+  private static Long levelOf(Long groupId, Map<Long, Long> parents,
+      Set<Long> levels) {
+    Set<Long> seen = new HashSet<>();
+    for (Long id = groupId; id != null && seen.add(id); id = parents.get(id)) {
+      if (levels.contains(id)) {
+        return id;
+      }
+    }
+    return null;
+  }
+  
+  private static List<Object[]> toArgs(Map<Key, Long> values) {
+    List<Object[]> args = new ArrayList<>(values.size());
+    for (Map.Entry<Key, Long> entry : values.entrySet()) {
+      Key key = entry.getKey();
+      args.add(new Object[] { entry.getValue(), key.getGroupId(),
+          key.getStatus().name() });
+    }
+    return args;
+  }
+  
+  private static Activity.Status statusOf(Object[] row, LocalDateTime at) {
+    return Activity.Status.of((Boolean) row[2], (Boolean) row[3],
+        (LocalDateTime) row[4], (LocalDateTime) row[5], at);
+  }
+  
+  private static Map<Activity.Status, Long> emptyCounts() {
+    Map<Activity.Status, Long> counts = new EnumMap<>(Activity.Status.class);
+    for (Activity.Status status : Activity.Status.values()) {
+      counts.put(status, 0L);
+    }
+    return counts;
+  }
+  
+  /**
+   * The changes collected in one transaction.
+   */
+  private class Deltas extends TransactionSynchronizationAdapter
+      implements BeforeTransactionCompletionProcess
+  {
+    private final Map<StatusSnapshot, Long> values = new HashMap<>();
+    
+    private final List<Key> created = new ArrayList<>();
+    
+    @Override
+    public void doBeforeTransactionCompletion(SessionImplementor session) {
+      apply();
+    }
+    
+    /**
+     * Create the rows of the new groups, then apply the changes with the
+     * statuses at the sweep moment of their level.
+     */
+    private void apply() {
+      for (Key key : created) {
+        createRows(key);
+      }
+      Map<Long, Map<StatusSnapshot, Long>> levels = new TreeMap<>();
+      for (Map.Entry<StatusSnapshot, Long> entry : values.entrySet()) {
+        StatusSnapshot snapshot = entry.getKey();
+        if (snapshot.getGroupId() != null && snapshot.getLevelId() != null) {
+          levels.computeIfAbsent(snapshot.getLevelId(), id -> new HashMap<>())
+              .put(snapshot, entry.getValue());
+        }
+      }
+      // levels in id order, so two transactions can't deadlock on them
+      for (Map.Entry<Long, Map<StatusSnapshot, Long>> level : levels
+          .entrySet()) {
+        applyToLevel(level.getKey(), level.getValue());
+      }
+    }
+    
+    @Override
+    public void afterCompletion(int status) {
+      TransactionSynchronizationManager.unbindResourceIfPossible(Deltas.class);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,80 @@
+package za.co.sqim.vitality.service;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import lombok.Getter;
+
+/**
+ * Progress of one ActivityMaster fan-out run, safe to read from any thread.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+public class FanOutProgress
+{
+  private final String fanOutKey;
+  
+  /** Recipients that still needed an activity when the run started. */
+  private final int total;
+  
+  /** Recipients that already had an activity when the run started. */
+  private final int initiallySkipped;
+  
+  private final AtomicInteger created = new AtomicInteger();
+  
+  /** Recipients that already had an activity from another attempt. */
+  private final AtomicInteger skipped = new AtomicInteger();
+  
+  private final AtomicInteger failed = new AtomicInteger();
+  
+  private final CompletableFuture<FanOutProgress> future =
+      new CompletableFuture<>();
+  
+  /** Epoch milliseconds the run finished, 0 while running. */
+  private volatile long finished;
+  
+  /**
+   * @param skipped
+   *          Recipients that already had an activity when the run started.
+   */
+  public FanOutProgress(String fanOutKey, int total, int skipped) {
+    this.fanOutKey = fanOutKey;
+    this.total = total;
+    this.initiallySkipped = skipped;
+    this.skipped.set(skipped);
+  }
+  
+  public int getCreatedCount() {
+    return created.get();
+  }
+  
+  public int getSkippedCount() {
+    return skipped.get();
+  }
+  
+  public int getFailedCount() {
+    return failed.get();
+  }
+  
+  public boolean isDone() {
+    return future.isDone();
+  }
+  
+  /**
+   * Percentage of recipients handled, failed ones included.
+   */
+  public int getPercentage() {
+    if (total == 0) {
+      return 100;
+    }
+    long handled = created.get() + failed.get() + skipped.get()
+        - initiallySkipped;
+    return (int) (100L * handled / total);
+  }
+  
+  void finish() {
+    finished = System.currentTimeMillis();
+    future.complete(this);
+  }
+}
\ No newline at end of file
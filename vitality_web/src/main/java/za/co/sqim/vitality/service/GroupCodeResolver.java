@@ -0,0 +1,170 @@
+package za.co.sqim.vitality.service;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+
+import za.co.sqim.vitality.event.ModelChangeEvent;
+import za.co.sqim.vitality.event.ModelChangePublisher;
+import za.co.sqim.vitality.event.ModelChangeSubscriber;
+import za.co.sqim.vitality.repository.GroupRepository;
+
+/**
+ * Resolves the codes in group URLs to ids without a query.
+ * 
+ * All codes are loaded at startup and kept current from the GROUP change
+ * events of all nodes. A code that is not known yet, for example of a group
+ * created on another node whose event has not arrived, is looked up in the
+ * database and cached.
+ * 
+ * The codes are loaded once the application is ready, until then every code
+ * is looked up. A load builds new maps and swaps them in at once, lookups
+ * never see them half filled. Changes that arrive while the codes are read
+ * go into both the current and the new maps and win over the rows read.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+public class GroupCodeResolver implements ModelChangeSubscriber
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(GroupCodeResolver.class);
+  
+  @Autowired
+  private ModelChangePublisher changePublisher;
+  
+  @Autowired
+  private GroupRepository groupRepository;
+  
+  private volatile Codes current = new Codes();
+  
+  /** The maps being loaded, null when not loading. */
+  private Codes loading;
+  
+  /**
+   * The codes by id and the ids by code.
+   */
+  private static class Codes
+  {
+    private final Map<String, Long> ids = new ConcurrentHashMap<>();
+    
+    /** The reverse of ids, to drop the old code of a changed group. */
+    private final Map<Long, String> codes = new ConcurrentHashMap<>();
+    
+    /** The groups changed while loading, their rows are out of date. */
+    private final Set<Long> changed = new HashSet<>();
+    
+    private void put(Long id, String code) {
+      String previous = codes.put(id, code);
+      if (previous != null && !previous.equals(code)) {
+        ids.remove(previous, id);
+      }
+      ids.put(code, id);
+    }
+    
+    private void remove(Long id) {
+      String code = codes.remove(id);
+      if (code != null) {
+        ids.remove(code, id);
+      }
+    }
+  }
+  
+  @EventListener(ApplicationReadyEvent.class)
+  public void load() {
+    Codes loaded = new Codes();
+    synchronized (this) {
+      loading = loaded;
+    }
+    List<Object[]> rows = groupRepository.findCodeRows();
+    synchronized (this) {
+      for (Object[] row : rows) {
+        if (row[1] != null && !loaded.changed.contains(row[0])) {
+          loaded.put((Long) row[0], (String) row[1]);
+        }
+      }
+      loaded.changed.clear();
+      current = loaded;
+      loading = null;
+    }
+    logger.info("Cached {} group codes", loaded.ids.size());
+  }
+  
+  /**
+   * The id of the group with the given code, null if there is none.
+   */
+  public Long resolve(String code) {
+    if (code == null) {
+      return null;
+    }
+    Long id = current.ids.get(code);
+    if (id == null) {
+      id = groupRepository.findIdByCode(code);
+      if (id != null) {
+        put(id, code);
+      }
+    }
+    return id;
+  }
+  
+  /**
+   * The code of the group with the given id, null if there is none.
+   */
+  public String getCode(Long id) {
+    String code = current.codes.get(id);
+    if (code == null) {
+      code = groupRepository.findCodeById(id);
+      if (code != null) {
+        put(id, code);
+      }
+    }
+    return code;
+  }
+  
+  @PostConstruct
+  public void register() {
+    changePublisher.subscribe(this);
+  }
+  
+  @Override
+  public void onChange(ModelChangeEvent event) {
+    if (event.getType() != ModelChangeEvent.Type.GROUP) {
+      return;
+    }
+    String code = event.getAction() == ModelChangeEvent.Action.REMOVED ? null
+        : groupRepository.findCodeById(event.getId());
+    if (code == null) {
+      remove(event.getId());
+    }
+    else {
+      put(event.getId(), code);
+    }
+  }
+  
+  private synchronized void put(Long id, String code) {
+    current.put(id, code);
+    if (loading != null) {
+      loading.changed.add(id);
+      loading.put(id, code);
+    }
+  }
+  
+  private synchronized void remove(Long id) {
+    current.remove(id);
+    if (loading != null) {
+      loading.changed.add(id);
+      loading.remove(id);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,495 @@
+package za.co.sqim.vitality.service;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+import javax.annotation.PostConstruct;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import za.co.sqim.vitality.event.ModelChangeEvent;
+import za.co.sqim.vitality.event.ModelChangePublisher;
+import za.co.sqim.vitality.event.ModelChangeSubscriber;
+import za.co.sqim.vitality.model.Group;
+import za.co.sqim.vitality.model.Level;
+import za.co.sqim.vitality.repository.GroupRepository;
+import lombok.Value;
+
+/**
+ * In-memory search index over the names, codes and long names (paths) of all
+ * groups, for the group pickers.
+ * 
+ * Queries of three or more characters are answered by intersecting trigram
+ * postings, shorter queries by a prefix lookup on the words of the name, code
+ * and path. Only the fields needed for searching are kept, the tree structure
+ * is mirrored so renaming or moving a group re-indexes the paths of its
+ * descendants without loading them.
+ * 
+ * The postings are kept per Level and a search only sees the groups of one
+ * Level, the Level itself and the groups below it. Groups above every Level
+ * are not searchable.
+ * 
+ * The index is loaded once the application is ready and kept current through
+ * the GROUP ModelChangeEvents of all nodes.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+public class GroupNameIndex implements ModelChangeSubscriber
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(GroupNameIndex.class);
+  
+  private static final String SEPARATOR = " / ";
+  
+  private static final int GRAM = 3;
+  
+  @Value
+  public static class Match {
+    
+    private final Long id;
+    
+    private final String name;
+    
+    private final String code;
+    
+    private final String longName;
+    
+    /** Lower is better, see GroupNameIndex#score(Node, String). */
+    private final int score;
+  }
+  
+  private static class Node
+  {
+    private final Long id;
+    
+    private Long parentId;
+    
+    private String name;
+    
+    private String code;
+    
+    private boolean deleted;
+    
+    private boolean level;
+    
+    /** The nearest Level at or above this node, null above all levels. */
+    private Long levelId;
+    
+    private String longName;
+    
+    /** The trigrams the node is posted under. */
+    private Set<String> grams = Collections.emptySet();
+    
+    /** The words the node is posted under. */
+    private Set<String> words = Collections.emptySet();
+    
+    private Node(Long id) {
+      this.id = id;
+    }
+    
+    private String nameLower() {
+      return name.toLowerCase();
+    }
+  }
+  
+  /**
+   * The postings of the groups of one Level.
+   */
+  private static class Postings
+  {
+    /** Trigram to group ids. */
+    private final Map<String, Set<Long>> grams = new HashMap<>();
+    
+    /** Word (from name, code and path) to group ids, for short prefixes. */
+    private final NavigableMap<String, Set<Long>> words = new TreeMap<>();
+    
+    private boolean isEmpty() {
+      return grams.isEmpty() && words.isEmpty();
+    }
+  }
+  
+  @Autowired
+  private ModelChangePublisher changePublisher;
+  
+  @Autowired
+  private GroupRepository groupRepository;
+  
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  
+  private final Map<Long, Node> nodes = new HashMap<>();
+  
+  private final Map<Long, Set<Long>> children = new HashMap<>();
+  
+  /** Level id to the postings of its groups. */
+  private final Map<Long, Postings> levels = new HashMap<>();
+  
+  @EventListener(ApplicationReadyEvent.class)
+  @Transactional(readOnly = true)
+  public void load() {
+    List<Object[]> rows = groupRepository.findNameIndexRows();
+    lock.writeLock().lock();
+    try {
+      nodes.clear();
+      children.clear();
+      levels.clear();
+      for (Object[] row : rows) {
+        Node node = new Node((Long) row[0]);
+        node.parentId = (Long) row[1];
+        node.name = row[2] == null ? "" : (String) row[2];
+        node.code = row[3] == null ? "" : (String) row[3];
+        node.deleted = Boolean.TRUE.equals(row[4]);
+        node.level = isLevel(row[5]);
+        nodes.put(node.id, node);
+        if (node.parentId != null) {
+          children.computeIfAbsent(node.parentId, k -> new HashSet<>())
+              .add(node.id);
+        }
+      }
+      for (Node node : nodes.values()) {
+        if (node.parentId == null || !nodes.containsKey(node.parentId)) {
+          reindex(node);
+        }
+      }
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+    logger.info("Indexed {} group names", rows.size());
+  }
+  
+  @PostConstruct
+  public void register() {
+    changePublisher.subscribe(this);
+  }
+  
+  @Override
+  public void onChange(ModelChangeEvent event) {
+    if (event.getType() != ModelChangeEvent.Type.GROUP) {
+      return;
+    }
+    List<Object[]> rows = event.getAction() == ModelChangeEvent.Action.REMOVED
+        ? Collections.emptyList()
+        : groupRepository.findNameIndexRow(event.getId());
+    if (rows.isEmpty()) {
+      remove(event.getId());
+      return;
+    }
+    Object[] row = rows.get(0);
+    put((Long) row[0], (Long) row[1], (String) row[2], (String) row[3],
+        Boolean.TRUE.equals(row[4]), isLevel(row[5]));
+  }
+  
+  /**
+   * Add or update a group, the long names of all of its descendants are
+   * updated as well.
+   */
+  public void put(Group group) {
+    put(group.getId(), group.getParent() == null ? null
+        : group.getParent().getId(), group.getName(), group.getCode(),
+        group.getDeleted(), group instanceof Level);
+  }
+  
+  public void put(Long id, Long parentId, String name, String code,
+      boolean deleted, boolean level) {
+    lock.writeLock().lock();
+    try {
+      Node node = nodes.get(id);
+      if (node == null) {
+        node = new Node(id);
+        nodes.put(id, node);
+      }
+      else if (node.parentId != null) {
+        Set<Long> siblings = children.get(node.parentId);
+        if (siblings != null) {
+          siblings.remove(id);
+        }
+      }
+      node.parentId = parentId;
+      node.name = name == null ? "" : name;
+      node.code = code == null ? "" : code;
+      node.deleted = deleted;
+      node.level = level;
+      if (parentId != null) {
+        children.computeIfAbsent(parentId, k -> new HashSet<>()).add(id);
+      }
+      reindex(node);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * Remove a group and all of its descendants.
+   */
+  public void remove(Long id) {
+    lock.writeLock().lock();
+    try {
+      Node node = nodes.get(id);
+      if (node == null) {
+        return;
+      }
+      if (node.parentId != null && children.containsKey(node.parentId)) {
+        children.get(node.parentId).remove(id);
+      }
+      removeSubtree(node);
+    }
+    finally {
+      lock.writeLock().unlock();
+    }
+  }
+  
+  /**
+   * Find enabled groups of a Level whose name, code or long name contains the
+   * query (case insensitive), best matches first.
+   */
+  public List<Match> search(Long levelId, String query, int limit) {
+    String q = query == null ? "" : query.trim().toLowerCase();
+    if (levelId == null || q.isEmpty() || limit <= 0) {
+      return Collections.emptyList();
+    }
+    lock.readLock().lock();
+    try {
+      Postings postings = levels.get(levelId);
+      if (postings == null) {
+        return Collections.emptyList();
+      }
+      List<Match> matches = new ArrayList<>();
+      for (Long id : candidates(postings, q)) {
+        Node node = nodes.get(id);
+        if (node == null || !isEnabled(node)) {
+          continue;
+        }
+        int score = score(node, q);
+        if (score >= 0) {
+          matches.add(new Match(node.id, node.name, node.code, node.longName,
+              score));
+        }
+      }
+      matches.sort(Comparator.comparingInt(Match::getScore)
+          .thenComparingInt(m -> m.getLongName().length())
+          .thenComparing(Match::getLongName));
+      return matches.size() > limit ? new ArrayList<>(matches.subList(0,
+          limit)) : matches;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  /**
+   * The nearest Level at or above a group, null if the group is not indexed
+   * or above all levels.
+   */
+  public Long getLevelId(Long groupId) {
+    lock.readLock().lock();
+    try {
+      Node node = nodes.get(groupId);
+      return node == null ? null : node.levelId;
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  public int size() {
+    lock.readLock().lock();
+    try {
+      return nodes.size();
+    }
+    finally {
+      lock.readLock().unlock();
+    }
+  }
+  
+  /**
+   * Lower is better, -1 if the node doesn't match at all.
+   */
+  private static int score(Node node, String q) {
+    String name = node.nameLower();
+    String code = node.code.toLowerCase();
+    String longName = node.longName.toLowerCase();
+    if (name.equals(q) || code.equals(q)) {
+      return 0;
+    }
+    if (name.startsWith(q)) {
+      return 1;
+    }
+    if (code.startsWith(q)) {
+      return 2;
+    }
+    if (name.contains(" " + q)) {
+      return 3;
+    }
+    if (name.contains(q) || code.contains(q)) {
+      return 4;
+    }
+    if (longName.contains(q)) {
+      return 5;
+    }
+    return -1;
+  }
+  
+  private static Collection<Long> candidates(Postings level, String q) {
+    if (q.length() < GRAM) {
+      Set<Long> ids = new HashSet<>();
+      for (Set<Long> postings : level.words.subMap(q, true,
+          q + Character.MAX_VALUE, false).values()) {
+        ids.addAll(postings);
+      }
+      return ids;
+    }
+    List<Set<Long>> postings = new ArrayList<>();
+    for (String gram : grams(q)) {
+      Set<Long> ids = level.grams.get(gram);
+      if (ids == null) {
+        return Collections.emptySet();
+      }
+      postings.add(ids);
+    }
+    postings.sort(Comparator.comparingInt(Set::size));
+    Set<Long> ids = new HashSet<>(postings.get(0));
+    for (int i = 1; i < postings.size() && !ids.isEmpty(); i++) {
+      ids.retainAll(postings.get(i));
+    }
+    return ids;
+  }
+  
+  private boolean isEnabled(Node node) {
+    while (node != null) {
+      if (node.deleted) {
+        return false;
+      }
+      node = node.parentId == null ? null : nodes.get(node.parentId);
+    }
+    return true;
+  }
+  
+  /**
+   * Recalculate the long name and keys of the node and its descendants.
+   */
+  private void reindex(Node node) {
+    Node parent = node.parentId == null ? null : nodes.get(node.parentId);
+    node.longName = parent == null || parent.longName == null ? node.name
+        : parent.longName + SEPARATOR + node.name;
+    unindex(node);
+    node.levelId = node.level ? node.id : parent == null ? null
+        : parent.levelId;
+    String name = node.nameLower();
+    String code = node.code.toLowerCase();
+    String longName = node.longName.toLowerCase();
+    // trigrams may start with a space (" / " of a path), so they are kept
+    // apart from the words and not told apart by their first character
+    Set<String> grams = new HashSet<>();
+    grams.addAll(grams(name));
+    grams.addAll(grams(code));
+    grams.addAll(grams(longName));
+    Set<String> words = new HashSet<>();
+    for (String word : longName.split("[^\\p{L}\\p{N}]+")) {
+      if (!word.isEmpty()) {
+        words.add(word);
+      }
+    }
+    for (String word : code.split("[^\\p{L}\\p{N}]+")) {
+      if (!word.isEmpty()) {
+        words.add(word);
+      }
+    }
+    words.add(code);
+    node.grams = grams;
+    node.words = words;
+    if (node.levelId != null) {
+      Postings postings = levels.computeIfAbsent(node.levelId,
+          k -> new Postings());
+      post(postings.grams, grams, node.id);
+      post(postings.words, words, node.id);
+    }
+    Set<Long> childIds = children.get(node.id);
+    if (childIds != null) {
+      for (Long childId : childIds) {
+        Node child = nodes.get(childId);
+        if (child != null) {
+          reindex(child);
+        }
+      }
+    }
+  }
+  
+  private void unindex(Node node) {
+    Postings postings = node.levelId == null ? null
+        : levels.get(node.levelId);
+    if (postings != null) {
+      unpost(postings.grams, node.grams, node.id);
+      unpost(postings.words, node.words, node.id);
+      if (postings.isEmpty()) {
+        levels.remove(node.levelId);
+      }
+    }
+    node.grams = Collections.emptySet();
+    node.words = Collections.emptySet();
+  }
+  
+  private static void post(Map<String, Set<Long>> postings, Set<String> keys,
+      Long id) {
+    for (String key : keys) {
+      postings.computeIfAbsent(key, k -> new HashSet<>()).add(id);
+    }
+  }
+  
+  private static void unpost(Map<String, Set<Long>> postings,
+      Set<String> keys, Long id) {
+    for (String key : keys) {
+      Set<Long> ids = postings.get(key);
+      if (ids != null) {
+        ids.remove(id);
+        if (ids.isEmpty()) {
+          postings.remove(key);
+        }
+      }
+    }
+  }
+  
+  private void removeSubtree(Node node) {
+    Set<Long> childIds = children.remove(node.id);
+    if (childIds != null) {
+      for (Long childId : childIds) {
+        Node child = nodes.get(childId);
+        if (child != null) {
+          removeSubtree(child);
+        }
+      }
+    }
+    unindex(node);
+    nodes.remove(node.id);
+  }
+  
+  private static boolean isLevel(Object flag) {
+    return flag != null && ((Number) flag).intValue() == 1;
+  }
+  
+  private static Set<String> grams(String s) {
+    Set<String> grams = new HashSet<>();
+    for (int i = 0; i + GRAM <= s.length(); i++) {
+      grams.add(s.substring(i, i + GRAM));
+    }
+    return grams;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,484 @@
+package za.co.sqim.vitality.service;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+
+import org.hibernate.action.spi.BeforeTransactionCompletionProcess;
+import org.hibernate.engine.spi.SessionImplementor;
+import org.hibernate.event.spi.EventSource;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+import org.springframework.transaction.support.TransactionSynchronizationAdapter;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import za.co.sqim.vitality.model.EntityChangeListener;
+import za.co.sqim.vitality.model.Group;
+import za.co.sqim.vitality.model.GroupMember;
+import za.co.sqim.vitality.model.GroupTreeVersion;
+import za.co.sqim.vitality.model.Level;
+import za.co.sqim.vitality.model.projection.GroupTreeNode;
+import za.co.sqim.vitality.repository.GroupRepository;
+import za.co.sqim.vitality.repository.GroupTreeVersionRepository;
+import za.co.sqim.vitality.shard.ShardContext;
+import lombok.Getter;
+
+/**
+ * The group tree of a Level as compact nodes, with a version clients use for
+ * conditional requests and to fetch only what changed.
+ * 
+ * Every transaction that changes the tree of a Level raises its version in
+ * GroupTreeVersion by one and records the groups whose node changed in
+ * GroupTreeChange: the group itself, the parents whose child count changed
+ * (the old one too when a group moves) and the group whose member count
+ * changed. Both are written in that transaction, after its last flush. The
+ * version row stays locked until the commit, so versions commit in order and
+ * a client that has seen a version gets every change after it.
+ * 
+ * The tree only holds the groups that aren't deleted and have no deleted
+ * ancestor. A changed group that isn't in the tree (any more) is reported as
+ * removed, the client drops it with everything below it. A group that comes
+ * into the tree with groups below it, restored or moved in from another
+ * Level, is recorded together with all of its descendants.
+ * 
+ * Changes older than vitality.group-tree.retained-versions versions are
+ * pruned, a changes request from before that gets the full tree.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+@Transactional(readOnly = true)
+public class GroupTreeService implements EntityChangeListener.Observer
+{
+  // @formatter:off
+  private static final String INSERT_MISSING_VERSIONS = "insert into "
+      + "GROUP_TREE_VERSIONS (LEVEL_ID, VERSION, PRUNED_VERSION) "
+      + "select ID, 0, 0 from GROUPS where DTYPE = 'Level' and ID not in "
+      + "(select LEVEL_ID from GROUP_TREE_VERSIONS)";
+  
+  private static final String INCREMENT_VERSION = "update GROUP_TREE_VERSIONS "
+      + "set VERSION = VERSION + 1 where LEVEL_ID = ?";
+  
+  private static final String INSERT_VERSION = "insert into "
+      + "GROUP_TREE_VERSIONS (LEVEL_ID, VERSION, PRUNED_VERSION) "
+      + "values (?, 1, 0)";
+  
+  private static final String SELECT_VERSION = "select VERSION "
+      + "from GROUP_TREE_VERSIONS where LEVEL_ID = ?";
+  
+  private static final String INSERT_CHANGE = "insert into GROUP_TREE_CHANGES "
+      + "(LEVEL_ID, GROUP_ID, VERSION) values (?, ?, ?)";
+  
+  private static final String SELECT_PRUNABLE = "select LEVEL_ID, "
+      + "VERSION - ? from GROUP_TREE_VERSIONS "
+      + "where VERSION - ? > PRUNED_VERSION";
+  
+  private static final String UPDATE_PRUNED_VERSION = "update "
+      + "GROUP_TREE_VERSIONS set PRUNED_VERSION = ? where LEVEL_ID = ?";
+  
+  private static final String DELETE_CHANGES = "delete from GROUP_TREE_CHANGES "
+      + "where LEVEL_ID = ? and VERSION <= ?";
+  
+  private static final String SELECT_ENABLED_CHILD_IDS = "select ID "
+      + "from GROUPS where (DELETED is null or DELETED = ?) and PARENT_ID in ";
+  // @formatter:on
+  
+  private static final int IN_LIST_SIZE = 500;
+  
+  @PersistenceContext
+  private EntityManager entityManager;
+  
+  @Autowired
+  private GroupRepository groupRepository;
+  
+  @Autowired
+  private GroupTreeVersionRepository versionRepository;
+  
+  @Value("${vitality.group-tree.retained-versions:10000}")
+  private long retainedVersions = 10000;
+  
+  private final DataSource dataSource;
+  
+  private final JdbcTemplate jdbcTemplate;
+  
+  private final TransactionTemplate transactionTemplate;
+  
+  @Autowired
+  public GroupTreeService(DataSource dataSource,
+      PlatformTransactionManager transactionManager) {
+    this.dataSource = dataSource;
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.transactionTemplate.setPropagationBehavior(
+        TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+  }
+  
+  /**
+   * Create the version rows of the Levels that don't have one yet, new Levels
+   * get theirs in the transaction that creates them.
+   */
+  @PostConstruct
+  public void register() {
+    for (String shard : ShardContext.shardsOf(dataSource)) {
+      try (ShardContext.Scope scope = ShardContext.open(shard)) {
+        transactionTemplate.execute(status -> {
+          jdbcTemplate.update(INSERT_MISSING_VERSIONS);
+          return null;
+        });
+      }
+    }
+    EntityChangeListener.register(this);
+  }
+  
+  @PreDestroy
+  public void unregister() {
+    EntityChangeListener.unregister(this);
+  }
+  
+  /**
+   * Nodes of a tree response, all of them when reset is true otherwise only
+   * the ones that changed since the requested version and the ids of the
+   * groups that were removed.
+   */
+  @Getter
+  public static class Tree
+  {
+    private final String version;
+    
+    private final boolean reset;
+    
+    private final List<GroupTreeNode> nodes;
+    
+    private final List<Long> removed;
+    
+    Tree(long version, boolean reset, List<GroupTreeNode> nodes,
+        List<Long> removed) {
+      this.version = String.valueOf(version);
+      this.reset = reset;
+      this.nodes = nodes;
+      this.removed = removed;
+    }
+  }
+  
+  public String getVersion(Long levelId) {
+    return String.valueOf(readVersion(levelId).getVersion());
+  }
+  
+  /**
+   * The Level and all its descendants, without the deleted groups and the
+   * groups below them.
+   */
+  public Tree getTree(Long levelId) {
+    long version = readVersion(levelId).getVersion();
+    return new Tree(version, true, findNodes(levelId),
+        Collections.emptyList());
+  }
+  
+  /**
+   * The groups of a Level that changed since the given version.
+   * 
+   * @param since
+   *          A version returned earlier, anything unreadable or pruned gets
+   *          the full tree.
+   */
+  public Tree getChanges(Long levelId, String since) {
+    GroupTreeVersion version = readVersion(levelId);
+    Long previous = parse(since);
+    if (previous == null || previous > version.getVersion()
+        || previous < version.getPrunedVersion()) {
+      return getTree(levelId);
+    }
+    if (previous == version.getVersion()) {
+      return new Tree(previous, false, Collections.emptyList(),
+          Collections.emptyList());
+    }
+    List<Long> ids = versionRepository.findChangedGroupIds(levelId, previous,
+        version.getVersion());
+    // pruned while reading
+    if (previous < readVersion(levelId).getPrunedVersion()) {
+      return getTree(levelId);
+    }
+    List<GroupTreeNode> nodes = new ArrayList<>();
+    if (!ids.isEmpty()) {
+      for (GroupTreeNode node : groupRepository.findTreeNodesByIds(ids)) {
+        if (isInTree(levelId, node.getId())) {
+          nodes.add(node);
+        }
+      }
+    }
+    Set<Long> removed = new TreeSet<>(ids);
+    for (GroupTreeNode node : nodes) {
+      removed.remove(node.getId());
+    }
+    return new Tree(version.getVersion(), false, nodes,
+        new ArrayList<>(removed));
+  }
+  
+  @Override
+  public void persisted(Object entity) {
+    recordWithParent(entity);
+  }
+  
+  @Override
+  public void updated(Object entity) {
+    record(entity);
+    if (entity instanceof Group) {
+      Group group = (Group) entity;
+      Group previous = group.getLoadedParent();
+      if (!Objects.equals(idOf(previous), idOf(group.getParent()))) {
+        // moved, both child counts changed
+        recordParent(previous);
+        recordParent(group.getParent());
+        Level from = previous == null ? null : previous.getLevel();
+        if (!Objects.equals(idOf(from), idOf(group.getLevel()))) {
+          record(from, group.getId(), false);
+          record(group.getLevel(), group.getId(), true);
+        }
+      }
+      if (group.isLoadedDeleted() && !group.getDeleted()) {
+        // restored, back with everything below it
+        record(group.getLevel(), group.getId(), true);
+      }
+    }
+  }
+  
+  @Override
+  public void removed(Object entity) {
+    recordWithParent(entity);
+  }
+  
+  /**
+   * Remove the changes more than retainedVersions versions old.
+   */
+  @Scheduled(cron = "${vitality.group-tree.prune-cron:0 45 2 * * *}")
+  @Transactional(propagation = Propagation.NOT_SUPPORTED)
+  public void prune() {
+    for (String shard : ShardContext.shardsOf(dataSource)) {
+      try (ShardContext.Scope scope = ShardContext.open(shard)) {
+        List<Object[]> levels = jdbcTemplate.query(SELECT_PRUNABLE,
+            (rs, i) -> new Object[] { rs.getLong(1), rs.getLong(2) },
+            retainedVersions, retainedVersions);
+        for (Object[] level : levels) {
+          transactionTemplate.execute(status -> {
+            jdbcTemplate.update(UPDATE_PRUNED_VERSION, level[1], level[0]);
+            jdbcTemplate.update(DELETE_CHANGES, level[0], level[1]);
+            return null;
+          });
+        }
+      }
+    }
+  }
+  
+  private GroupTreeVersion readVersion(Long levelId) {
+    GroupTreeVersion version = versionRepository.findByLevelId(levelId);
+    if (version == null) {
+      // nothing changed since the Level was created
+      version = new GroupTreeVersion();
+      version.setLevelId(levelId);
+    }
+    return version;
+  }
+  
+  /**
+   * Breadth first from the Level, one query per depth.
+   */
+  private List<GroupTreeNode> findNodes(Long levelId) {
+    List<GroupTreeNode> nodes = new ArrayList<>(groupRepository
+        .findTreeNodesByIds(Collections.singletonList(levelId)));
+    nodes.removeIf(GroupTreeNode::isDeleted);
+    List<Long> parentIds = Collections.singletonList(levelId);
+    while (!nodes.isEmpty() && !parentIds.isEmpty()) {
+      List<GroupTreeNode> children = groupRepository
+          .findTreeNodesByParentIds(parentIds);
+      nodes.addAll(children);
+      parentIds = new ArrayList<>(children.size());
+      for (GroupTreeNode child : children) {
+        parentIds.add(child.getId());
+      }
+    }
+    return nodes;
+  }
+  
+  /**
+   * Whether a group is in the tree of a Level, it and its ancestors not
+   * deleted and the Level at the top.
+   */
+  private boolean isInTree(Long levelId, Long groupId) {
+    Group group = entityManager.find(Group.class, groupId);
+    Level level = group == null ? null : group.getLevel();
+    return level != null && levelId.equals(level.getId())
+        && group.isEnabled();
+  }
+  
+  private void recordWithParent(Object entity) {
+    record(entity);
+    if (entity instanceof Group) {
+      recordParent(((Group) entity).getParent());
+    }
+  }
+  
+  /**
+   * The node of a group, or of the group whose member count a membership
+   * changed.
+   */
+  private void record(Object entity) {
+    if (entity instanceof Group) {
+      Group group = (Group) entity;
+      record(group.getLevel(), group.getId(), false);
+    }
+    else if (entity instanceof GroupMember) {
+      recordParent(((GroupMember) entity).getGroup());
+    }
+  }
+  
+  private void recordParent(Group parent) {
+    if (parent != null) {
+      record(parent.getLevel(), parent.getId(), false);
+    }
+  }
+  
+  /**
+   * Record that the node of a group changed, and the nodes of all of its
+   * descendants with subtree, written before the current transaction commits
+   * (immediately if there is no transaction).
+   */
+  private void record(Level level, Long groupId, boolean subtree) {
+    if (level == null || groupId == null) {
+      return;
+    }
+    if (!TransactionSynchronizationManager.isSynchronizationActive()) {
+      Changes changes = new Changes();
+      changes.add(level.getId(), groupId, subtree);
+      transactionTemplate.execute(status -> {
+        changes.apply();
+        return null;
+      });
+      return;
+    }
+    Changes changes = (Changes) TransactionSynchronizationManager
+        .getResource(Changes.class);
+    if (changes == null) {
+      changes = new Changes();
+      TransactionSynchronizationManager.bindResource(Changes.class, changes);
+      TransactionSynchronizationManager.registerSynchronization(changes);
+      // runs after the flush that commits, the last entity changes included
+      entityManager.unwrap(EventSource.class).getActionQueue()
+          .registerProcess(changes);
+    }
+    changes.add(level.getId(), groupId, subtree);
+  }
+  
+  /**
+   * Add the descendants of the groups in the tree, breadth first with plain
+   * SQL as the persistence context is already flushed.
+   */
+  private void addDescendants(Set<Long> groupIds, Set<Long> roots) {
+    List<Long> parents = new ArrayList<>(roots);
+    while (!parents.isEmpty()) {
+      List<Long> children = new ArrayList<>();
+      for (int from = 0; from < parents.size(); from += IN_LIST_SIZE) {
+        List<Long> chunk = parents.subList(from,
+            Math.min(parents.size(), from + IN_LIST_SIZE));
+        children.addAll(jdbcTemplate.queryForList(SELECT_ENABLED_CHILD_IDS
+            + "(" + chunk.stream().map(String::valueOf)
+                .collect(Collectors.joining(",")) + ")",
+            Long.class, false));
+      }
+      children.removeIf(id -> !groupIds.add(id));
+      parents = children;
+    }
+  }
+  
+  /**
+   * Raise the version of every Level, in id order so two transactions can't
+   * deadlock on the version rows, and record its changed groups.
+   */
+  private void apply(Map<Long, Set<Long>> groupIds) {
+    for (Map.Entry<Long, Set<Long>> entry : groupIds.entrySet()) {
+      Long levelId = entry.getKey();
+      if (jdbcTemplate.update(INCREMENT_VERSION, levelId) == 0) {
+        // a new Level, only this transaction knows about it
+        jdbcTemplate.update(INSERT_VERSION, levelId);
+      }
+      Long version = jdbcTemplate.queryForObject(SELECT_VERSION, Long.class,
+          levelId);
+      List<Object[]> rows = new ArrayList<>(entry.getValue().size());
+      for (Long groupId : entry.getValue()) {
+        rows.add(new Object[] { levelId, groupId, version });
+      }
+      jdbcTemplate.batchUpdate(INSERT_CHANGE, rows);
+    }
+  }
+  
+  private static Long idOf(Group group) {
+    return group == null ? null : group.getId();
+  }
+  
+  private static Long parse(String version) {
+    if (version == null) {
+      return null;
+    }
+    try {
+      return Long.parseLong(version);
+    }
+    catch (NumberFormatException e) {
+      return null;
+    }
+  }
+  
+  /**
+   * The changed groups of one transaction, by Level.
+   */
+  private class Changes extends TransactionSynchronizationAdapter
+      implements BeforeTransactionCompletionProcess
+  {
+    private final Map<Long, Set<Long>> groupIds = new TreeMap<>();
+    
+    /** The groups whose descendants changed as well, by Level. */
+    private final Map<Long, Set<Long>> subtrees = new TreeMap<>();
+    
+    private void add(Long levelId, Long groupId, boolean subtree) {
+      groupIds.computeIfAbsent(levelId, k -> new TreeSet<>()).add(groupId);
+      if (subtree) {
+        subtrees.computeIfAbsent(levelId, k -> new TreeSet<>()).add(groupId);
+      }
+    }
+    
+    private void apply() {
+      for (Map.Entry<Long, Set<Long>> entry : subtrees.entrySet()) {
+        addDescendants(groupIds.get(entry.getKey()), entry.getValue());
+      }
+      GroupTreeService.this.apply(groupIds);
+    }
+    
+    @Override
+    public void doBeforeTransactionCompletion(SessionImplementor session) {
+      apply();
+    }
+    
+    @Override
+    public void afterCompletion(int status) {
+      TransactionSynchronizationManager.unbindResourceIfPossible(Changes.class);
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,136 @@
+package za.co.sqim.vitality.service;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import za.co.sqim.vitality.event.ModelChangeEvent;
+import za.co.sqim.vitality.event.ModelChangePublisher;
+import za.co.sqim.vitality.event.ModelChangeSubscriber;
+import za.co.sqim.vitality.repository.GroupMemberRepository;
+
+/**
+ * The Levels a user is a member of, through a membership of the Level or of
+ * a group below it, for the per request membership checks.
+ * 
+ * The levels of a user are cached until a GROUP_MEMBER change event of that
+ * user arrives, from this node or another one. A GROUP event clears the whole
+ * cache, a moved group takes its members to another level. The least
+ * recently used user is dropped when the cache is full. Loading works as in
+ * PointsHistoryService, outside the lock and only cached if no event arrived
+ * in the meantime.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+@Transactional(readOnly = true)
+public class LevelMembershipCache implements ModelChangeSubscriber
+{
+  @Autowired
+  private ModelChangePublisher changePublisher;
+  
+  @Autowired
+  private GroupMemberRepository groupMemberRepository;
+  
+  @Autowired
+  private GroupNameIndex groupNameIndex;
+  
+  /** Number of users whose levels are kept. */
+  @Value("${vitality.membership.cache-size:10000}")
+  private int cacheSize = 10000;
+  
+  /** Level ids or a loading marker by user, in access order. */
+  private final Map<Long, Object> cache = new LinkedHashMap<Long, Object>(16,
+      0.75f, true) {
+    
+    private static final long serialVersionUID = -3034420872911839172L;
+    
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest) {
+      return size() > cacheSize;
+    }
+  };
+  
+  public boolean isMemberOfLevel(Long userId, Long levelId) {
+    return getLevelIds(userId).contains(levelId);
+  }
+  
+  @SuppressWarnings("unchecked")
+  public Set<Long> getLevelIds(Long userId) {
+    Object marker = new Object();
+    synchronized (cache) {
+      Object cached = cache.get(userId);
+      if (cached instanceof Set) {
+        return (Set<Long>) cached;
+      }
+      if (cached == null) {
+        cache.put(userId, marker);
+      }
+      else {
+        // someone else is loading, read it as well rather than wait
+        marker = null;
+      }
+    }
+    Set<Long> levelIds;
+    try {
+      levelIds = load(userId);
+    }
+    catch (RuntimeException e) {
+      synchronized (cache) {
+        cache.remove(userId, marker);
+      }
+      throw e;
+    }
+    synchronized (cache) {
+      if (marker != null && cache.get(userId) == marker) {
+        cache.put(userId, levelIds);
+      }
+    }
+    return levelIds;
+  }
+  
+  @PostConstruct
+  public void register() {
+    changePublisher.subscribe(this);
+  }
+  
+  @Override
+  public void onChange(ModelChangeEvent event) {
+    switch (event.getType()) {
+    case GROUP_MEMBER:
+      if (event.getUserId() != null) {
+        synchronized (cache) {
+          cache.remove(event.getUserId());
+        }
+      }
+      break;
+    case GROUP:
+      synchronized (cache) {
+        cache.clear();
+      }
+      break;
+    default:
+      break;
+    }
+  }
+  
+  private Set<Long> load(Long userId) {
+    Set<Long> levelIds = new HashSet<>();
+    for (Long groupId : groupMemberRepository.findGroupIdsByUserId(userId)) {
+      Long levelId = groupNameIndex.getLevelId(groupId);
+      if (levelId != null) {
+        levelIds.add(levelId);
+      }
+    }
+    return Collections.unmodifiableSet(levelIds);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,312 @@
+package za.co.sqim.vitality.service;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Supplier;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.context.event.ApplicationReadyEvent;
+import org.springframework.context.event.EventListener;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.dao.OptimisticLockingFailureException;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import za.co.sqim.vitality.event.ModelChangeEvent;
+import za.co.sqim.vitality.event.ModelChangePublisher;
+import za.co.sqim.vitality.metrics.ModelMetrics;
+import za.co.sqim.vitality.model.Activity;
+import za.co.sqim.vitality.model.UserPointsTotal;
+import za.co.sqim.vitality.repository.ActivityRepository;
+import za.co.sqim.vitality.repository.MilestoneRepository;
+import za.co.sqim.vitality.repository.UserPointsTotalRepository;
+import za.co.sqim.vitality.shard.ShardContext;
+
+/**
+ * Assigns and expires points, keeping UserPointsTotal in step.
+ * 
+ * Three layers keep concurrent assignments correct:
+ * (1) on this node, work for the same receiving user is serialised by a
+ * striped lock, so the common case never conflicts
+ * (2) Activity is versioned, a concurrent change from another node fails
+ * and is retried, after which the points show as already assigned
+ * (3) totals are only changed with an increment in the database.
+ * 
+ * Expired points are selected by their stored expiry date, in pages. The
+ * sweep only starts once the expiry dates of older activities are filled in
+ * and, if any were missing, the totals are reconciled with them, so points
+ * that expired before the totals were kept are not subtracted from totals
+ * that never included them.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+public class PointsAssignmentService
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(PointsAssignmentService.class);
+  
+  private static final int STRIPES = 64;
+  
+  private static final int MAX_ATTEMPTS = 3;
+  
+  @Autowired
+  private ActivityRepository activityRepository;
+  
+  @Autowired
+  private UserPointsTotalRepository totalRepository;
+  
+  @Autowired
+  private MilestoneRepository milestoneRepository;
+  
+  @Autowired
+  private ModelChangePublisher changePublisher;
+  
+  @Autowired
+  private PointsReconciliationService reconciliationService;
+  
+  private final DataSource dataSource;
+  
+  private final JdbcTemplate jdbcTemplate;
+  
+  private final TransactionTemplate transactionTemplate;
+  
+  private final Lock[] locks = new Lock[STRIPES];
+  
+  @Value("${vitality.points.expiry-enabled:true}")
+  private boolean expiryEnabled = true;
+  
+  @Value("${vitality.points.expiry-batch-size:500}")
+  private int batchSize = 500;
+  
+  /** Set once the expiry dates are filled in and the totals match them. */
+  private volatile boolean expiryReady = false;
+  
+  @Autowired
+  public PointsAssignmentService(DataSource dataSource,
+      PlatformTransactionManager transactionManager) {
+    this.dataSource = dataSource;
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.transactionTemplate.setPropagationBehavior(
+        TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+    for (int i = 0; i < STRIPES; i++) {
+      locks[i] = new ReentrantLock();
+    }
+  }
+  
+  /**
+   * Assign the points of an activity and add them to the receiving user's
+   * total, in its own transaction.
+   * 
+   * @return false if the points were already assigned.
+   */
+  public boolean assignPoints(Long activityId) {
+    Activity activity = activityRepository.findOne(activityId);
+    if (activity == null) {
+      throw new IllegalArgumentException("No activity " + activityId);
+    }
+    Long userId = activity.getReceivingUserId();
+    long start = System.nanoTime();
+    try (ShardContext.Scope scope = ShardContext.openLevel(
+        activity.getLevelId())) {
+      return withUserLock(userId, () -> transactionTemplate.execute(status -> {
+        Activity current = activityRepository.findOne(activityId);
+        if (!current.assignPoints()) {
+          return false;
+        }
+        activityRepository.saveAndFlush(current);
+        addPoints(userId, current.getLevelId(), current.getPoints());
+        return true;
+      }));
+    }
+    finally {
+      ModelMetrics.POINTS_ASSIGNMENT.record(System.nanoTime() - start,
+          TimeUnit.NANOSECONDS);
+    }
+  }
+  
+  /**
+   * Fill in the missing expiry dates on every shard and, if there were any,
+   * bring the totals in line with them before the sweep is started.
+   */
+  @EventListener(ApplicationReadyEvent.class)
+  public void prepareExpiry() {
+    if (!expiryEnabled) {
+      return;
+    }
+    long filled = 0;
+    for (String shard : ShardContext.shardsOf(dataSource)) {
+      try (ShardContext.Scope scope = ShardContext.open(shard)) {
+        filled += fillPointsExpiryDates();
+      }
+    }
+    if (filled > 0) {
+      logger.info("Filled in {} points expiry dates, reconciling the totals",
+          filled);
+      reconciliationService.reconcile(true);
+    }
+    expiryReady = true;
+  }
+  
+  /**
+   * Subtract expired points from the totals, on every shard.
+   * 
+   * @return The number of activities whose points expired.
+   */
+  @Scheduled(fixedDelayString = "${vitality.points.expiry-interval:300000}")
+  public int expirePoints() {
+    if (!expiryEnabled || !expiryReady) {
+      return 0;
+    }
+    long start = System.nanoTime();
+    LocalDateTime now = LocalDateTime.now();
+    int expired = 0;
+    for (String shard : ShardContext.shardsOf(dataSource)) {
+      try (ShardContext.Scope scope = ShardContext.open(shard)) {
+        expired += expirePoints(now);
+      }
+    }
+    ModelMetrics.POINTS_EXPIRY.record(System.nanoTime() - start,
+        TimeUnit.NANOSECONDS);
+    if (expired > 0) {
+      logger.info("Expired the points of {} activities", expired);
+    }
+    return expired;
+  }
+  
+  private long fillPointsExpiryDates() {
+    long filled = 0;
+    Long afterId = 0L;
+    for (;;) {
+      List<Object[]> rows = activityRepository.findMissingPointsExpiryDates(
+          afterId, new PageRequest(0, batchSize));
+      List<Object[]> updates = new ArrayList<>(rows.size());
+      for (Object[] row : rows) {
+        LocalDateTime assigned = (LocalDateTime) row[1];
+        long days = ((Number) row[2]).longValue();
+        updates.add(new Object[] {
+            Timestamp.valueOf(assigned.plusDays(days)), row[0] });
+      }
+      if (!updates.isEmpty()) {
+        jdbcTemplate.batchUpdate("update ACTIVITY set POINTS_EXPIRY_DATE = ? "
+            + "where ID = ? and POINTS_EXPIRY_DATE is null", updates);
+        filled += updates.size();
+      }
+      if (rows.size() < batchSize) {
+        break;
+      }
+      afterId = (Long) rows.get(rows.size() - 1)[0];
+    }
+    return filled;
+  }
+  
+  private int expirePoints(LocalDateTime now) {
+    int expired = 0;
+    Long afterId = 0L;
+    for (;;) {
+      List<Object[]> rows = activityRepository.findPointsExpiredBy(now,
+          afterId, new PageRequest(0, batchSize));
+      for (Object[] row : rows) {
+        Long activityId = (Long) row[0];
+        Long userId = (Long) row[1];
+        Long levelId = (Long) row[2];
+        int points = ((Number) row[3]).intValue();
+        boolean done = withUserLock(userId,
+            () -> transactionTemplate.execute(status -> {
+              if (activityRepository.markPointsExpired(activityId) == 0) {
+                return false;
+              }
+              addPoints(userId, levelId, -points);
+              return true;
+            }));
+        if (done) {
+          expired++;
+        }
+      }
+      if (rows.size() < batchSize) {
+        break;
+      }
+      afterId = (Long) rows.get(rows.size() - 1)[0];
+    }
+    return expired;
+  }
+  
+  /**
+   * The current total of a user in a level.
+   */
+  public long getPoints(Long userId, Long levelId) {
+    UserPointsTotal total = totalRepository.findByUserIdAndLevelId(userId,
+        levelId);
+    return total == null ? 0 : total.getPoints();
+  }
+  
+  private void addPoints(Long userId, Long levelId, long delta) {
+    if (delta == 0) {
+      return;
+    }
+    if (totalRepository.increment(userId, levelId, delta) == 0) {
+      UserPointsTotal total = new UserPointsTotal(userId, levelId);
+      total.setPoints(delta);
+      totalRepository.saveAndFlush(total);
+    }
+    changePublisher.publish(ModelChangeEvent.Type.POINTS,
+        ModelChangeEvent.Action.SAVED, userId, levelId);
+    if (delta > 0) {
+      long after = totalRepository.findPoints(userId, levelId);
+      for (Long milestoneId : milestoneRepository
+          .findIdsReachedBetween(levelId, after - delta, after)) {
+        changePublisher.publish(ModelChangeEvent.Type.MILESTONE_ACHIEVED,
+            ModelChangeEvent.Action.SAVED, milestoneId, levelId, userId);
+      }
+    }
+  }
+  
+  /**
+   * Run the work holding the lock of the user's stripe, retrying when
+   * another node changed the same rows first.
+   */
+  private <T> T withUserLock(Long userId, Supplier<T> work) {
+    Lock lock = locks[stripe(userId)];
+    lock.lock();
+    try {
+      for (int attempt = 1;; attempt++) {
+        try {
+          return work.get();
+        }
+        catch (OptimisticLockingFailureException
+            | DataIntegrityViolationException e) {
+          if (attempt >= MAX_ATTEMPTS) {
+            throw e;
+          }
+          logger.debug("Concurrent points update for user {}, retrying",
+              userId, e);
+        }
+      }
+    }
+    finally {
+      lock.unlock();
+    }
+  }
+  
+  private static int stripe(Long userId) {
+    long id = userId == null ? 0 : userId;
+    int hash = (int) (id ^ (id >>> 32));
+    return (hash ^ (hash >>> 16)) & (STRIPES - 1);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,154 @@
+package za.co.sqim.vitality.service;
+
+import java.time.LocalDateTime;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.PostConstruct;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.annotation.Transactional;
+
+import za.co.sqim.vitality.event.ModelChangeEvent;
+import za.co.sqim.vitality.event.ModelChangePublisher;
+import za.co.sqim.vitality.event.ModelChangeSubscriber;
+import za.co.sqim.vitality.model.PointsHistory;
+import za.co.sqim.vitality.model.User;
+import za.co.sqim.vitality.repository.ActivityRepository;
+import za.co.sqim.vitality.repository.ArchivedActivityRepository;
+
+/**
+ * Answers "how many points did the user have at time T" questions.
+ * 
+ * The ledger, live and archived activities, is read once and indexed by
+ * {@link PointsHistory}, so a chart with many data points costs one query
+ * instead of one per data point. The index of a user is cached until a POINTS
+ * or ACTIVITY change event of that user arrives, from this node or another
+ * one, the least recently used user is dropped when the cache is full.
+ * 
+ * The ledger is read outside the cache lock. A marker is put in the cache
+ * while it is read, an event for the user removes the marker and the ledger
+ * that was read is then returned but not cached, it may already be stale.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+@Transactional(readOnly = true)
+public class PointsHistoryService implements ModelChangeSubscriber
+{
+  @Autowired
+  private ModelChangePublisher changePublisher;
+  
+  @Autowired
+  private ActivityRepository activityRepository;
+  
+  @Autowired
+  private ArchivedActivityRepository archivedActivityRepository;
+  
+  /** Number of users whose history is kept. */
+  @Value("${vitality.points.history-cache-size:10000}")
+  private int cacheSize = 10000;
+  
+  /** PointsHistory or a loading marker by user, in access order. */
+  private final Map<Long, Object> cache = new LinkedHashMap<Long, Object>(16,
+      0.75f, true) {
+    
+    private static final long serialVersionUID = 4120539275236211870L;
+    
+    @Override
+    protected boolean removeEldestEntry(Map.Entry<Long, Object> eldest) {
+      return size() > cacheSize;
+    }
+  };
+  
+  public PointsHistory getHistory(User user) {
+    Long userId = user.getId();
+    Object marker = new Object();
+    synchronized (cache) {
+      Object cached = cache.get(userId);
+      if (cached instanceof PointsHistory) {
+        return (PointsHistory) cached;
+      }
+      if (cached == null) {
+        cache.put(userId, marker);
+      }
+      else {
+        // someone else is loading, read it as well rather than wait
+        marker = null;
+      }
+    }
+    PointsHistory history;
+    try {
+      history = load(user);
+    }
+    catch (RuntimeException e) {
+      synchronized (cache) {
+        cache.remove(userId, marker);
+      }
+      throw e;
+    }
+    synchronized (cache) {
+      if (marker != null && cache.get(userId) == marker) {
+        cache.put(userId, history);
+      }
+    }
+    return history;
+  }
+  
+  public long getPointsAt(User user, LocalDateTime dateTime) {
+    return getHistory(user).getPointsAt(dateTime);
+  }
+  
+  /**
+   * @param dateTimes
+   *          Must be in ascending order.
+   */
+  public long[] getPointsAt(User user, List<LocalDateTime> dateTimes) {
+    return getHistory(user).getPointsAt(dateTimes);
+  }
+  
+  @PostConstruct
+  public void register() {
+    changePublisher.subscribe(this);
+  }
+  
+  @Override
+  public void onChange(ModelChangeEvent event) {
+    switch (event.getType()) {
+    case POINTS:
+      // the id of a POINTS event is the user
+      evict(event.getId());
+      break;
+    case ACTIVITY:
+      evict(event.getUserId());
+      break;
+    default:
+      break;
+    }
+  }
+  
+  private void evict(Long userId) {
+    if (userId != null) {
+      synchronized (cache) {
+        cache.remove(userId);
+      }
+    }
+  }
+  
+  private PointsHistory load(User user) {
+    PointsHistory.Builder builder = PointsHistory.builder();
+    add(builder, activityRepository.findPointsLedger(user));
+    add(builder, archivedActivityRepository.findPointsLedger(user));
+    return builder.build();
+  }
+  
+  private static void add(PointsHistory.Builder builder, List<Object[]> rows) {
+    for (Object[] row : rows) {
+      builder.add((LocalDateTime) row[0], ((Number) row[1]).intValue(),
+          ((Number) row[2]).longValue());
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,150 @@
+package za.co.sqim.vitality.service;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import lombok.Data;
+import lombok.Getter;
+
+/**
+ * Outcome of a reconciliation of the UserPointsTotals against the activities.
+ * 
+ * @author Avuyile Malotana
+ */
+@Getter
+public class PointsReconciliationReport
+{
+  /** Only the first drifts are kept, the counts cover all of them. */
+  public static final int MAX_DIFFS = 1000;
+  
+  private String id;
+  
+  private volatile LocalDateTime started;
+  
+  /** Set when the run is done, whether it failed or not. */
+  private volatile LocalDateTime finished;
+  
+  /** Why the run failed, null if it didn't. */
+  private volatile String failure;
+  
+  private boolean repair;
+  
+  /** User and level combinations compared. */
+  private long checked;
+  
+  private long drifted;
+  
+  private long repaired;
+  
+  /** Drifts that changed while being repaired, left for the next run. */
+  private long skipped;
+  
+  /** Sum of the absolute differences. */
+  private long totalDrift;
+  
+  /** Activities expired by date whose expiry the sweep didn't process yet. */
+  private long lateExpiries;
+  
+  /** Activities flagged as expired before their expiry date. */
+  private long earlyExpiries;
+  
+  private final List<Diff> diffs = new ArrayList<>();
+  
+  PointsReconciliationReport() {
+  }
+  
+  PointsReconciliationReport(boolean repair) {
+    this.id = UUID.randomUUID().toString();
+    this.repair = repair;
+  }
+  
+  /**
+   * True while the run is queued or running.
+   */
+  public boolean isRunning() {
+    return finished == null;
+  }
+  
+  void begin() {
+    started = LocalDateTime.now();
+  }
+  
+  void checked(long count) {
+    checked += count;
+  }
+  
+  void drifted(Diff diff) {
+    drifted++;
+    totalDrift += Math.abs(diff.getExpected() - diff.getStored());
+    if (diffs.size() < MAX_DIFFS) {
+      diffs.add(diff);
+    }
+  }
+  
+  void repaired(long count) {
+    repaired += count;
+  }
+  
+  void skipped(long count) {
+    skipped += count;
+  }
+  
+  void expiries(long late, long early) {
+    lateExpiries += late;
+    earlyExpiries += early;
+  }
+  
+  /**
+   * Add the counts and diffs of a report of another user range.
+   */
+  void merge(PointsReconciliationReport other) {
+    checked += other.checked;
+    drifted += other.drifted;
+    repaired += other.repaired;
+    skipped += other.skipped;
+    totalDrift += other.totalDrift;
+    lateExpiries += other.lateExpiries;
+    earlyExpiries += other.earlyExpiries;
+    for (Diff diff : other.diffs) {
+      if (diffs.size() == MAX_DIFFS) {
+        break;
+      }
+      diffs.add(diff);
+    }
+  }
+  
+  void finish() {
+    finished = LocalDateTime.now();
+  }
+  
+  void fail(String failure) {
+    this.failure = failure;
+    finish();
+  }
+  
+  /**
+   * A total that differs from the activities.
+   */
+  @Data
+  public static class Diff
+  {
+    private final Long userId;
+    
+    private final Long levelId;
+    
+    /** Null when there is no UserPointsTotal row. */
+    private final Long stored;
+    
+    private final long expected;
+    
+    public long getStored() {
+      return stored == null ? 0 : stored;
+    }
+    
+    public boolean isMissing() {
+      return stored == null;
+    }
+  }
+}
\ No newline at end of file
@@ -0,0 +1,450 @@
+package za.co.sqim.vitality.service;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+
+import javax.annotation.PreDestroy;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.ConcurrencyFailureException;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.scheduling.annotation.Scheduled;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import za.co.sqim.vitality.event.ModelChangeEvent;
+import za.co.sqim.vitality.event.ModelChangePublisher;
+import za.co.sqim.vitality.service.PointsReconciliationReport.Diff;
+import za.co.sqim.vitality.shard.ShardContext;
+import lombok.Data;
+
+/**
+ * Checks every UserPointsTotal against the activities and repairs the ones
+ * that drifted.
+ * 
+ * The expected total of a user in a level is the sum of the points of the
+ * activities with points assigned whose expiry date (assigned date plus the
+ * days the points expire in) has not passed at the start of the run. The
+ * POINTS_EXPIRED flag is not trusted, an expiry sweep that fell behind or
+ * flagged too early shows up as drift like any other. Users are split into id
+ * ranges that are reconciled in parallel on a fork-join pool. Each range is
+ * read as scalar rows, totals before activities. Every shard is reconciled
+ * in turn, a total lives on the shard of its Level. Archived activities count
+ * like live ones, their flags are final and never repaired.
+ * 
+ * A drifted total is repaired in one transaction with the flags of its
+ * activities, so the sweep doesn't subtract the expired points again. The
+ * total is only overwritten if its version did not change since it was read,
+ * so an assignment or expiry that ran concurrently is never undone.
+ * 
+ * Runs started through {@link #start(boolean)} run in the background, their
+ * reports are kept by id.
+ * 
+ * @author Avuyile Malotana
+ */
+@Service
+public class PointsReconciliationService
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(PointsReconciliationService.class);
+  
+  // @formatter:off
+  private static final String SELECT_BOUNDS = "select min(ID), max(ID) from "
+      + "(select min(USER_ID) as ID from USER_POINTS_TOTALS "
+      + "union all select max(USER_ID) from USER_POINTS_TOTALS "
+      + "union all select min(RECEIVING_USER) from ACTIVITY "
+      + "union all select max(RECEIVING_USER) from ACTIVITY) BOUNDS";
+  
+  private static final String SELECT_TOTALS = "select USER_ID, LEVEL_ID, "
+      + "POINTS, VERSION from USER_POINTS_TOTALS "
+      + "where USER_ID between ? and ?";
+  
+  private static final String SELECT_ASSIGNED = "select ID, RECEIVING_USER, "
+      + "LEVEL_ID, POINTS, POINTS_ASSIGNED_DATE, POINTS_EXPIRE_IN_DAYS, "
+      + "POINTS_EXPIRED, 0 from ACTIVITY "
+      + "where RECEIVING_USER between ? and ? and POINTS_ASSIGNED = ? "
+      + "union all select ID, RECEIVING_USER, "
+      + "LEVEL_ID, POINTS, POINTS_ASSIGNED_DATE, POINTS_EXPIRE_IN_DAYS, "
+      + "POINTS_EXPIRED, 1 from " + ActivityArchiveService.ARCHIVE_TABLE + " "
+      + "where RECEIVING_USER between ? and ? and POINTS_ASSIGNED = ?";
+  
+  private static final String UPDATE_TOTAL = "update USER_POINTS_TOTALS "
+      + "set POINTS = ?, VERSION = VERSION + 1 "
+      + "where USER_ID = ? and LEVEL_ID = ? and VERSION = ?";
+  
+  private static final String INSERT_TOTAL = "insert into USER_POINTS_TOTALS "
+      + "(USER_ID, LEVEL_ID, POINTS, VERSION) values (?, ?, ?, 0)";
+  
+  private static final String SET_EXPIRED = "update ACTIVITY "
+      + "set POINTS_EXPIRED = ?, VERSION = VERSION + 1 where ID = ?";
+  // @formatter:on
+  
+  /** Number of reports of background runs that are kept. */
+  private static final int MAX_REPORTS = 20;
+  
+  @Autowired
+  private ModelChangePublisher changePublisher;
+  
+  private final JdbcTemplate jdbcTemplate;
+  
+  private final TransactionTemplate transactionTemplate;
+  
+  private final DataSource dataSource;
+  
+  private final ForkJoinPool pool;
+  
+  private final ExecutorService runner = Executors.newSingleThreadExecutor();
+  
+  /** Number of user ids reconciled by one task. */
+  @Value("${vitality.points.reconcile-range:5000}")
+  private long rangeSize = 5000;
+  
+  @Value("${vitality.points.reconcile-batch-size:500}")
+  private int batchSize = 500;
+  
+  /** Only enable the nightly run on one node. */
+  @Value("${vitality.points.reconcile-scheduled:true}")
+  private boolean scheduled = true;
+  
+  private volatile PointsReconciliationReport lastReport;
+  
+  private final Map<String, PointsReconciliationReport> reports =
+      new LinkedHashMap<String, PointsReconciliationReport>() {
+        private static final long serialVersionUID = -2760397468014420817L;
+        
+        @Override
+        protected boolean removeEldestEntry(
+            Map.Entry<String, PointsReconciliationReport> eldest) {
+          return size() > MAX_REPORTS;
+        }
+      };
+  
+  @Autowired
+  public PointsReconciliationService(DataSource dataSource,
+      PlatformTransactionManager transactionManager,
+      @Value("${vitality.points.reconcile-threads:4}") int threads) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.transactionTemplate = new TransactionTemplate(transactionManager);
+    this.dataSource = dataSource;
+    this.pool = new ForkJoinPool(threads);
+  }
+  
+  @PreDestroy
+  public void shutdown() {
+    runner.shutdownNow();
+    pool.shutdown();
+  }
+  
+  @Scheduled(cron = "${vitality.points.reconcile-cron:0 0 3 * * *}")
+  public void nightly() {
+    if (scheduled) {
+      reconcile(true);
+    }
+  }
+  
+  /**
+   * Start a run in the background, the report returned is filled in when it
+   * finishes and can be looked up by its id.
+   * 
+   * @param repair
+   *          False to only report the drift.
+   */
+  public PointsReconciliationReport start(boolean repair) {
+    PointsReconciliationReport report = new PointsReconciliationReport(repair);
+    synchronized (reports) {
+      reports.put(report.getId(), report);
+    }
+    runner.execute(() -> {
+      try {
+        run(report);
+      }
+      catch (RuntimeException e) {
+        logger.error("Reconciliation {} failed", report.getId(), e);
+        report.fail(e.getMessage());
+      }
+    });
+    return report;
+  }
+  
+  /**
+   * A report of a run started on this node, null if unknown.
+   */
+  public PointsReconciliationReport getReport(String id) {
+    synchronized (reports) {
+      return reports.get(id);
+    }
+  }
+  
+  /**
+   * Compare all totals against the activities, on the calling thread.
+   * 
+   * @param repair
+   *          False to only report the drift.
+   */
+  public PointsReconciliationReport reconcile(boolean repair) {
+    return run(new PointsReconciliationReport(repair));
+  }
+  
+  private synchronized PointsReconciliationReport run(
+      PointsReconciliationReport report) {
+    report.begin();
+    LocalDateTime now = report.getStarted();
+    boolean repair = report.isRepair();
+    for (String shard : ShardContext.shardsOf(dataSource)) {
+      Long[] bounds;
+      try (ShardContext.Scope scope = ShardContext.open(shard)) {
+        bounds = jdbcTemplate.queryForObject(SELECT_BOUNDS,
+            (rs, i) -> new Long[] { rs.getObject(1, Long.class),
+                rs.getObject(2, Long.class) });
+      }
+      if (bounds[0] != null) {
+        report.merge(pool.invoke(new RangeTask(shard, bounds[0], bounds[1],
+            now, repair)));
+      }
+    }
+    report.finish();
+    lastReport = report;
+    logger.info("Reconciled {} point totals: {} drifted by {} points in total,"
+        + " {} repaired, {} skipped, {} expiries late and {} early",
+        report.getChecked(), report.getDrifted(), report.getTotalDrift(),
+        report.getRepaired(), report.getSkipped(), report.getLateExpiries(),
+        report.getEarlyExpiries());
+    return report;
+  }
+  
+  /**
+   * The report of the last run on this node, null if none.
+   */
+  public PointsReconciliationReport getLastReport() {
+    return lastReport;
+  }
+  
+  /**
+   * Reconcile the users from first to last (inclusive), with expiry dates
+   * compared to now.
+   */
+  private PointsReconciliationReport reconcileRange(long first, long last,
+      LocalDateTime now, boolean repair) {
+    PointsReconciliationReport report = new PointsReconciliationReport();
+    Map<Key, long[]> stored = new HashMap<>();
+    jdbcTemplate.query(SELECT_TOTALS, rs -> {
+      stored.put(new Key(rs.getLong(1), rs.getLong(2)),
+          new long[] { rs.getLong(3), rs.getLong(4) });
+    }, first, last);
+    Map<Key, Expected> expected = new HashMap<>();
+    jdbcTemplate.query(SELECT_ASSIGNED, rs -> {
+      Key key = new Key(rs.getLong(2), rs.getLong(3));
+      Expected points = expected.computeIfAbsent(key, k -> new Expected());
+      Timestamp assigned = rs.getTimestamp(5);
+      long days = rs.getLong(6);
+      boolean flagged = rs.getBoolean(7);
+      boolean expired = assigned != null && days > 0
+          && !assigned.toLocalDateTime().plusDays(days).isAfter(now);
+      if (!expired) {
+        points.points += rs.getInt(4);
+      }
+      if (rs.getInt(8) == 1) {
+        // archived rows are immutable, their flags stay as they are
+        return;
+      }
+      if (expired && !flagged) {
+        points.late.add(rs.getLong(1));
+      }
+      else if (!expired && flagged) {
+        points.early.add(rs.getLong(1));
+      }
+    }, first, last, true, first, last, true);
+    
+    List<Repair> repairs = new ArrayList<>();
+    for (Map.Entry<Key, long[]> entry : stored.entrySet()) {
+      Key key = entry.getKey();
+      long[] total = entry.getValue();
+      Expected points = expected.getOrDefault(key, Expected.NONE);
+      Diff diff = new Diff(key.getUserId(), key.getLevelId(), total[0],
+          points.points);
+      if (points.points != total[0]) {
+        report.drifted(diff);
+      }
+      // a total that matches still needs its flags fixed, or the sweep
+      // subtracts the late expiries again
+      if (points.points != total[0] || points.hasWrongFlags()) {
+        repairs.add(new Repair(diff, total[1], points));
+      }
+    }
+    for (Map.Entry<Key, Expected> entry : expected.entrySet()) {
+      Key key = entry.getKey();
+      Expected points = entry.getValue();
+      if (!stored.containsKey(key)) {
+        Diff diff = new Diff(key.getUserId(), key.getLevelId(), null,
+            points.points);
+        if (points.points != 0) {
+          report.drifted(diff);
+        }
+        if (points.points != 0 || points.hasWrongFlags()) {
+          repairs.add(new Repair(diff, null, points));
+        }
+      }
+    }
+    for (Expected points : expected.values()) {
+      report.expiries(points.late.size(), points.early.size());
+    }
+    report.checked(stored.size() + repairs.stream()
+        .filter(r -> r.getDiff().isMissing()).count());
+    if (repair) {
+      for (Repair r : repairs) {
+        repair(r, report);
+      }
+    }
+    return report;
+  }
+  
+  /**
+   * Overwrite (or create) the total and correct the expiry flags of its
+   * activities in one transaction.
+   */
+  private void repair(Repair repair, PointsReconciliationReport report) {
+    Diff diff = repair.getDiff();
+    boolean repaired;
+    try {
+      repaired = transactionTemplate.execute(status -> {
+        if (diff.isMissing()) {
+          jdbcTemplate.update(INSERT_TOTAL, diff.getUserId(),
+              diff.getLevelId(), diff.getExpected());
+        }
+        else if (jdbcTemplate.update(UPDATE_TOTAL, diff.getExpected(),
+            diff.getUserId(), diff.getLevelId(), repair.getVersion()) == 0) {
+          return false;
+        }
+        setExpired(repair.getExpected().late, true);
+        setExpired(repair.getExpected().early, false);
+        return true;
+      });
+    }
+    catch (DataIntegrityViolationException | ConcurrencyFailureException e) {
+      // created by an assignment or locked by an expiry in the meantime
+      repaired = false;
+    }
+    if (repaired) {
+      report.repaired(1);
+      publish(diff.getUserId(), diff.getLevelId());
+    }
+    else {
+      report.skipped(1);
+    }
+  }
+  
+  private void setExpired(List<Long> activityIds, boolean expired) {
+    for (int from = 0; from < activityIds.size(); from += batchSize) {
+      List<Object[]> args = new ArrayList<>();
+      for (Long id : activityIds.subList(from,
+          Math.min(activityIds.size(), from + batchSize))) {
+        args.add(new Object[] { expired, id });
+      }
+      jdbcTemplate.batchUpdate(SET_EXPIRED, args);
+    }
+  }
+  
+  private void publish(Long userId, Long levelId) {
+    changePublisher.publish(ModelChangeEvent.Type.POINTS,
+        ModelChangeEvent.Action.SAVED, userId, levelId);
+  }
+  
+  /**
+   * Splits the user range in half until it is small enough.
+   */
+  private class RangeTask extends RecursiveTask<PointsReconciliationReport>
+  {
+    private static final long serialVersionUID = 6214725930462286101L;
+    
+    /** Null when the datasource isn't sharded. */
+    private final String shard;
+    
+    private final long first;
+    
+    private final long last;
+    
+    private final LocalDateTime now;
+    
+    private final boolean repair;
+    
+    RangeTask(String shard, long first, long last, LocalDateTime now,
+        boolean repair) {
+      this.shard = shard;
+      this.first = first;
+      this.last = last;
+      this.now = now;
+      this.repair = repair;
+    }
+    
+    @Override
+    protected PointsReconciliationReport compute() {
+      if (last - first < rangeSize) {
+        try (ShardContext.Scope scope = ShardContext.open(shard)) {
+          return reconcileRange(first, last, now, repair);
+        }
+      }
+      long middle = first + (last - first) / 2;
+      RangeTask left = new RangeTask(shard, first, middle, now, repair);
+      left.fork();
+      PointsReconciliationReport report = new RangeTask(shard, middle + 1,
+          last, now, repair).compute();
+      report.merge(left.join());
+      return report;
+    }
+  }
+  
+  @Data
+  private static class Key
+  {
+    private final Long userId;
+    
+    private final Long levelId;
+  }
+  
+  /**
+   * The expected points of a user in a level and the activities whose expiry
+   * flag disagrees with their expiry date.
+   */
+  private static class Expected
+  {
+    private static final Expected NONE = new Expected();
+    
+    private long points;
+    
+    /** Expired by date but not flagged, the sweep is behind. */
+    private final List<Long> late = new ArrayList<>();
+    
+    /** Flagged but not expired by date. */
+    private final List<Long> early = new ArrayList<>();
+    
+    private boolean hasWrongFlags() {
+      return !late.isEmpty() || !early.isEmpty();
+    }
+  }
+  
+  @Data
+  private static class Repair
+  {
+    private final Diff diff;
+    
+    /** Version of the stored total, null if missing. */
+    private final Long version;
+    
+    private final Expected expected;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,20 @@
+package za.co.sqim.vitality.shard;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * A write to a Level that is being moved to another shard, the write can be
+ * retried once the move finished.
+ * 
+ * @author Avuyile Malotana
+ */
+@ResponseStatus(HttpStatus.SERVICE_UNAVAILABLE)
+public class LevelMovingException extends RuntimeException
+{
+  private static final long serialVersionUID = -2651867102833384520L;
+  
+  public LevelMovingException(Long levelId) {
+    super("Level " + levelId + " is being moved to another shard.");
+  }
+}
\ No newline at end of file
@@ -0,0 +1,63 @@
+package za.co.sqim.vitality.shard;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import javax.sql.DataSource;
+
+import org.springframework.jdbc.datasource.lookup.AbstractRoutingDataSource;
+
+/**
+ * Hands out connections of the shard set in the ShardContext.
+ * 
+ * @author Avuyile Malotana
+ */
+public class LevelRoutingDataSource extends AbstractRoutingDataSource
+{
+  private final String defaultShard;
+  
+  private final Map<String, DataSource> shards;
+  
+  public LevelRoutingDataSource(String defaultShard,
+      Map<String, DataSource> shards) {
+    if (!shards.containsKey(defaultShard)) {
+      throw new IllegalArgumentException(
+          "No datasource for the default shard " + defaultShard);
+    }
+    this.defaultShard = defaultShard;
+    this.shards = Collections.unmodifiableMap(new HashMap<>(shards));
+    setTargetDataSources(new HashMap<Object, Object>(shards));
+    setDefaultTargetDataSource(shards.get(defaultShard));
+    setLenientFallback(false);
+  }
+  
+  @Override
+  protected Object determineCurrentLookupKey() {
+    String shard = ShardContext.get();
+    return shard == null ? defaultShard : shard;
+  }
+  
+  public String getDefaultShard() {
+    return defaultShard;
+  }
+  
+  public Set<String> getShardNames() {
+    return shards.keySet();
+  }
+  
+  /**
+   * The datasource of a shard itself, bypassing the routing.
+   * 
+   * @throws IllegalArgumentException
+   *           When the shard doesn't exist.
+   */
+  public DataSource getShard(String name) {
+    DataSource dataSource = shards.get(name);
+    if (dataSource == null) {
+      throw new IllegalArgumentException("Unknown shard " + name);
+    }
+    return dataSource;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,245 @@
+package za.co.sqim.vitality.shard;
+
+import java.lang.annotation.Annotation;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.stream.BaseStream;
+
+import org.aspectj.lang.ProceedingJoinPoint;
+import org.aspectj.lang.annotation.Around;
+import org.aspectj.lang.annotation.Aspect;
+import org.aspectj.lang.reflect.MethodSignature;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.context.annotation.Lazy;
+import org.springframework.core.Ordered;
+import org.springframework.core.annotation.Order;
+import org.springframework.data.domain.Slice;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.repository.query.Param;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import za.co.sqim.vitality.model.AbstractActivity;
+import za.co.sqim.vitality.model.ActivityMaster;
+import za.co.sqim.vitality.model.ActivityStatusCount;
+import za.co.sqim.vitality.model.Group;
+import za.co.sqim.vitality.model.GroupMember;
+import za.co.sqim.vitality.model.Level;
+import za.co.sqim.vitality.model.Milestone;
+import za.co.sqim.vitality.model.UserInvitation;
+import za.co.sqim.vitality.model.UserPointsTotal;
+
+/**
+ * Routes service and repository calls to the shard of the Level they work
+ * on.
+ * 
+ * The Level is taken from the first argument that is (or belongs to) a
+ * Level, or from a parameter named or annotated @Param("levelId"). The
+ * advice runs before the transaction advice, so a service method for a
+ * Level opens its transaction on the shard of that Level. A call for another
+ * shard inside a running transaction runs in a transaction of its own on
+ * that shard, the entities it returns are not part of the running
+ * transaction.
+ * 
+ * Repository calls without a Level (by id, user, group, ...) run on the
+ * shard of the open ShardContext scope. Without a scope reads are run on
+ * every shard and their results merged (ids are unique over the shards);
+ * writes, pages and streams, which can't be merged, are rejected. Writes to a Level
+ * that is being moved are rejected with a LevelMovingException.
+ * 
+ * @author Avuyile Malotana
+ */
+@Aspect
+@Component
+@Order(Ordered.HIGHEST_PRECEDENCE)
+@ConditionalOnProperty(prefix = "vitality.shards", name = "enabled")
+public class LevelShardAspect
+{
+  @Autowired
+  private ShardDirectory shardDirectory;
+  
+  @Lazy
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+  
+  @Around("execution(public * za.co.sqim.vitality.service..*.*(..))")
+  public Object routeService(ProceedingJoinPoint joinPoint) throws Throwable {
+    Long levelId = findLevelId(joinPoint);
+    if (levelId == null) {
+      return joinPoint.proceed();
+    }
+    return proceedOn(joinPoint, shardDirectory.getShard(levelId), false);
+  }
+  
+  @Around("execution(* za.co.sqim.vitality.repository..*.*(..))")
+  public Object routeRepository(ProceedingJoinPoint joinPoint)
+      throws Throwable {
+    Method method = ((MethodSignature) joinPoint.getSignature()).getMethod();
+    boolean write = isWrite(method);
+    Long levelId = findLevelId(joinPoint);
+    if (levelId != null) {
+      if (write) {
+        shardDirectory.checkWritable(levelId);
+      }
+      return proceedOn(joinPoint, shardDirectory.getShard(levelId), false);
+    }
+    if (ShardContext.get() != null || method.getReturnType() == void.class) {
+      return joinPoint.proceed();
+    }
+    Class<?> type = method.getReturnType();
+    if (write || Slice.class.isAssignableFrom(type)
+        || BaseStream.class.isAssignableFrom(type)) {
+      throw new IllegalStateException(method + " has no Level to route it "
+          + "by, open a ShardContext scope for the shard it works on");
+    }
+    Object merged = null;
+    for (String shard : ShardContext.shardsOf(shardDirectory.getDataSource())) {
+      merged = merge(method, merged, proceedOn(joinPoint, shard, true));
+    }
+    return merged;
+  }
+  
+  private Object proceedOn(ProceedingJoinPoint joinPoint, String shard,
+      boolean readOnly) throws Throwable {
+    String current = ShardContext.get();
+    if (current == null) {
+      current = shardDirectory.getDataSource().getDefaultShard();
+    }
+    if (shard.equals(current)) {
+      return joinPoint.proceed();
+    }
+    try (ShardContext.Scope scope = ShardContext.open(shard)) {
+      if (!TransactionSynchronizationManager.isActualTransactionActive()) {
+        return joinPoint.proceed();
+      }
+      // the running transaction holds a connection to the current shard
+      TransactionTemplate template = new TransactionTemplate(
+          transactionManager);
+      template.setPropagationBehavior(
+          TransactionDefinition.PROPAGATION_REQUIRES_NEW);
+      template.setReadOnly(readOnly);
+      Throwable[] failure = new Throwable[1];
+      Object result = template.execute(status -> {
+        try {
+          return joinPoint.proceed();
+        }
+        catch (RuntimeException | Error e) {
+          throw e;
+        }
+        catch (Throwable e) {
+          status.setRollbackOnly();
+          failure[0] = e;
+          return null;
+        }
+      });
+      if (failure[0] != null) {
+        throw failure[0];
+      }
+      return result;
+    }
+  }
+  
+  private static boolean isWrite(Method method) {
+    String name = method.getName();
+    return method.isAnnotationPresent(Modifying.class)
+        || name.startsWith("save") || name.startsWith("delete");
+  }
+  
+  @SuppressWarnings("unchecked")
+  private static Object merge(Method method, Object merged, Object result) {
+    if (merged == null) {
+      return result;
+    }
+    if (result == null) {
+      return merged;
+    }
+    if (merged instanceof Collection) {
+      Collection<Object> all = merged instanceof Set
+          ? new LinkedHashSet<>((Set<Object>) merged)
+          : new ArrayList<>((Collection<Object>) merged);
+      all.addAll((Collection<Object>) result);
+      return all;
+    }
+    if (merged instanceof Boolean) {
+      return (Boolean) merged || (Boolean) result;
+    }
+    if (method.getName().startsWith("count")) {
+      if (merged instanceof Integer) {
+        return (Integer) merged + (Integer) result;
+      }
+      return ((Number) merged).longValue() + ((Number) result).longValue();
+    }
+    // a single entity or value, only found on one shard
+    return merged;
+  }
+  
+  private static Long findLevelId(ProceedingJoinPoint joinPoint) {
+    Object[] args = joinPoint.getArgs();
+    MethodSignature signature = (MethodSignature) joinPoint.getSignature();
+    String[] names = signature.getParameterNames();
+    Annotation[][] annotations = signature.getMethod()
+        .getParameterAnnotations();
+    for (int i = 0; i < args.length; i++) {
+      if (args[i] instanceof Long && names != null
+          && "levelId".equals(names[i])) {
+        return (Long) args[i];
+      }
+      for (Annotation annotation : annotations[i]) {
+        if (annotation instanceof Param
+            && "levelId".equals(((Param) annotation).value())
+            && args[i] instanceof Long) {
+          return (Long) args[i];
+        }
+      }
+      Long levelId = levelIdOf(args[i]);
+      if (levelId != null) {
+        return levelId;
+      }
+    }
+    return null;
+  }
+  
+  private static Long levelIdOf(Object arg) {
+    if (arg instanceof Iterable) {
+      Iterator<?> iterator = ((Iterable<?>) arg).iterator();
+      return iterator.hasNext() ? levelIdOf(iterator.next()) : null;
+    }
+    if (arg instanceof Group) {
+      return idOf(((Group) arg).getLevel());
+    }
+    if (arg instanceof AbstractActivity) {
+      return ((AbstractActivity) arg).getLevelId();
+    }
+    if (arg instanceof Milestone) {
+      return idOf(((Milestone) arg).getLevel());
+    }
+    if (arg instanceof ActivityStatusCount) {
+      return ((ActivityStatusCount) arg).getLevelId();
+    }
+    if (arg instanceof UserPointsTotal) {
+      return ((UserPointsTotal) arg).getLevelId();
+    }
+    if (arg instanceof GroupMember) {
+      return levelIdOf(((GroupMember) arg).getGroup());
+    }
+    if (arg instanceof ActivityMaster) {
+      return levelIdOf(((ActivityMaster) arg).getGroup());
+    }
+    if (arg instanceof UserInvitation) {
+      return idOf(((UserInvitation) arg).getLevel());
+    }
+    return null;
+  }
+  
+  private static Long idOf(Level level) {
+    return level == null ? null : level.getId();
+  }
+}
\ No newline at end of file
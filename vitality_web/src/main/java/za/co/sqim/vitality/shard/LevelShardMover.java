@@ -0,0 +1,350 @@
+package za.co.sqim.vitality.shard;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceUnit;
+import javax.sql.DataSource;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DataSourceTransactionManager;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import za.co.sqim.vitality.event.ModelChangeEvent;
+import za.co.sqim.vitality.event.ModelChangePublisher;
+import za.co.sqim.vitality.model.ActivityMaster;
+import za.co.sqim.vitality.model.GroupMember;
+
+/**
+ * Moves a Level, with its groups and everything stored per Level, from one
+ * shard to another.
+ * 
+ * The move is recorded in the ShardDirectory first, which blocks writes to
+ * the Level on every node; the grace period gives writes that started before
+ * the block time to finish. The rows are then copied to the target shard in
+ * one transaction, the directory is switched and the rows are deleted from
+ * the source shard in one transaction. A move that failed part way is resumed
+ * by moving the Level to the same target again: a partial copy was rolled
+ * back, a copy that was switched to only has its source rows deleted.
+ * 
+ * Rows the Level refers to outside the Level, such as its users, are copied
+ * along when the target doesn't have them yet so the foreign keys and joins
+ * hold. They are reference copies, the default shard stays their owner.
+ * 
+ * Ids are copied as is, shards must therefore hand out ids from disjoint
+ * ranges (e.g. different auto increment offsets).
+ * 
+ * @author Avuyile Malotana
+ */
+@Component
+@ConditionalOnProperty(prefix = "vitality.shards", name = "enabled")
+public class LevelShardMover
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(LevelShardMover.class);
+  
+  private static final int BATCH_SIZE = 500;
+  
+  /** Tables with a LEVEL_ID column, copied after and deleted before GROUPS. */
+  private static final String[] LEVEL_TABLES = { "ACTIVITY",
+      "ACTIVITY_ARCHIVE", "ACTIVITY_STATUS_COUNTS", "ACTIVITY_STATUS_SWEEP",
+      "LEVEL_MILESTONES", "USER_POINTS_TOTALS", "INVITATIONS",
+      "GROUP_TREE_VERSIONS", "GROUP_TREE_CHANGES" };
+  
+  @Autowired
+  private ShardDirectory shardDirectory;
+  
+  @Autowired
+  private ModelChangePublisher changePublisher;
+  
+  @PersistenceUnit
+  private EntityManagerFactory entityManagerFactory;
+  
+  /** Milliseconds between blocking the writes and copying the rows. */
+  @Value("${vitality.shards.move-grace-period:5000}")
+  private long gracePeriod = 5000;
+  
+  /** [column, referenced table, referenced column] rows per table. */
+  private final Map<String, List<String[]>> foreignKeys =
+      new ConcurrentHashMap<>();
+  
+  /**
+   * A table whose rows of the Level are those with a group of the Level.
+   */
+  private static class GroupTable
+  {
+    private final String name;
+    
+    private final String groupColumn;
+    
+    private GroupTable(Class<?> entity, String groupProperty,
+        SessionFactory sessionFactory) {
+      AbstractEntityPersister persister =
+          (AbstractEntityPersister) sessionFactory.getClassMetadata(entity);
+      this.name = persister.getTableName();
+      this.groupColumn = persister.getPropertyColumnNames(groupProperty)[0];
+    }
+  }
+  
+  public void move(Long levelId, String targetShard) {
+    LevelRoutingDataSource dataSource = shardDirectory.getDataSource();
+    // fails for an unknown shard before anything is recorded
+    DataSource targetDataSource = dataSource.getShard(targetShard);
+    if (targetShard.equals(shardDirectory.getShard(levelId))
+        && !shardDirectory.isMoving(levelId)) {
+      return;
+    }
+    String sourceShard = shardDirectory.startMove(levelId, targetShard);
+    publish(levelId);
+    waitForWrites();
+    
+    JdbcTemplate source = new JdbcTemplate(dataSource.getShard(sourceShard));
+    JdbcTemplate target = new JdbcTemplate(targetDataSource);
+    List<List<Long>> groupLevels = findGroupIdsByDepth(source, levelId);
+    List<GroupTable> groupTables = getGroupTables();
+    Set<String> moved = new HashSet<>();
+    moved.add("GROUPS");
+    for (GroupTable table : groupTables) {
+      moved.add(table.name.toUpperCase());
+    }
+    for (String table : LEVEL_TABLES) {
+      moved.add(table);
+    }
+    
+    if (!targetShard.equals(shardDirectory.getShard(levelId))) {
+      transaction(targetDataSource).execute(status -> {
+        // rows an attempt committed before it could switch the directory
+        delete(target, levelId, groupLevels, groupTables);
+        for (List<Long> groupIds : groupLevels) {
+          for (List<Long> chunk : partition(groupIds)) {
+            copy(source, target, "GROUPS", "ID in (" + join(chunk) + ")",
+                moved);
+          }
+        }
+        for (GroupTable table : groupTables) {
+          for (List<Long> groupIds : groupLevels) {
+            for (List<Long> chunk : partition(groupIds)) {
+              copy(source, target, table.name, table.groupColumn + " in ("
+                  + join(chunk) + ")", moved);
+            }
+          }
+        }
+        for (String table : LEVEL_TABLES) {
+          copy(source, target, table, "LEVEL_ID = " + levelId, moved);
+        }
+        return null;
+      });
+      shardDirectory.finishCopy(levelId, targetShard);
+      publish(levelId);
+    }
+    
+    transaction(dataSource.getShard(sourceShard)).execute(status -> {
+      delete(source, levelId, groupLevels, groupTables);
+      return null;
+    });
+    shardDirectory.endMove(levelId);
+    publish(levelId);
+    logger.info("Moved level {} from shard {} to {}", levelId, sourceShard,
+        targetShard);
+  }
+  
+  private void publish(Long levelId) {
+    changePublisher.publish(ModelChangeEvent.Type.LEVEL_SHARD,
+        ModelChangeEvent.Action.SAVED, levelId, levelId);
+  }
+  
+  private void waitForWrites() {
+    try {
+      Thread.sleep(gracePeriod);
+    }
+    catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IllegalStateException("Interrupted, the move can be resumed",
+          e);
+    }
+  }
+  
+  private List<GroupTable> getGroupTables() {
+    SessionFactory sessionFactory = entityManagerFactory
+        .unwrap(SessionFactory.class);
+    List<GroupTable> tables = new ArrayList<>();
+    tables.add(new GroupTable(ActivityMaster.class, "group", sessionFactory));
+    tables.add(new GroupTable(GroupMember.class, "group", sessionFactory));
+    return tables;
+  }
+  
+  /**
+   * Delete the rows of the Level, the ones referring to others first.
+   */
+  private static void delete(JdbcTemplate shard, Long levelId,
+      List<List<Long>> groupLevels, List<GroupTable> groupTables) {
+    for (String table : LEVEL_TABLES) {
+      shard.update("delete from " + table + " where LEVEL_ID = ?", levelId);
+    }
+    for (int i = groupTables.size() - 1; i >= 0; i--) {
+      GroupTable table = groupTables.get(i);
+      for (List<Long> groupIds : groupLevels) {
+        for (List<Long> chunk : partition(groupIds)) {
+          shard.update("delete from " + table.name + " where "
+              + table.groupColumn + " in (" + join(chunk) + ")");
+        }
+      }
+    }
+    List<List<Long>> deepestFirst = new ArrayList<>(groupLevels);
+    Collections.reverse(deepestFirst);
+    for (List<Long> groupIds : deepestFirst) {
+      for (List<Long> chunk : partition(groupIds)) {
+        shard.update("delete from GROUPS where ID in (" + join(chunk) + ")");
+      }
+    }
+  }
+  
+  private static TransactionTemplate transaction(DataSource dataSource) {
+    return new TransactionTemplate(new DataSourceTransactionManager(
+        dataSource));
+  }
+  
+  /**
+   * The group ids of the Level, the Level itself first, then its children,
+   * their children, etc.
+   */
+  private static List<List<Long>> findGroupIdsByDepth(JdbcTemplate source,
+      Long levelId) {
+    List<List<Long>> levels = new ArrayList<>();
+    List<Long> frontier = Collections.singletonList(levelId);
+    while (!frontier.isEmpty()) {
+      levels.add(frontier);
+      List<Long> children = new ArrayList<>();
+      for (List<Long> parents : partition(frontier)) {
+        children.addAll(source.queryForList(
+            "select ID from GROUPS where PARENT_ID in (" + join(parents) + ")",
+            Long.class));
+      }
+      frontier = children;
+    }
+    return levels;
+  }
+  
+  /**
+   * Copy the matching rows column for column, in JDBC batches, after the
+   * rows they refer to outside the moved tables.
+   */
+  private void copy(JdbcTemplate source, JdbcTemplate target, String table,
+      String where, Set<String> moved) {
+    copyReferences(source, target, table, where, moved);
+    List<Object[]> batch = new ArrayList<>(BATCH_SIZE);
+    String[] insert = new String[1];
+    source.query("select * from " + table + " where " + where, rs -> {
+      ResultSetMetaData meta = rs.getMetaData();
+      int columns = meta.getColumnCount();
+      if (insert[0] == null) {
+        List<String> names = new ArrayList<>();
+        List<String> marks = new ArrayList<>();
+        for (int i = 1; i <= columns; i++) {
+          names.add(meta.getColumnName(i));
+          marks.add("?");
+        }
+        insert[0] = "insert into " + table + " (" + String.join(", ", names)
+            + ") values (" + String.join(", ", marks) + ")";
+      }
+      Object[] row = new Object[columns];
+      for (int i = 0; i < columns; i++) {
+        row[i] = rs.getObject(i + 1);
+      }
+      batch.add(row);
+      if (batch.size() == BATCH_SIZE) {
+        target.batchUpdate(insert[0], batch);
+        batch.clear();
+      }
+    });
+    if (!batch.isEmpty()) {
+      target.batchUpdate(insert[0], batch);
+    }
+  }
+  
+  /**
+   * Copy the rows of other tables that the matching rows refer to and the
+   * target doesn't have yet.
+   */
+  private void copyReferences(JdbcTemplate source, JdbcTemplate target,
+      String table, String where, Set<String> moved) {
+    for (String[] key : getForeignKeys(source, table)) {
+      if (moved.contains(key[1].toUpperCase())) {
+        continue;
+      }
+      List<Long> ids = source.queryForList("select distinct " + key[0]
+          + " from " + table + " where (" + where + ") and " + key[0]
+          + " is not null", Long.class);
+      for (List<Long> chunk : partition(ids)) {
+        List<Long> missing = new ArrayList<>(chunk);
+        missing.removeAll(target.queryForList("select " + key[2] + " from "
+            + key[1] + " where " + key[2] + " in (" + join(chunk) + ")",
+            Long.class));
+        if (!missing.isEmpty()) {
+          Set<String> referenced = new HashSet<>(moved);
+          referenced.add(table.toUpperCase());
+          copy(source, target, key[1], key[2] + " in (" + join(missing) + ")",
+              referenced);
+        }
+      }
+    }
+  }
+  
+  private List<String[]> getForeignKeys(JdbcTemplate source, String table) {
+    return foreignKeys.computeIfAbsent(table.toUpperCase(), k -> source
+        .execute((ConnectionCallback<List<String[]>>) connection -> {
+          DatabaseMetaData meta = connection.getMetaData();
+          String name = meta.storesLowerCaseIdentifiers() ? table.toLowerCase()
+              : meta.storesUpperCaseIdentifiers() ? table.toUpperCase()
+                  : table;
+          Map<String, String[]> keys = new LinkedHashMap<>();
+          try (ResultSet rs = meta.getImportedKeys(connection.getCatalog(),
+              null, name)) {
+            while (rs.next()) {
+              keys.put(rs.getString("FKCOLUMN_NAME"), new String[] {
+                  rs.getString("FKCOLUMN_NAME"), rs.getString("PKTABLE_NAME"),
+                  rs.getString("PKCOLUMN_NAME") });
+            }
+          }
+          return new ArrayList<>(keys.values());
+        }));
+  }
+  
+  private static List<List<Long>> partition(List<Long> ids) {
+    List<List<Long>> partitions = new ArrayList<>();
+    for (int i = 0; i < ids.size(); i += BATCH_SIZE) {
+      partitions.add(ids.subList(i, Math.min(ids.size(), i + BATCH_SIZE)));
+    }
+    return partitions;
+  }
+  
+  private static String join(List<Long> ids) {
+    StringBuilder builder = new StringBuilder();
+    for (Long id : ids) {
+      if (builder.length() > 0) {
+        builder.append(',');
+      }
+      builder.append(id.longValue());
+    }
+    return builder.toString();
+  }
+}
\ No newline at end of file
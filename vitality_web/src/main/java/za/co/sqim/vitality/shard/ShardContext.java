@@ -0,0 +1,128 @@
+package za.co.sqim.vitality.shard;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.function.Function;
+
+import javax.sql.DataSource;
+
+/**
+ * The shard the current thread works on, read by the LevelRoutingDataSource
+ * when a connection is obtained. Null means the default shard.
+ * 
+ * A scope must be opened before a transaction starts, the connection of a
+ * running transaction can't be switched:
+ * 
+ * <pre>
+ * try (ShardContext.Scope scope = ShardContext.open(shard)) {
+ *   ...
+ * }
+ * </pre>
+ * 
+ * @author Avuyile Malotana
+ */
+public final class ShardContext
+{
+  private static final ThreadLocal<String> current = new ThreadLocal<>();
+  
+  /** Set by the ShardDirectory when sharding is enabled. */
+  private static volatile Function<Long, String> directory;
+  
+  private ShardContext() {
+  }
+  
+  /**
+   * Restores the previous shard when closed.
+   */
+  public static final class Scope implements AutoCloseable
+  {
+    private final String previous;
+    
+    private Scope(String previous) {
+      this.previous = previous;
+    }
+    
+    @Override
+    public void close() {
+      set(previous);
+    }
+  }
+  
+  public static String get() {
+    return current.get();
+  }
+  
+  /**
+   * Work on the given shard until the scope is closed, null keeps the shard
+   * of the enclosing scope.
+   */
+  public static Scope open(String shard) {
+    Scope scope = new Scope(current.get());
+    if (shard != null) {
+      set(shard);
+    }
+    return scope;
+  }
+  
+  /**
+   * Work on the shard of a Level until the scope is closed, a no-op when
+   * sharding isn't enabled.
+   */
+  public static Scope openLevel(Long levelId) {
+    Function<Long, String> levels = directory;
+    return open(levels == null || levelId == null ? null
+        : levels.apply(levelId));
+  }
+  
+  /**
+   * Run the work on the given shard, restoring the previous shard afterwards.
+   */
+  public static <T> T callOn(String shard, Callable<T> work) throws Exception {
+    try (Scope scope = open(shard)) {
+      return work.call();
+    }
+  }
+  
+  /**
+   * The shards behind a datasource, for jobs that work on every row and must
+   * run once per shard. A datasource that isn't sharded is a single null
+   * shard, which {@link #open(String)} leaves as it is.
+   */
+  public static List<String> shardsOf(DataSource dataSource) {
+    if (dataSource instanceof LevelRoutingDataSource) {
+      List<String> shards = new ArrayList<>(
+          ((LevelRoutingDataSource) dataSource).getShardNames());
+      Collections.sort(shards);
+      return shards;
+    }
+    return Collections.singletonList(null);
+  }
+  
+  /**
+   * Wrap work handed to another thread so it runs on the shard of the
+   * current thread.
+   */
+  public static Runnable wrap(Runnable work) {
+    String shard = current.get();
+    return () -> {
+      try (Scope scope = open(shard)) {
+        work.run();
+      }
+    };
+  }
+  
+  static void setDirectory(Function<Long, String> levels) {
+    directory = levels;
+  }
+  
+  static void set(String shard) {
+    if (shard == null) {
+      current.remove();
+    }
+    else {
+      current.set(shard);
+    }
+  }
+}
\ No newline at end of file
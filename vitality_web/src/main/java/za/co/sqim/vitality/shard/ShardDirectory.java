@@ -0,0 +1,159 @@
+package za.co.sqim.vitality.shard;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.springframework.dao.DuplicateKeyException;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import za.co.sqim.vitality.event.ModelChangeEvent;
+import za.co.sqim.vitality.event.ModelChangeSubscriber;
+
+/**
+ * Maps Level ids to shards, stored as LevelShard rows on the default shard.
+ * Levels without a row live on the default shard.
+ * 
+ * The mapping is read on first use and reloaded when any node publishes a
+ * LEVEL_SHARD ModelChangeEvent, which is also how a move started on one node
+ * blocks the writes to the Level on every other node.
+ * 
+ * @author Avuyile Malotana
+ */
+public class ShardDirectory implements ModelChangeSubscriber
+{
+  // @formatter:off
+  private static final String SELECT = "select LEVEL_ID, SHARD, MOVING_TO "
+      + "from LEVEL_SHARDS";
+  
+  private static final String SELECT_MOVE = "select MOVING_FROM, MOVING_TO "
+      + "from LEVEL_SHARDS where LEVEL_ID = ?";
+  
+  private static final String INSERT = "insert into LEVEL_SHARDS "
+      + "(LEVEL_ID, SHARD) values (?, ?)";
+  
+  private static final String START_MOVE = "update LEVEL_SHARDS "
+      + "set MOVING_FROM = SHARD, MOVING_TO = ? "
+      + "where LEVEL_ID = ? and MOVING_TO is null and SHARD <> ?";
+  
+  private static final String SET_SHARD = "update LEVEL_SHARDS set SHARD = ? "
+      + "where LEVEL_ID = ? and MOVING_TO = ?";
+  
+  private static final String END_MOVE = "update LEVEL_SHARDS "
+      + "set MOVING_FROM = null, MOVING_TO = null where LEVEL_ID = ?";
+  // @formatter:on
+  
+  private final LevelRoutingDataSource dataSource;
+  
+  private final JdbcTemplate jdbcTemplate;
+  
+  private volatile Map<Long, String> shards;
+  
+  /** The Levels being moved, with the shard they move to. */
+  private volatile Map<Long, String> moving;
+  
+  public ShardDirectory(LevelRoutingDataSource dataSource) {
+    this.dataSource = dataSource;
+    this.jdbcTemplate = new JdbcTemplate(
+        dataSource.getShard(dataSource.getDefaultShard()));
+    ShardContext.setDirectory(this::getShard);
+  }
+  
+  /**
+   * Reload the mapping, e.g. after another node moved a Level.
+   */
+  public synchronized void refresh() {
+    Map<Long, String> loadedShards = new ConcurrentHashMap<>();
+    Map<Long, String> loadedMoving = new ConcurrentHashMap<>();
+    jdbcTemplate.query(SELECT, rs -> {
+      loadedShards.put(rs.getLong(1), rs.getString(2));
+      if (rs.getString(3) != null) {
+        loadedMoving.put(rs.getLong(1), rs.getString(3));
+      }
+    });
+    shards = loadedShards;
+    moving = loadedMoving;
+  }
+  
+  @Override
+  public void onChange(ModelChangeEvent event) {
+    if (event.getType() == ModelChangeEvent.Type.LEVEL_SHARD) {
+      refresh();
+    }
+  }
+  
+  /**
+   * The shard that holds the Level, while it is moved the shard it is moved
+   * from.
+   */
+  public String getShard(Long levelId) {
+    return getShards().getOrDefault(levelId, dataSource.getDefaultShard());
+  }
+  
+  public boolean isMoving(Long levelId) {
+    getShards();
+    return moving.containsKey(levelId);
+  }
+  
+  /**
+   * @throws LevelMovingException
+   *           When the Level is being moved to another shard.
+   */
+  public void checkWritable(Long levelId) {
+    if (isMoving(levelId)) {
+      throw new LevelMovingException(levelId);
+    }
+  }
+  
+  public LevelRoutingDataSource getDataSource() {
+    return dataSource;
+  }
+  
+  /**
+   * Record that the Level moves to the target shard, which blocks writes to
+   * it. A move to the same target that didn't finish is resumed.
+   * 
+   * @return The shard the Level moves from.
+   * @throws IllegalStateException
+   *           When the Level is being moved to another shard.
+   */
+  String startMove(Long levelId, String targetShard) {
+    try {
+      jdbcTemplate.update(INSERT, levelId, getShard(levelId));
+    }
+    catch (DuplicateKeyException e) {
+      // already mapped
+    }
+    jdbcTemplate.update(START_MOVE, targetShard, levelId, targetShard);
+    String[] move = jdbcTemplate.queryForObject(SELECT_MOVE,
+        (rs, i) -> new String[] { rs.getString(1), rs.getString(2) },
+        levelId);
+    if (!targetShard.equals(move[1])) {
+      throw new IllegalStateException("Level " + levelId
+          + " is being moved to " + move[1] + ", not " + targetShard);
+    }
+    refresh();
+    return move[0];
+  }
+  
+  /**
+   * Switch the Level to the shard it is moved to, writes stay blocked.
+   */
+  void finishCopy(Long levelId, String targetShard) {
+    jdbcTemplate.update(SET_SHARD, targetShard, levelId, targetShard);
+    refresh();
+  }
+  
+  void endMove(Long levelId) {
+    jdbcTemplate.update(END_MOVE, levelId);
+    refresh();
+  }
+  
+  private Map<Long, String> getShards() {
+    Map<Long, String> current = shards;
+    if (current == null) {
+      refresh();
+      current = shards;
+    }
+    return current;
+  }
+}
\ No newline at end of file
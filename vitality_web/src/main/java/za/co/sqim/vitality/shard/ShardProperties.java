@@ -0,0 +1,44 @@
+package za.co.sqim.vitality.shard;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.springframework.boot.context.properties.ConfigurationProperties;
+
+import lombok.Data;
+
+/**
+ * Configuration of the Level shards, for example:
+ * 
+ * <pre>
+ * vitality.shards.enabled=true
+ * vitality.shards.default-shard=main
+ * vitality.shards.datasources.main.url=jdbc:h2:mem:main
+ * vitality.shards.datasources.second.url=jdbc:h2:mem:second
+ * </pre>
+ * 
+ * @author Avuyile Malotana
+ */
+@Data
+@ConfigurationProperties(prefix = "vitality.shards")
+public class ShardProperties
+{
+  private boolean enabled = false;
+  
+  /** Holds the shard directory, and every Level that isn't mapped. */
+  private String defaultShard = "default";
+  
+  private Map<String, Shard> datasources = new LinkedHashMap<>();
+  
+  @Data
+  public static class Shard
+  {
+    private String url;
+    
+    private String username;
+    
+    private String password;
+    
+    private String driverClassName;
+  }
+}
\ No newline at end of file
@@ -0,0 +1,50 @@
+package za.co.sqim.vitality.web;
+
+import java.io.IOException;
+
+import javax.servlet.http.HttpServletResponse;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+
+import za.co.sqim.vitality.service.ActivityExportService;
+
+/**
+ * Compliance exports of the Activity history of a Level, archived activities
+ * are included unless archived=false is given.
+ * 
+ * @author Avuyile Malotana
+ */
+@Controller
+@RequestMapping("/admin/export/level/{levelId}")
+public class ActivityExportController
+{
+  @Autowired
+  private ActivityExportService activityExportService;
+  
+  @GetMapping("/activities.csv")
+  public void exportCsv(@PathVariable Long levelId,
+      @RequestParam(name = "archived", defaultValue = "true") boolean archived,
+      HttpServletResponse response) throws IOException {
+    response.setContentType("text/csv;charset=UTF-8");
+    response.setHeader("Content-Disposition",
+        "attachment; filename=\"activities-" + levelId + ".csv\"");
+    activityExportService.exportCsv(levelId, archived,
+        response.getWriter());
+  }
+  
+  @GetMapping("/activities.jsonl")
+  public void exportJsonLines(@PathVariable Long levelId,
+      @RequestParam(name = "archived", defaultValue = "true") boolean archived,
+      HttpServletResponse response) throws IOException {
+    response.setContentType("application/x-ndjson;charset=UTF-8");
+    response.setHeader("Content-Disposition",
+        "attachment; filename=\"activities-" + levelId + ".jsonl\"");
+    activityExportService.exportJsonLines(levelId, archived,
+        response.getWriter());
+  }
+}
\ No newline at end of file
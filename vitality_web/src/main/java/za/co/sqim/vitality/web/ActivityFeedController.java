@@ -0,0 +1,35 @@
+package za.co.sqim.vitality.web;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import za.co.sqim.vitality.model.User;
+import za.co.sqim.vitality.service.ActivityFeedService;
+
+/**
+ * Server-sent events with the activity changes ("activity"), point totals
+ * ("points") and milestone achievements ("milestone") of a receiving user,
+ * to replace polling the activity list. Only the user can open their own
+ * stream.
+ * 
+ * @author Avuyile Malotana
+ */
+@RestController
+public class ActivityFeedController
+{
+  @Autowired
+  private ActivityFeedService activityFeedService;
+  
+  @GetMapping("/api/users/{userId}/activities/feed")
+  public SseEmitter feed(@PathVariable Long userId,
+      @AuthenticationPrincipal User user) {
+    if (user == null || !userId.equals(user.getId())) {
+      throw new ForbiddenException("Not the stream of user " + userId);
+    }
+    return activityFeedService.subscribe(userId);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,19 @@
+package za.co.sqim.vitality.web;
+
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.ResponseStatus;
+
+/**
+ * The authenticated user may not see the requested data.
+ * 
+ * @author Avuyile Malotana
+ */
+@ResponseStatus(HttpStatus.FORBIDDEN)
+public class ForbiddenException extends RuntimeException
+{
+  private static final long serialVersionUID = 4410893062275186310L;
+  
+  public ForbiddenException(String message) {
+    super(message);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,44 @@
+package za.co.sqim.vitality.web;
+
+import java.util.List;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.security.core.annotation.AuthenticationPrincipal;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import za.co.sqim.vitality.model.User;
+import za.co.sqim.vitality.service.GroupNameIndex;
+import za.co.sqim.vitality.service.LevelMembershipCache;
+
+/**
+ * Autocomplete for the group pickers, within a Level the authenticated user
+ * is a member of.
+ * 
+ * @author Avuyile Malotana
+ */
+@RestController
+public class GroupSearchController
+{
+  private static final int MAX_LIMIT = 100;
+  
+  @Autowired
+  private GroupNameIndex groupNameIndex;
+  
+  @Autowired
+  private LevelMembershipCache membershipCache;
+  
+  @GetMapping("/api/levels/{levelId}/groups/search")
+  public List<GroupNameIndex.Match> search(@PathVariable Long levelId,
+      @RequestParam("q") String query,
+      @RequestParam(name = "limit", defaultValue = "20") int limit,
+      @AuthenticationPrincipal User user) {
+    if (user == null
+        || !membershipCache.isMemberOfLevel(user.getId(), levelId)) {
+      throw new ForbiddenException("Not a member of level " + levelId);
+    }
+    return groupNameIndex.search(levelId, query, Math.min(limit, MAX_LIMIT));
+  }
+}
\ No newline at end of file
@@ -0,0 +1,57 @@
+package za.co.sqim.vitality.web;
+
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.CacheControl;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.context.request.WebRequest;
+
+import za.co.sqim.vitality.service.GroupTreeService;
+
+/**
+ * The group tree of a Level for the navigation, see GroupTreeService for the
+ * versions.
+ * 
+ * @author Avuyile Malotana
+ */
+@RestController
+@RequestMapping("/api/levels/{levelId}/groups/tree")
+public class GroupTreeController
+{
+  @Autowired
+  private GroupTreeService groupTreeService;
+  
+  /**
+   * The full tree, or 304 Not Modified when the If-None-Match header holds
+   * the current version.
+   */
+  @GetMapping
+  public ResponseEntity<GroupTreeService.Tree> tree(
+      @PathVariable Long levelId, WebRequest request) {
+    String etag = "\"" + groupTreeService.getVersion(levelId) + "\"";
+    if (request.checkNotModified(etag)) {
+      return null;
+    }
+    GroupTreeService.Tree tree = groupTreeService.getTree(levelId);
+    return ResponseEntity.ok().eTag(tree.getVersion())
+        .cacheControl(CacheControl.maxAge(0, TimeUnit.SECONDS).cachePrivate()
+            .mustRevalidate())
+        .body(tree);
+  }
+  
+  /**
+   * The groups changed and removed since the given version, the full tree
+   * when that can't be worked out.
+   */
+  @GetMapping("/changes")
+  public GroupTreeService.Tree changes(@PathVariable Long levelId,
+      @RequestParam("since") String since) {
+    return groupTreeService.getChanges(levelId, since);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,68 @@
+package za.co.sqim.vitality.web;
+
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.RestController;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.Meter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import za.co.sqim.vitality.metrics.SlowRequestLog;
+
+/**
+ * The application's own meters and the slow request log.
+ * 
+ * @author Avuyile Malotana
+ */
+@RestController
+public class MetricsController
+{
+  private static final String PREFIX = "vitality.";
+  
+  @Autowired
+  private SlowRequestLog slowRequestLog;
+  
+  @Autowired
+  private MeterRegistry meterRegistry;
+  
+  @GetMapping("/admin/metrics")
+  public Map<String, Map<String, Number>> meters() {
+    Map<String, Map<String, Number>> meters = new LinkedHashMap<>();
+    for (Meter meter : meterRegistry.getMeters()) {
+      String name = meter.getId().getName();
+      if (!name.startsWith(PREFIX)) {
+        continue;
+      }
+      Map<String, Number> values = new LinkedHashMap<>();
+      if (meter instanceof Counter) {
+        values.put("count", ((Counter) meter).count());
+      }
+      else if (meter instanceof Timer) {
+        Timer timer = (Timer) meter;
+        values.put("count", timer.count());
+        values.put("totalMillis", timer.totalTime(TimeUnit.MILLISECONDS));
+        values.put("maxMillis", timer.max(TimeUnit.MILLISECONDS));
+      }
+      else if (meter instanceof DistributionSummary) {
+        DistributionSummary summary = (DistributionSummary) meter;
+        values.put("count", summary.count());
+        values.put("total", summary.totalAmount());
+        values.put("max", summary.max());
+      }
+      meters.put(name, values);
+    }
+    return meters;
+  }
+  
+  @GetMapping("/admin/metrics/slow-requests")
+  public List<SlowRequestLog.Entry> slowRequests() {
+    return slowRequestLog.getEntries();
+  }
+}
\ No newline at end of file
@@ -0,0 +1,50 @@
+package za.co.sqim.vitality.web;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+
+import za.co.sqim.vitality.service.PointsReconciliationReport;
+import za.co.sqim.vitality.service.PointsReconciliationService;
+
+/**
+ * Runs the points reconciliation on demand and shows the reports.
+ * 
+ * @author Avuyile Malotana
+ */
+@RestController
+@RequestMapping("/admin/points/reconciliation")
+public class PointsReconciliationController
+{
+  @Autowired
+  private PointsReconciliationService reconciliationService;
+  
+  @GetMapping
+  public PointsReconciliationReport lastReport() {
+    return reconciliationService.getLastReport();
+  }
+  
+  /**
+   * Starts a run in the background, poll the report by its id until it is no
+   * longer running.
+   */
+  @PostMapping
+  public ResponseEntity<PointsReconciliationReport> reconcile(
+      @RequestParam(name = "repair", defaultValue = "false") boolean repair) {
+    return ResponseEntity.accepted()
+        .body(reconciliationService.start(repair));
+  }
+  
+  @GetMapping("/{id}")
+  public ResponseEntity<PointsReconciliationReport> report(
+      @PathVariable String id) {
+    PointsReconciliationReport report = reconciliationService.getReport(id);
+    return report == null ? ResponseEntity.notFound().build()
+        : ResponseEntity.ok(report);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,59 @@
+package za.co.sqim.vitality.loadtest;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Latency samples of one load test scenario.
+ * 
+ * @author Avuyile Malotana
+ */
+public class LatencyStats
+{
+  private final String scenario;
+  
+  private final long[] nanos;
+  
+  private int count = 0;
+  
+  private int errors = 0;
+  
+  public LatencyStats(String scenario, int capacity) {
+    this.scenario = scenario;
+    this.nanos = new long[capacity];
+  }
+  
+  public synchronized void record(long sample) {
+    if (count < nanos.length) {
+      nanos[count++] = sample;
+    }
+  }
+  
+  public synchronized void error() {
+    errors++;
+  }
+  
+  /**
+   * One line with the count and the p50, p95, p99 and max in milliseconds.
+   */
+  public synchronized String report() {
+    long[] sorted = Arrays.copyOf(nanos, count);
+    Arrays.sort(sorted);
+    return String.format(
+        "%-24s n=%-7d errors=%-5d p50=%8.2f p95=%8.2f p99=%8.2f max=%8.2f",
+        scenario, count, errors, millis(sorted, 0.50), millis(sorted, 0.95),
+        millis(sorted, 0.99), millis(sorted, 1.0));
+  }
+  
+  /**
+   * Nearest-rank percentile.
+   */
+  private static double millis(long[] sorted, double percentile) {
+    if (sorted.length == 0) {
+      return 0;
+    }
+    int rank = (int) Math.ceil(percentile * sorted.length);
+    long sample = sorted[Math.max(0, rank - 1)];
+    return sample / (double) TimeUnit.MILLISECONDS.toNanos(1);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,39 @@
+package za.co.sqim.vitality.loadtest;
+
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.annotation.ComponentScan;
+import org.springframework.context.annotation.FilterType;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+
+import za.co.sqim.vitality.model.Activity;
+import za.co.sqim.vitality.repository.ActivityRepository;
+
+/**
+ * Starts the application with the "loadtest" profile, which generates the
+ * synthetic data and runs the load test. The load test lives with the tests
+ * so it is never part of a deployment, run this class from the test class
+ * path, with the datasource of the database to fill.
+ * 
+ * The test configurations are left out of the component scan, they start
+ * their own contexts.
+ * 
+ * @author Avuyile Malotana
+ */
+@SpringBootConfiguration
+@EnableAutoConfiguration
+@EntityScan(basePackageClasses = Activity.class)
+@EnableJpaRepositories(basePackageClasses = ActivityRepository.class)
+@ComponentScan(basePackages = "za.co.sqim.vitality",
+    excludeFilters = @ComponentScan.Filter(type = FilterType.REGEX,
+        pattern = ".*Test(\\$.*)?"))
+public class LoadTestApplication
+{
+  public static void main(String[] args) {
+    new SpringApplicationBuilder(LoadTestApplication.class)
+        .profiles("loadtest")
+        .run(args);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,217 @@
+package za.co.sqim.vitality.loadtest;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.context.annotation.Profile;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import za.co.sqim.vitality.service.ActivityArchiveService;
+import za.co.sqim.vitality.service.ActivityStatusCountService;
+import za.co.sqim.vitality.service.GroupNameIndex;
+import za.co.sqim.vitality.service.PointsAssignmentService;
+
+/**
+ * Runs the main read and write scenarios against the generated data when the
+ * application starts with the "loadtest" profile, and logs the latency
+ * percentiles of each.
+ * 
+ * Each scenario runs vitality.loadtest.iterations times on
+ * vitality.loadtest.clients threads, one scenario at a time so they don't
+ * distort each other. Every client has its own share of the iterations and a
+ * Random derived from the seed, so the same requests are made on every run.
+ * Set vitality.loadtest.generate=false to run against data generated earlier.
+ * 
+ * @author Avuyile Malotana
+ */
+@Component
+@Profile("loadtest")
+public class LoadTestRunner implements ApplicationRunner
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(LoadTestRunner.class);
+  
+  private static final int PAGE_SIZE = 50;
+  
+  @Autowired
+  private SyntheticDataGenerator generator;
+  
+  @Autowired
+  private ActivityArchiveService archiveService;
+  
+  @Autowired
+  private ActivityStatusCountService statusCountService;
+  
+  @Autowired
+  private GroupNameIndex groupNameIndex;
+  
+  @Autowired
+  private PointsAssignmentService pointsAssignmentService;
+  
+  private final JdbcTemplate jdbcTemplate;
+  
+  @Value("${vitality.loadtest.generate:true}")
+  private boolean generate = true;
+  
+  @Value("${vitality.loadtest.iterations:1000}")
+  private int iterations = 1000;
+  
+  @Value("${vitality.loadtest.clients:8}")
+  private int clients = 8;
+  
+  @Value("${vitality.loadtest.seed:42}")
+  private long seed = 42;
+  
+  /**
+   * One request of a scenario, false when the scenario ran out of work.
+   */
+  private interface Scenario
+  {
+    boolean run(Random random);
+  }
+  
+  @Autowired
+  public LoadTestRunner(DataSource dataSource) {
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.jdbcTemplate.setMaxRows(100000);
+  }
+  
+  @Override
+  public void run(ApplicationArguments args) throws Exception {
+    if (generate) {
+      generator.generate();
+    }
+    String prefix = "synth-" + seed + "-";
+    // by level number, the search terms are made from it
+    List<Long> levelIds = new ArrayList<>();
+    Long levelId = findIdByCode(prefix + "L0");
+    while (levelId != null) {
+      levelIds.add(levelId);
+      levelId = findIdByCode(prefix + "L" + levelIds.size());
+    }
+    List<Long> groupIds = jdbcTemplate.queryForList(
+        "select ID from GROUPS where CODE like ? and PARENT_ID is not null "
+            + "order by CODE",
+        Long.class, prefix + "%");
+    List<Object[]> points = jdbcTemplate.query(
+        "select distinct RECEIVING_USER, LEVEL_ID from ACTIVITY "
+            + "where POINTS_ASSIGNED = ? order by RECEIVING_USER, LEVEL_ID",
+        (rs, i) -> new Object[] { rs.getLong(1), rs.getLong(2) }, true);
+    // ids depend on the order the chunks were written in, names don't
+    List<Long> unassigned = jdbcTemplate.queryForList(
+        "select ID from ACTIVITY where COMPLETED = ? and POINTS_ASSIGNED = ? "
+            + "order by NAME, ID",
+        Long.class, true, false);
+    if (levelIds.isEmpty() || groupIds.isEmpty() || points.isEmpty()) {
+      logger.warn("No synthetic data with seed {}, nothing to test", seed);
+      return;
+    }
+    
+    Map<String, Scenario> scenarios = new LinkedHashMap<>();
+    scenarios.put("group search", random -> {
+      int level = random.nextInt(levelIds.size());
+      groupNameIndex.search(levelIds.get(level), "group " + level + "."
+          + random.nextInt(100), 20);
+      return true;
+    });
+    scenarios.put("level activities page", random -> {
+      archiveService.findListItemsByLevelId(pick(levelIds, random),
+          new PageRequest(random.nextInt(20), PAGE_SIZE));
+      return true;
+    });
+    scenarios.put("group activities page", random -> {
+      archiveService.findListItemsByGroupId(pick(groupIds, random),
+          new PageRequest(0, PAGE_SIZE));
+      return true;
+    });
+    scenarios.put("level status counts", random -> {
+      statusCountService.getCountsForLevel(pick(levelIds, random));
+      return true;
+    });
+    scenarios.put("group status counts", random -> {
+      statusCountService.getCountsForGroup(pick(groupIds, random));
+      return true;
+    });
+    scenarios.put("user points", random -> {
+      Object[] key = pick(points, random);
+      pointsAssignmentService.getPoints((Long) key[0], (Long) key[1]);
+      return true;
+    });
+    if (!unassigned.isEmpty()) {
+      AtomicInteger next = new AtomicInteger();
+      scenarios.put("assign points", random -> {
+        int index = next.getAndIncrement();
+        if (index >= unassigned.size()) {
+          return false;
+        }
+        pointsAssignmentService.assignPoints(unassigned.get(index));
+        return true;
+      });
+    }
+    
+    List<String> report = new ArrayList<>();
+    int number = 0;
+    for (Map.Entry<String, Scenario> scenario : scenarios.entrySet()) {
+      report.add(run(scenario.getKey(), number++, scenario.getValue())
+          .report());
+    }
+    logger.info("Load test results (milliseconds):\n{}",
+        String.join("\n", report));
+  }
+  
+  private Long findIdByCode(String code) {
+    List<Long> ids = jdbcTemplate.queryForList(
+        "select ID from GROUPS where CODE = ?", Long.class, code);
+    return ids.isEmpty() ? null : ids.get(0);
+  }
+  
+  private LatencyStats run(String name, int number, Scenario scenario)
+      throws InterruptedException {
+    logger.info("Running {}", name);
+    LatencyStats stats = new LatencyStats(name, iterations);
+    ExecutorService executor = Executors.newFixedThreadPool(clients);
+    for (int i = 0; i < clients; i++) {
+      Random random = new Random((seed * 31 + number) * 31 + i);
+      int share = iterations / clients + (i < iterations % clients ? 1 : 0);
+      executor.execute(() -> {
+        for (int done = 0; done < share; done++) {
+          long start = System.nanoTime();
+          try {
+            if (!scenario.run(random)) {
+              break;
+            }
+            stats.record(System.nanoTime() - start);
+          }
+          catch (RuntimeException e) {
+            logger.debug("{} failed", name, e);
+            stats.error();
+          }
+        }
+      });
+    }
+    executor.shutdown();
+    executor.awaitTermination(1, TimeUnit.HOURS);
+    return stats;
+  }
+  
+  private static <T> T pick(List<T> list, Random random) {
+    return list.get(random.nextInt(list.size()));
+  }
+}
\ No newline at end of file
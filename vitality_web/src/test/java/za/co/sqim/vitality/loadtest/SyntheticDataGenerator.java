@@ -0,0 +1,400 @@
+package za.co.sqim.vitality.loadtest;
+
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.context.annotation.Profile;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Component;
+
+import za.co.sqim.vitality.model.GroupMember;
+import za.co.sqim.vitality.model.User;
+import za.co.sqim.vitality.service.ActivityStatusCountService;
+import za.co.sqim.vitality.service.GroupNameIndex;
+import za.co.sqim.vitality.service.PointsReconciliationService;
+import za.co.sqim.vitality.support.EntityRows;
+
+/**
+ * Fills the database with realistic volumes of synthetic data for load tests.
+ * 
+ * Users come first, then every level gets a milestone ladder, a tree of groups
+ * and roles and their members, then the activities are spread over the levels
+ * in chunks written in parallel. Every level and chunk has its own Random
+ * derived from the seed, ids are looked up in a fixed order and all dates are
+ * relative to vitality.loadtest.reference-time, so a run with the same settings
+ * writes the same data. Everything is written with batched JDBC, bypassing the
+ * entity listeners, so the status counts, group name index and points totals
+ * are rebuilt at the end.
+ * 
+ * The User and GroupMember entities are not part of this module, their tables
+ * come from the Hibernate mapping and the NOT NULL columns the generator
+ * doesn't know get a value unique to the row. Generated codes start with
+ * "synth-{seed}-" so the data is easy to find and remove.
+ * 
+ * @author Avuyile Malotana
+ */
+@Component
+@Profile("loadtest")
+public class SyntheticDataGenerator
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(SyntheticDataGenerator.class);
+  
+  /** Expiry periods to pick from, 0 means never. */
+  private static final long[] EXPIRY_DAYS = { 0, 7, 30, 91, 182, 365 };
+  
+  private static final String[] COLORS = { "#cd7f32", "#c0c0c0", "#ffd700",
+      "#e5e4e2", "#b9f2ff" };
+  
+  // @formatter:off
+  private static final String INSERT_GROUP = "insert into GROUPS (DTYPE, "
+      + "CODE, PARENT_ID, NAME, DESCRIPTION, SORT_ORDER, NATURAL_ORDER, "
+      + "ALLOW_DIRECT_MEMBERSHIP, CREATED_DATE) "
+      + "values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  
+  private static final String INSERT_MILESTONE = "insert into LEVEL_MILESTONES "
+      + "(LEVEL_ID, NAME, DESCRIPTION, POINTS, COLOR) values (?, ?, ?, ?, ?)";
+  
+  private static final String INSERT_ACTIVITY = "insert into ACTIVITY "
+      + "(LEVEL_ID, GROUP_ID, RECEIVING_USER, CONSENTING_USER, NAME, "
+      + "DESCRIPTION, POINTS, POINTS_EXPIRE_IN_DAYS, COMPLETED, "
+      + "COMPLETED_DATE, POINTS_ASSIGNED, POINTS_ASSIGNED_DATE, "
+      + "POINTS_EXPIRY_DATE, POINTS_EXPIRED, VERSION, CREATION_DATE, "
+      + "ACTIVE_FROM, ACTIVE_TO) "
+      + "values (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, 0, ?, ?, ?)";
+  
+  private static final String INSERT_INVITATION = "insert into INVITATIONS "
+      + "(SENDER_ID, LEVEL_ID, RECEIVER_NAME, RECEIVER_EMAIL_ORIGINAL, "
+      + "RECEIVER_EMAIL_CANONICAL, TOKEN, ACCEPTED, CREATION_DATE_TIME, "
+      + "EXPIRY_DATE_TIME) values (?, ?, ?, ?, ?, ?, ?, ?, ?)";
+  // @formatter:on
+  
+  @PersistenceContext
+  private EntityManager entityManager;
+  
+  @Autowired
+  private ActivityStatusCountService statusCountService;
+  
+  @Autowired
+  private GroupNameIndex groupNameIndex;
+  
+  @Autowired
+  private PointsReconciliationService reconciliationService;
+  
+  private final DataSource dataSource;
+  
+  private final JdbcTemplate jdbcTemplate;
+  
+  @Value("${vitality.loadtest.seed:42}")
+  private long seed = 42;
+  
+  /**
+   * The moment the history ends, as 2017-06-01T00:00. The start of today when
+   * not set, which is logged so the run can be repeated.
+   */
+  @Value("${vitality.loadtest.reference-time:}")
+  private String referenceTime = "";
+  
+  /** Users added to the ones already in the database. */
+  @Value("${vitality.loadtest.users:10000}")
+  private int users = 10000;
+  
+  @Value("${vitality.loadtest.levels:10}")
+  private int levels = 10;
+  
+  @Value("${vitality.loadtest.groups-per-level:10000}")
+  private int groupsPerLevel = 10000;
+  
+  /** Average number of children of a group. */
+  @Value("${vitality.loadtest.fan-out:8}")
+  private int fanOut = 8;
+  
+  /** Share of the groups that are roles. */
+  @Value("${vitality.loadtest.role-ratio:0.1}")
+  private double roleRatio = 0.1;
+  
+  /** Average number of members of a group or role. */
+  @Value("${vitality.loadtest.members-per-group:5}")
+  private int membersPerGroup = 5;
+  
+  @Value("${vitality.loadtest.milestones-per-level:8}")
+  private int milestonesPerLevel = 8;
+  
+  @Value("${vitality.loadtest.activities:1000000}")
+  private long activities = 1000000;
+  
+  @Value("${vitality.loadtest.history-days:730}")
+  private int historyDays = 730;
+  
+  @Value("${vitality.loadtest.invitations:10000}")
+  private int invitations = 10000;
+  
+  @Value("${vitality.loadtest.batch-size:1000}")
+  private int batchSize = 1000;
+  
+  @Value("${vitality.loadtest.threads:4}")
+  private int threads = 4;
+  
+  @Autowired
+  public SyntheticDataGenerator(DataSource dataSource) {
+    this.dataSource = dataSource;
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+  }
+  
+  /**
+   * The ids of the levels and groups that were generated.
+   */
+  public static class Generated
+  {
+    /** By level number, whichever level is written first. */
+    private final List<Long> levelIds;
+    
+    /** Groups of each level, in the order of levelIds. */
+    private final List<List<Long>> groupIds;
+    
+    private Generated(int levels) {
+      this.levelIds = new ArrayList<>(Collections.nCopies(levels, null));
+      this.groupIds = new ArrayList<>(Collections.nCopies(levels, null));
+    }
+    
+    public List<Long> getLevelIds() {
+      return levelIds;
+    }
+    
+    public List<List<Long>> getGroupIds() {
+      return groupIds;
+    }
+  }
+  
+  /**
+   * Generate the configured volumes, this can take hours for the big ones.
+   */
+  public Generated generate() {
+    LocalDateTime now = referenceTime.isEmpty()
+        ? LocalDate.now().atStartOfDay() : LocalDateTime.parse(referenceTime);
+    logger.info("Generating {} users, {} levels, {} groups per level and {} "
+        + "activities (seed {}, reference time {})", users, levels,
+        groupsPerLevel, activities, seed, now);
+    List<Long> userIds = generateUsers(now);
+    if (userIds.isEmpty()) {
+      throw new IllegalStateException(
+          "Synthetic data needs users, found and generated none.");
+    }
+    EntityRows members = rows(GroupMember.class, "group", "user", "enabled");
+    Generated generated = new Generated(levels);
+    ExecutorService executor = Executors.newFixedThreadPool(threads);
+    try {
+      List<CompletableFuture<Void>> tasks = new ArrayList<>();
+      for (int level = 0; level < levels; level++) {
+        int index = level;
+        tasks.add(CompletableFuture.runAsync(() -> generateLevel(index, now,
+            generated, userIds, members), executor));
+      }
+      join(tasks);
+      
+      tasks.clear();
+      AtomicLong written = new AtomicLong();
+      long chunks = (activities + batchSize - 1) / batchSize;
+      for (long chunk = 0; chunk < chunks; chunk++) {
+        long current = chunk;
+        int size = (int) Math.min(batchSize, activities - chunk * batchSize);
+        tasks.add(CompletableFuture.runAsync(() -> {
+          generateActivities(current, size, now, generated, userIds);
+          long total = written.addAndGet(size);
+          if (total / 100000 != (total - size) / 100000) {
+            logger.info("Generated {} of {} activities", total, activities);
+          }
+        }, executor));
+      }
+      join(tasks);
+    }
+    finally {
+      executor.shutdown();
+    }
+    generateInvitations(now, generated, userIds);
+    
+    statusCountService.rebuild();
+    groupNameIndex.load();
+    reconciliationService.reconcile(true);
+    logger.info("Synthetic data generated");
+    return generated;
+  }
+  
+  /**
+   * The generated users and the ones that were there, in id order.
+   */
+  private List<Long> generateUsers(LocalDateTime now) {
+    if (users > 0) {
+      List<Object[]> rows = new ArrayList<>(users);
+      for (int i = 0; i < users; i++) {
+        rows.add(new Object[0]);
+      }
+      rows(User.class).insertAll("synth-" + seed + "-user", rows, now,
+          batchSize);
+      logger.info("Generated {} users", users);
+    }
+    return entityManager
+        .createQuery("select u.id from User u order by u.id", Long.class)
+        .getResultList();
+  }
+  
+  /**
+   * The level, its milestone ladder and its group tree, breadth first so every
+   * parent exists (and has an id) before its children are written. Every group
+   * and role gets up to twice membersPerGroup distinct members.
+   */
+  private void generateLevel(int level, LocalDateTime now, Generated generated,
+      List<Long> userIds, EntityRows members) {
+    Random random = new Random(seed * 31 + level);
+    String prefix = "synth-" + seed + "-L" + level;
+    
+    jdbcTemplate.update(INSERT_GROUP, "Level", prefix, null, "Level " + level,
+        "Synthetic level " + level, level, 0, false, Timestamp.valueOf(now));
+    Long levelId = jdbcTemplate.queryForObject(
+        "select ID from GROUPS where CODE = ?", Long.class, prefix);
+    
+    List<Object[]> milestones = new ArrayList<>();
+    for (int rung = 0; rung < milestonesPerLevel; rung++) {
+      milestones.add(new Object[] { levelId, "Milestone " + (rung + 1),
+          "Synthetic milestone " + (rung + 1), 100 << rung,
+          COLORS[rung % COLORS.length] });
+    }
+    jdbcTemplate.batchUpdate(INSERT_MILESTONE, milestones);
+    
+    List<Long> groupIds = new ArrayList<>();
+    List<Long> parents = Collections.singletonList(levelId);
+    int count = 0;
+    for (int depth = 1; count < groupsPerLevel && !parents.isEmpty(); depth++) {
+      String layer = prefix + "-D" + depth + "-";
+      List<Object[]> rows = new ArrayList<>();
+      for (Long parentId : parents) {
+        int children = 1 + random.nextInt(fanOut * 2);
+        for (int i = 0; i < children && count < groupsPerLevel; i++) {
+          count++;
+          boolean role = random.nextDouble() < roleRatio;
+          String name = (role ? "Role " : "Group ") + level + "." + count;
+          rows.add(new Object[] { role ? "Role" : "Group", layer + count,
+              parentId, name, "Synthetic " + name.toLowerCase(), i, count,
+              true, Timestamp.valueOf(now) });
+        }
+      }
+      for (int from = 0; from < rows.size(); from += batchSize) {
+        jdbcTemplate.batchUpdate(INSERT_GROUP,
+            rows.subList(from, Math.min(rows.size(), from + batchSize)));
+      }
+      parents = jdbcTemplate.queryForList(
+          "select ID from GROUPS where CODE like ? order by CODE", Long.class,
+          layer + "%");
+      groupIds.addAll(parents);
+    }
+    
+    List<Object[]> memberRows = new ArrayList<>();
+    for (Long groupId : groupIds) {
+      int size = Math.min(userIds.size(),
+          random.nextInt(membersPerGroup * 2 + 1));
+      int first = random.nextInt(userIds.size());
+      for (int i = 0; i < size; i++) {
+        memberRows.add(new Object[] { groupId,
+            userIds.get((first + i) % userIds.size()), true });
+      }
+    }
+    members.insertAll(prefix + "-member", memberRows, now, batchSize);
+    
+    generated.levelIds.set(level, levelId);
+    generated.groupIds.set(level, groupIds);
+    logger.info("Generated level {} with {} groups and {} members", levelId,
+        count, memberRows.size());
+  }
+  
+  /**
+   * One batch of activities, about 60% completed and most of those with
+   * points assigned, spread over the history period.
+   */
+  private void generateActivities(long chunk, int size, LocalDateTime now,
+      Generated generated, List<Long> userIds) {
+    Random random = new Random(seed * 1000003 + chunk);
+    List<Object[]> rows = new ArrayList<>(size);
+    for (int i = 0; i < size; i++) {
+      int level = random.nextInt(generated.levelIds.size());
+      List<Long> groups = generated.groupIds.get(level);
+      Long groupId = groups.isEmpty() ? null
+          : groups.get(random.nextInt(groups.size()));
+      int points = 1 + random.nextInt(50);
+      long expiry = EXPIRY_DAYS[random.nextInt(EXPIRY_DAYS.length)];
+      LocalDateTime from = now.minusMinutes(
+          random.nextInt(historyDays * 24 * 60));
+      LocalDateTime to = from.plusDays(7 + random.nextInt(54));
+      boolean completed = random.nextDouble() < 0.6;
+      LocalDateTime completedDate = completed
+          ? from.plusMinutes(random.nextInt(7 * 24 * 60)) : null;
+      boolean assigned = completed && random.nextDouble() < 0.9;
+      LocalDateTime assignedDate = assigned
+          ? completedDate.plusMinutes(random.nextInt(3 * 24 * 60)) : null;
+      LocalDateTime expiryDate = assigned && expiry > 0
+          ? assignedDate.plusDays(expiry) : null;
+      boolean expired = expiryDate != null && expiryDate.isBefore(now);
+      String name = "Activity " + chunk + "." + i;
+      rows.add(new Object[] { generated.levelIds.get(level), groupId,
+          userIds.get(random.nextInt(userIds.size())),
+          userIds.get(random.nextInt(userIds.size())), name,
+          "Synthetic " + name.toLowerCase(), points, expiry, completed,
+          timestamp(completedDate), assigned, timestamp(assignedDate),
+          timestamp(expiryDate), assigned ? expired : null,
+          Timestamp.valueOf(from),
+          Timestamp.valueOf(from), Timestamp.valueOf(to) });
+    }
+    jdbcTemplate.batchUpdate(INSERT_ACTIVITY, rows);
+  }
+  
+  private void generateInvitations(LocalDateTime now, Generated generated,
+      List<Long> userIds) {
+    Random random = new Random(seed * 7 + 1);
+    List<Object[]> rows = new ArrayList<>();
+    for (int i = 0; i < invitations; i++) {
+      LocalDateTime created = now.minusHours(random.nextInt(30 * 24));
+      String email = "synth-" + seed + "-" + i + "@example.com";
+      rows.add(new Object[] { userIds.get(random.nextInt(userIds.size())),
+          generated.levelIds.get(random.nextInt(levels)), "Invitee " + i,
+          email, email,
+          new UUID(random.nextLong(), random.nextLong()).toString(),
+          random.nextDouble() < 0.3, Timestamp.valueOf(created),
+          Timestamp.valueOf(created.plusDays(7)) });
+      if (rows.size() == batchSize || i == invitations - 1) {
+        jdbcTemplate.batchUpdate(INSERT_INVITATION, rows);
+        rows.clear();
+      }
+    }
+    logger.info("Generated {} invitations", invitations);
+  }
+  
+  private EntityRows rows(Class<?> entity, String... properties) {
+    return new EntityRows(entityManager.getEntityManagerFactory(), dataSource,
+        entity, properties);
+  }
+  
+  private static Timestamp timestamp(LocalDateTime dateTime) {
+    return dateTime == null ? null : Timestamp.valueOf(dateTime);
+  }
+  
+  private static void join(List<CompletableFuture<Void>> tasks) {
+    CompletableFuture.allOf(tasks.toArray(new CompletableFuture[0])).join();
+  }
+}
\ No newline at end of file
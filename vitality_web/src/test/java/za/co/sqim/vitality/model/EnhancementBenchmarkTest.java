@@ -0,0 +1,175 @@
+package za.co.sqim.vitality.model;
+
+import static org.junit.Assert.assertEquals;
+
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+
+import org.hibernate.engine.spi.PersistentAttributeInterceptable;
+import org.junit.Assume;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import za.co.sqim.vitality.config.EnhancementConfiguration;
+import za.co.sqim.vitality.loadtest.LatencyStats;
+import za.co.sqim.vitality.repository.ActivityRepository;
+import za.co.sqim.vitality.support.EntityRows;
+
+/**
+ * Times loading (hydrating) a large persistence context of groups and
+ * activities with long descriptions, and flushing it after changing a few of
+ * the activities, to compare the entities with and without bytecode
+ * enhancement.
+ * 
+ * Only runs with -Dvitality.benchmark=true. Run it once as is and once with
+ * -Dvitality.benchmark.enhance=true and
+ * -javaagent:spring-instrument.jar, then compare the logged percentiles.
+ * 
+ * @author Avuyile Malotana
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+    "spring.datasource.url=jdbc:h2:mem:enhancement-benchmark;"
+        + "DB_CLOSE_DELAY=-1",
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    "vitality.jpa.enhance=${vitality.benchmark.enhance:false}" })
+public class EnhancementBenchmarkTest
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(EnhancementBenchmarkTest.class);
+  
+  private static final int GROUPS = 2000;
+  
+  private static final int ACTIVITIES = 20000;
+  
+  private static final int WARM_UP = 3;
+  
+  private static final int ROUNDS = 10;
+  
+  /** Every so many loaded activities one is changed before the flush. */
+  private static final int CHANGED_EVERY = 100;
+  
+  @SpringBootConfiguration
+  @EnableAutoConfiguration
+  @EntityScan(basePackageClasses = Activity.class)
+  @EnableJpaRepositories(basePackageClasses = ActivityRepository.class)
+  @Import(EnhancementConfiguration.class)
+  static class Config
+  {
+  }
+  
+  @PersistenceContext
+  private EntityManager entityManager;
+  
+  @Autowired
+  private EntityManagerFactory entityManagerFactory;
+  
+  @Autowired
+  private DataSource dataSource;
+  
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+  
+  @Value("${vitality.jpa.enhance}")
+  private boolean enhance;
+  
+  @Test
+  public void hydrationAndFlush() {
+    Assume.assumeTrue("Runs with -Dvitality.benchmark=true",
+        Boolean.getBoolean("vitality.benchmark"));
+    boolean enhanced = PersistentAttributeInterceptable.class
+        .isAssignableFrom(Activity.class);
+    assertEquals("entities enhanced", enhance, enhanced);
+    generate();
+    
+    LatencyStats groups = new LatencyStats("hydrate groups", ROUNDS);
+    LatencyStats activities = new LatencyStats("hydrate activities", ROUNDS);
+    LatencyStats flush = new LatencyStats("flush activities", ROUNDS);
+    TransactionTemplate transaction = new TransactionTemplate(
+        transactionManager);
+    for (int round = 0; round < WARM_UP + ROUNDS; round++) {
+      boolean measured = round >= WARM_UP;
+      transaction.execute(status -> {
+        long start = System.nanoTime();
+        int loaded = entityManager
+            .createQuery("select g from Group g", Group.class)
+            .getResultList().size();
+        record(groups, start, measured);
+        assertEquals(GROUPS + 1, loaded);
+        
+        start = System.nanoTime();
+        List<Activity> list = entityManager
+            .createQuery("select a from Activity a", Activity.class)
+            .getResultList();
+        record(activities, start, measured);
+        assertEquals(ACTIVITIES, list.size());
+        
+        for (int i = 0; i < list.size(); i += CHANGED_EVERY) {
+          list.get(i).setPoints(list.get(i).getPoints() + 1);
+        }
+        start = System.nanoTime();
+        entityManager.flush();
+        record(flush, start, measured);
+        status.setRollbackOnly();
+        return null;
+      });
+    }
+    
+    logger.info("Entities enhanced: {}", enhanced);
+    for (LatencyStats stats : Arrays.asList(groups, activities, flush)) {
+      logger.info(stats.report());
+    }
+  }
+  
+  private void generate() {
+    String description = new String(new char[2000]).replace('\0', 'x');
+    LocalDateTime now = LocalDateTime.now();
+    Long levelId = new EntityRows(entityManagerFactory, dataSource,
+        Level.class).insert();
+    Long userId = new EntityRows(entityManagerFactory, dataSource,
+        User.class).insert();
+    
+    List<Object[]> groups = new ArrayList<>(GROUPS);
+    for (int i = 0; i < GROUPS; i++) {
+      groups.add(new Object[] { levelId, "Group " + i, description });
+    }
+    new EntityRows(entityManagerFactory, dataSource, Group.class, "parent",
+        "name", "description").insertAll("group", groups, now, 1000);
+    
+    List<Object[]> activities = new ArrayList<>(ACTIVITIES);
+    for (int i = 0; i < ACTIVITIES; i++) {
+      activities.add(new Object[] { levelId, userId, userId, "Activity " + i,
+          description.substring(0, 255), 10, 0 });
+    }
+    new EntityRows(entityManagerFactory, dataSource, Activity.class, "level",
+        "receivingUser", "consentingUser", "name", "description", "points",
+        "version").insertAll("activity", activities, now, 1000);
+  }
+  
+  private static void record(LatencyStats stats, long start,
+      boolean measured) {
+    if (measured) {
+      stats.record(System.nanoTime() - start);
+    }
+  }
+}
\ No newline at end of file
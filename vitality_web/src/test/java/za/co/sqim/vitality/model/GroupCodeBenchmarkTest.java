@@ -0,0 +1,184 @@
+package za.co.sqim.vitality.model;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+import javax.persistence.EntityManager;
+import javax.persistence.PersistenceContext;
+
+import org.junit.After;
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import za.co.sqim.vitality.loadtest.LatencyStats;
+import za.co.sqim.vitality.repository.GroupRepository;
+
+/**
+ * Throughput of bulk group creation from several threads, with the default
+ * codes of Group.newCode() and with codes from UUID.randomUUID() as before,
+ * and of only generating the codes.
+ * 
+ * Only runs with -Dvitality.benchmark=true, compare the logged rates and
+ * round percentiles of both generators.
+ * 
+ * @author Avuyile Malotana
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+    "spring.datasource.url=jdbc:h2:mem:group-code-benchmark;"
+        + "DB_CLOSE_DELAY=-1",
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    "vitality.jpa.enhance=false" })
+public class GroupCodeBenchmarkTest
+{
+  private static final Logger logger = LoggerFactory
+      .getLogger(GroupCodeBenchmarkTest.class);
+  
+  private static final int THREADS = 8;
+  
+  /** Groups each thread creates per round. */
+  private static final int GROUPS = 2000;
+  
+  /** Groups per transaction. */
+  private static final int BATCH = 200;
+  
+  /** Codes each thread generates per round. */
+  private static final int CODES = 200000;
+  
+  private static final int WARM_UP = 2;
+  
+  private static final int ROUNDS = 5;
+  
+  @SpringBootConfiguration
+  @EnableAutoConfiguration
+  @EntityScan(basePackageClasses = Group.class)
+  @EnableJpaRepositories(basePackageClasses = GroupRepository.class)
+  static class Config
+  {
+  }
+  
+  @PersistenceContext
+  private EntityManager entityManager;
+  
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+  
+  private ExecutorService threads;
+  
+  @Before
+  public void setUp() {
+    Assume.assumeTrue("Runs with -Dvitality.benchmark=true",
+        Boolean.getBoolean("vitality.benchmark"));
+    threads = Executors.newFixedThreadPool(THREADS);
+  }
+  
+  @After
+  public void tearDown() {
+    if (threads != null) {
+      threads.shutdownNow();
+    }
+  }
+  
+  @Test
+  public void codeGeneration() throws Exception {
+    run("generate newCode", THREADS * CODES, () -> {
+      for (int i = 0; i < CODES; i++) {
+        Group.newCode();
+      }
+    });
+    run("generate randomUUID", THREADS * CODES, () -> {
+      for (int i = 0; i < CODES; i++) {
+        uuidCode();
+      }
+    });
+  }
+  
+  @Test
+  public void bulkCreation() throws Exception {
+    // the field default always calls newCode(), the UUID runs replace it
+    run("create with newCode", THREADS * GROUPS,
+        () -> create(Group::newCode));
+    run("create with randomUUID", THREADS * GROUPS,
+        () -> create(GroupCodeBenchmarkTest::uuidCode));
+    assertEquals(2L * (WARM_UP + ROUNDS) * THREADS * GROUPS,
+        entityManager.createQuery("select count(distinct g.code) "
+            + "from Group g", Long.class).getSingleResult().longValue());
+  }
+  
+  /**
+   * Run the task on every thread at once per round, log the rate of the
+   * measured rounds.
+   */
+  private void run(String scenario, int operations, Runnable task)
+      throws Exception {
+    LatencyStats stats = new LatencyStats(scenario, ROUNDS);
+    long total = 0;
+    for (int round = 0; round < WARM_UP + ROUNDS; round++) {
+      List<Callable<Void>> tasks = new ArrayList<>(THREADS);
+      for (int i = 0; i < THREADS; i++) {
+        tasks.add(() -> {
+          task.run();
+          return null;
+        });
+      }
+      long start = System.nanoTime();
+      for (Future<Void> future : threads.invokeAll(tasks)) {
+        future.get();
+      }
+      long nanos = System.nanoTime() - start;
+      if (round >= WARM_UP) {
+        stats.record(nanos);
+        total += nanos;
+      }
+    }
+    logger.info("{}: {} per second", scenario, (long) ((double) operations
+        * ROUNDS / total * TimeUnit.SECONDS.toNanos(1)));
+    logger.info(stats.report());
+  }
+  
+  private void create(Supplier<String> codes) {
+    TransactionTemplate transaction = new TransactionTemplate(
+        transactionManager);
+    for (int from = 0; from < GROUPS; from += BATCH) {
+      int count = Math.min(BATCH, GROUPS - from);
+      transaction.execute(status -> {
+        for (int i = 0; i < count; i++) {
+          Group group = new Group();
+          group.setCode(codes.get());
+          group.setName("Group " + group.getCode());
+          entityManager.persist(group);
+        }
+        entityManager.flush();
+        entityManager.clear();
+        return null;
+      });
+    }
+  }
+  
+  /** The default code before Group.newCode(). */
+  private static String uuidCode() {
+    return "ugid-" + UUID.randomUUID().toString();
+  }
+}
\ No newline at end of file
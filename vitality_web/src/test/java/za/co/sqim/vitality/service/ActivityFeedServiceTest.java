@@ -0,0 +1,151 @@
+package za.co.sqim.vitality.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+import org.springframework.web.servlet.mvc.method.annotation.SseEmitter;
+
+import za.co.sqim.vitality.event.ModelChangeEvent;
+
+/**
+ * Delivery to the open streams, removal of dead ones and the bounded, per
+ * user coalesced queue, with "points" events as those only need the points.
+ * 
+ * @author Avuyile Malotana
+ */
+public class ActivityFeedServiceTest
+{
+  private static final Long USER = 1L;
+  
+  private final PointsAssignmentService pointsAssignmentService = mock(
+      PointsAssignmentService.class);
+  
+  private ActivityFeedService service;
+  
+  @After
+  public void tearDown() {
+    service.shutdown();
+  }
+  
+  @Test
+  public void eventsReachAnOpenStream() throws Exception {
+    service = service(2, 10);
+    when(pointsAssignmentService.getPoints(USER, 10L)).thenReturn(42L);
+    RecordingEmitter emitter = new RecordingEmitter(1);
+    service.subscribe(USER, emitter);
+    
+    service.onChange(points(10L));
+    assertTrue("sent", emitter.sent.await(5, TimeUnit.SECONDS));
+    assertEquals(1, emitter.events.size());
+    assertTrue(emitter.events.get(0).contains("event:points"));
+    assertTrue(emitter.events.get(0).contains("points=42"));
+  }
+  
+  @Test
+  public void deadStreamsAreRemoved() throws Exception {
+    service = service(2, 10);
+    RecordingEmitter open = new RecordingEmitter(1);
+    service.subscribe(USER, open);
+    service.subscribe(USER, new DeadEmitter());
+    service.subscribe(2L, new DeadEmitter());
+    assertEquals(3, service.getStreamCount());
+    
+    service.heartbeat();
+    assertEquals(1, service.getStreamCount());
+    
+    service.subscribe(USER, new DeadEmitter());
+    service.onChange(points(10L));
+    assertTrue("sent", open.sent.await(5, TimeUnit.SECONDS));
+    assertEquals(1, service.getStreamCount());
+  }
+  
+  @Test
+  public void queuedEventsAreCoalescedAndDroppedWhenFull() throws Exception {
+    service = service(1, 1);
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch release = new CountDownLatch(1);
+    when(pointsAssignmentService.getPoints(USER, 10L)).thenAnswer(i -> {
+      started.countDown();
+      release.await(5, TimeUnit.SECONDS);
+      return 1L;
+    });
+    when(pointsAssignmentService.getPoints(USER, 20L)).thenReturn(2L);
+    RecordingEmitter emitter = new RecordingEmitter(2);
+    service.subscribe(USER, emitter);
+    
+    // the only thread is busy with level 10, level 20 fills the queue
+    service.onChange(points(10L));
+    assertTrue(started.await(5, TimeUnit.SECONDS));
+    service.onChange(points(20L));
+    // coalesced with the queued one
+    service.onChange(points(20L));
+    assertEquals(0, service.getDroppedCount());
+    // no room
+    service.onChange(points(30L));
+    assertEquals(1, service.getDroppedCount());
+    
+    release.countDown();
+    assertTrue("sent", emitter.sent.await(5, TimeUnit.SECONDS));
+    Thread.sleep(100);
+    assertEquals(2, emitter.events.size());
+  }
+  
+  private ActivityFeedService service(int threads, int queueSize) {
+    ActivityFeedService service = new ActivityFeedService(threads, queueSize);
+    ReflectionTestUtils.setField(service, "pointsAssignmentService",
+        pointsAssignmentService);
+    return service;
+  }
+  
+  private static ModelChangeEvent points(Long levelId) {
+    return new ModelChangeEvent(ModelChangeEvent.Type.POINTS,
+        ModelChangeEvent.Action.SAVED, USER, levelId, null, "test",
+        System.currentTimeMillis());
+  }
+  
+  /**
+   * Keeps the events sent to it, heartbeats left out.
+   */
+  private static class RecordingEmitter extends SseEmitter
+  {
+    private final List<String> events = new CopyOnWriteArrayList<>();
+    
+    private final CountDownLatch sent;
+    
+    RecordingEmitter(int expected) {
+      this.sent = new CountDownLatch(expected);
+    }
+    
+    @Override
+    public void send(SseEventBuilder builder) throws IOException {
+      StringBuilder event = new StringBuilder();
+      builder.build().forEach(part -> event.append(part.getData()));
+      if (!event.toString().startsWith(":")) {
+        events.add(event.toString());
+        sent.countDown();
+      }
+    }
+  }
+  
+  /**
+   * A stream whose client went away.
+   */
+  private static class DeadEmitter extends SseEmitter
+  {
+    @Override
+    public void send(SseEventBuilder builder) throws IOException {
+      throw new IOException("Broken pipe");
+    }
+  }
+}
\ No newline at end of file
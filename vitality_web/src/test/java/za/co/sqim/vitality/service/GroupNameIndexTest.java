@@ -0,0 +1,73 @@
+package za.co.sqim.vitality.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Searches a small tree put into the GroupNameIndex directly, without a
+ * database.
+ * 
+ * @author Avuyile Malotana
+ */
+public class GroupNameIndexTest
+{
+  private static final Long LEVEL = 1L;
+  
+  private GroupNameIndex index;
+  
+  @Before
+  public void setUp() {
+    index = new GroupNameIndex();
+    index.put(LEVEL, null, "Acme", "ACME", false, true);
+    index.put(2L, LEVEL, "Sales Team", "SAL", false, false);
+    index.put(3L, 2L, "Cape Town", "CPT", false, false);
+    index.put(4L, LEVEL, "Support", "SUP", false, false);
+  }
+  
+  @Test
+  public void multiWordNameIsFound() {
+    assertEquals(ids(3L), search("cape town"));
+    assertEquals(ids(2L, 3L), search("sales team"));
+  }
+  
+  @Test
+  public void pathIsFound() {
+    assertEquals(ids(2L, 3L), search("acme / sales"));
+    assertEquals(ids(3L), search("team / cape"));
+  }
+  
+  @Test
+  public void shortQueryMatchesWordPrefixes() {
+    assertEquals(ids(4L, 2L, 3L), search("s"));
+    assertEquals(ids(3L), search("cp"));
+  }
+  
+  @Test
+  public void movedGroupIsFoundUnderItsNewPath() {
+    index.put(3L, 4L, "Cape Town", "CPT", false, false);
+    assertEquals(ids(3L), search("support / cape"));
+    assertTrue(search("team / cape").isEmpty());
+  }
+  
+  @Test
+  public void deletedGroupIsNotFound() {
+    index.put(2L, LEVEL, "Sales Team", "SAL", true, false);
+    assertTrue(search("cape town").isEmpty());
+  }
+  
+  private List<Long> search(String query) {
+    return index.search(LEVEL, query, 10).stream()
+        .map(GroupNameIndex.Match::getId).collect(Collectors.toList());
+  }
+  
+  private static List<Long> ids(Long... ids) {
+    return Arrays.asList(ids);
+  }
+}
\ No newline at end of file
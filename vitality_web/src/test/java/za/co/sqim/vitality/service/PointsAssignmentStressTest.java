@@ -0,0 +1,281 @@
+package za.co.sqim.vitality.service;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.AutowireCapableBeanFactory;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import za.co.sqim.vitality.config.EventConfiguration;
+import za.co.sqim.vitality.event.ModelChangePublisher;
+import za.co.sqim.vitality.model.Activity;
+import za.co.sqim.vitality.model.Level;
+import za.co.sqim.vitality.model.User;
+import za.co.sqim.vitality.repository.ActivityRepository;
+import za.co.sqim.vitality.support.EntityRows;
+
+/**
+ * Hammers PointsAssignmentService from many threads and two "nodes" (service
+ * instances with their own striped locks) on an embedded database, and checks
+ * that no assignment or expiry is lost or applied twice.
+ * 
+ * The users and the level are inserted with EntityRows, the test only needs
+ * their ids.
+ * 
+ * @author Avuyile Malotana
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+    "spring.datasource.url=jdbc:h2:mem:points-stress;DB_CLOSE_DELAY=-1;"
+        + "LOCK_TIMEOUT=10000",
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    // no instrumentation agent in the test JVM
+    "vitality.jpa.enhance=false",
+    "vitality.points.expiry-batch-size=50" })
+public class PointsAssignmentStressTest
+{
+  private static final int USERS = 20;
+  
+  private static final int ACTIVITIES_PER_USER = 25;
+  
+  private static final int APPROVALS = 3;
+  
+  private static final int THREADS = 16;
+  
+  @SpringBootConfiguration
+  @EnableAutoConfiguration
+  @EntityScan(basePackageClasses = Activity.class)
+  @EnableJpaRepositories(basePackageClasses = ActivityRepository.class)
+  @Import({ EventConfiguration.class, ModelChangePublisher.class,
+      PointsAssignmentService.class, PointsReconciliationService.class })
+  static class Config
+  {
+  }
+  
+  @Autowired
+  private PointsAssignmentService node1;
+  
+  @Autowired
+  private AutowireCapableBeanFactory beanFactory;
+  
+  @Autowired
+  private DataSource dataSource;
+  
+  @Autowired
+  private EntityManagerFactory entityManagerFactory;
+  
+  private PointsAssignmentService node2;
+  
+  private EntityRows activities;
+  
+  private JdbcTemplate jdbcTemplate;
+  
+  private ExecutorService pool;
+  
+  private final AtomicLong sequence = new AtomicLong();
+  
+  private final Random random = new Random(33);
+  
+  private Long levelId;
+  
+  private final List<Long> userIds = new ArrayList<>();
+  
+  @Before
+  public void setUp() {
+    jdbcTemplate = new JdbcTemplate(dataSource);
+    jdbcTemplate.update("delete from ACTIVITY");
+    jdbcTemplate.update("delete from USER_POINTS_TOTALS");
+    node2 = beanFactory.createBean(PointsAssignmentService.class);
+    pool = Executors.newFixedThreadPool(THREADS);
+    activities = new EntityRows(entityManagerFactory, dataSource,
+        Activity.class, "level", "receivingUser", "consentingUser", "name",
+        "description", "points", "pointsExpireInDays", "completed",
+        "pointsAssigned", "pointsAssignedDate", "pointsExpiryDate", "version");
+    levelId = new EntityRows(entityManagerFactory, dataSource, Level.class)
+        .insert();
+    EntityRows users = new EntityRows(entityManagerFactory, dataSource,
+        User.class);
+    userIds.clear();
+    for (int i = 0; i < USERS; i++) {
+      userIds.add(users.insert());
+    }
+  }
+  
+  @After
+  public void tearDown() throws InterruptedException {
+    pool.shutdownNow();
+    pool.awaitTermination(1, TimeUnit.MINUTES);
+  }
+  
+  @Test
+  public void concurrentApprovalsAssignEveryActivityOnce() throws Exception {
+    Map<Long, Long> expected = new HashMap<>();
+    List<Long> activityIds = new ArrayList<>();
+    for (Long userId : userIds) {
+      for (int i = 0; i < ACTIVITIES_PER_USER; i++) {
+        int points = 1 + random.nextInt(50);
+        activityIds.add(insertActivity(userId, points, null, 180));
+        expected.merge(userId, (long) points, Long::sum);
+      }
+    }
+    
+    List<Callable<Boolean>> approvals = new ArrayList<>();
+    for (Long activityId : activityIds) {
+      for (int i = 0; i < APPROVALS; i++) {
+        PointsAssignmentService node = i % 2 == 0 ? node1 : node2;
+        approvals.add(() -> node.assignPoints(activityId));
+      }
+    }
+    Collections.shuffle(approvals, random);
+    int assigned = 0;
+    for (Boolean result : runAll(approvals)) {
+      assigned += result ? 1 : 0;
+    }
+    
+    assertEquals(activityIds.size(), assigned);
+    assertEquals(Integer.valueOf(0), jdbcTemplate.queryForObject(
+        "select count(*) from ACTIVITY where POINTS_ASSIGNED = ?",
+        Integer.class, false));
+    assertTotals(expected);
+  }
+  
+  @Test
+  public void expiryRacingApprovalsLosesNothing() throws Exception {
+    LocalDateTime longAgo = LocalDateTime.now().minusDays(200);
+    Map<Long, Long> expected = new HashMap<>();
+    List<Long> activityIds = new ArrayList<>();
+    for (Long userId : userIds) {
+      long stored = 0;
+      for (int i = 0; i < ACTIVITIES_PER_USER; i++) {
+        int points = 1 + random.nextInt(50);
+        if (i % 2 == 0) {
+          // assigned and counted before, expired since
+          insertActivity(userId, points, longAgo, 180);
+          stored += points;
+        }
+        else {
+          activityIds.add(insertActivity(userId, points, null, 180));
+          expected.merge(userId, (long) points, Long::sum);
+        }
+      }
+      jdbcTemplate.update("insert into USER_POINTS_TOTALS "
+          + "(USER_ID, LEVEL_ID, POINTS, VERSION) values (?, ?, ?, 0)", userId,
+          levelId, stored);
+    }
+    node1.prepareExpiry();
+    node2.prepareExpiry();
+    
+    List<Callable<Boolean>> work = new ArrayList<>();
+    for (Long activityId : activityIds) {
+      work.add(() -> node1.assignPoints(activityId));
+      work.add(() -> node2.assignPoints(activityId));
+    }
+    for (int i = 0; i < THREADS; i++) {
+      PointsAssignmentService node = i % 2 == 0 ? node1 : node2;
+      work.add(() -> node.expirePoints() >= 0);
+    }
+    Collections.shuffle(work, random);
+    runAll(work);
+    // anything the racing sweeps skipped
+    node1.expirePoints();
+    
+    assertEquals(Integer.valueOf(0), jdbcTemplate.queryForObject(
+        "select count(*) from ACTIVITY where POINTS_ASSIGNED_DATE < ? "
+            + "and (POINTS_EXPIRED is null or POINTS_EXPIRED = ?)",
+        Integer.class, Timestamp.valueOf(longAgo.plusDays(1)), false));
+    assertTotals(expected);
+  }
+  
+  @Test
+  public void expiryOfPointsAssignedBeforeTotalsAreKeptIsNotSubtracted() {
+    LocalDateTime longAgo = LocalDateTime.now().minusDays(400);
+    Map<Long, Long> expected = new HashMap<>();
+    for (Long userId : userIds) {
+      int expiring = 1 + random.nextInt(50);
+      int current = 1 + random.nextInt(50);
+      // no stored expiry date and no total, as before the totals were kept
+      jdbcTemplate.update("update ACTIVITY set POINTS_EXPIRY_DATE = null "
+          + "where ID = ?", insertActivity(userId, expiring, longAgo, 180));
+      jdbcTemplate.update("update ACTIVITY set POINTS_EXPIRY_DATE = null "
+          + "where ID = ?", insertActivity(userId, current,
+              LocalDateTime.now().minusDays(1), 180));
+      expected.put(userId, (long) current);
+    }
+    
+    node1.prepareExpiry();
+    node1.expirePoints();
+    
+    assertTotals(expected);
+  }
+  
+  private <T> List<T> runAll(List<Callable<T>> tasks) throws Exception {
+    CountDownLatch start = new CountDownLatch(1);
+    List<Future<T>> futures = new ArrayList<>();
+    for (Callable<T> task : tasks) {
+      futures.add(pool.submit(() -> {
+        start.await();
+        return task.call();
+      }));
+    }
+    start.countDown();
+    List<T> results = new ArrayList<>();
+    for (Future<T> future : futures) {
+      results.add(future.get(5, TimeUnit.MINUTES));
+    }
+    return results;
+  }
+  
+  private void assertTotals(Map<Long, Long> expected) {
+    for (Long userId : userIds) {
+      Long points = jdbcTemplate.queryForObject("select coalesce(sum(POINTS), "
+          + "0) from USER_POINTS_TOTALS where USER_ID = ? and LEVEL_ID = ?",
+          Long.class, userId, levelId);
+      assertEquals("total of user " + userId,
+          expected.getOrDefault(userId, 0L), points);
+      assertTrue(jdbcTemplate.queryForObject("select count(*) from "
+          + "USER_POINTS_TOTALS where USER_ID = ? and LEVEL_ID = ?",
+          Integer.class, userId, levelId) <= 1);
+    }
+  }
+  
+  private Long insertActivity(Long userId, int points, LocalDateTime assigned,
+      long expireInDays) {
+    return activities.insert(levelId, userId, userId,
+        "Stress " + sequence.incrementAndGet(), "Stress test activity",
+        points, expireInDays, true, assigned != null,
+        assigned == null ? null : Timestamp.valueOf(assigned),
+        assigned == null ? null
+            : Timestamp.valueOf(assigned.plusDays(expireInDays)), 0);
+  }
+}
\ No newline at end of file
@@ -0,0 +1,226 @@
+package za.co.sqim.vitality.shard;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.domain.PageRequest;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.test.context.junit4.SpringRunner;
+
+import za.co.sqim.vitality.config.EventConfiguration;
+import za.co.sqim.vitality.config.ShardingConfiguration;
+import za.co.sqim.vitality.event.ModelChangePublisher;
+import za.co.sqim.vitality.model.Activity;
+import za.co.sqim.vitality.model.Group;
+import za.co.sqim.vitality.model.GroupMember;
+import za.co.sqim.vitality.model.Level;
+import za.co.sqim.vitality.model.User;
+import za.co.sqim.vitality.model.UserInvitation;
+import za.co.sqim.vitality.model.UserPointsTotal;
+import za.co.sqim.vitality.repository.ActivityRepository;
+import za.co.sqim.vitality.repository.UserPointsTotalRepository;
+import za.co.sqim.vitality.support.EntityRows;
+
+/**
+ * Moves a Level between two embedded databases and checks the rows, the
+ * routing of repository calls and the resumption of an interrupted move.
+ * 
+ * Hibernate creates the schema on the default shard only, it is copied to
+ * the second shard before every test.
+ * 
+ * @author Avuyile Malotana
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    // no instrumentation agent in the test JVM
+    "vitality.jpa.enhance=false",
+    "vitality.shards.enabled=true",
+    "vitality.shards.default-shard=main",
+    "vitality.shards.move-grace-period=0",
+    "vitality.shards.datasources.main.url="
+        + "jdbc:h2:mem:shard-main;DB_CLOSE_DELAY=-1",
+    "vitality.shards.datasources.main.username=sa",
+    "vitality.shards.datasources.main.driver-class-name=org.h2.Driver",
+    "vitality.shards.datasources.second.url="
+        + "jdbc:h2:mem:shard-second;DB_CLOSE_DELAY=-1",
+    "vitality.shards.datasources.second.username=sa",
+    "vitality.shards.datasources.second.driver-class-name=org.h2.Driver" })
+public class LevelShardMoverTest
+{
+  @SpringBootConfiguration
+  @EnableAutoConfiguration
+  @EntityScan(basePackageClasses = Activity.class)
+  @EnableJpaRepositories(basePackageClasses = ActivityRepository.class)
+  @Import({ EventConfiguration.class, ModelChangePublisher.class,
+      ShardingConfiguration.class, LevelShardAspect.class,
+      LevelShardMover.class })
+  static class Config
+  {
+  }
+  
+  @Autowired
+  private LevelShardMover mover;
+  
+  @Autowired
+  private ShardDirectory directory;
+  
+  @Autowired
+  private ActivityRepository activityRepository;
+  
+  @Autowired
+  private UserPointsTotalRepository totalRepository;
+  
+  @Autowired
+  private EntityManagerFactory entityManagerFactory;
+  
+  private JdbcTemplate main;
+  
+  private JdbcTemplate second;
+  
+  private Long levelId;
+  
+  private Long groupId;
+  
+  private Long userId;
+  
+  private Long activityId;
+  
+  @Before
+  public void setUp() {
+    LevelRoutingDataSource dataSource = directory.getDataSource();
+    main = new JdbcTemplate(dataSource.getShard("main"));
+    second = new JdbcTemplate(dataSource.getShard("second"));
+    second.execute("drop all objects");
+    for (String statement : main.queryForList("script nodata",
+        String.class)) {
+      second.execute(statement);
+    }
+    // ids from disjoint ranges, as the mover requires
+    second.execute((ConnectionCallback<Void>) connection -> {
+      DatabaseMetaData meta = connection.getMetaData();
+      List<String> tables = new ArrayList<>();
+      try (ResultSet rs = meta.getColumns(null, null, null, "ID")) {
+        while (rs.next()) {
+          if ("YES".equals(rs.getString("IS_AUTOINCREMENT"))) {
+            tables.add(rs.getString("TABLE_NAME"));
+          }
+        }
+      }
+      try (Statement statement = connection.createStatement()) {
+        for (String table : tables) {
+          statement.execute("alter table " + table
+              + " alter column ID restart with 1000000");
+        }
+      }
+      return null;
+    });
+    main.update("delete from LEVEL_SHARDS");
+    directory.refresh();
+    
+    DataSource shard = dataSource.getShard("main");
+    levelId = rows(shard, Level.class).insert();
+    groupId = rows(shard, Group.class, "parent").insert(levelId);
+    userId = rows(shard, User.class).insert();
+    rows(shard, GroupMember.class, "group", "user").insert(groupId, userId);
+    activityId = rows(shard, Activity.class, "level", "group",
+        "receivingUser", "consentingUser", "points", "version")
+        .insert(levelId, groupId, userId, userId, 10, 0);
+    rows(shard, UserInvitation.class, "sender", "level").insert(userId,
+        levelId);
+  }
+  
+  @Test
+  public void moveTakesTheLevelAndWhatItRefersTo() {
+    mover.move(levelId, "second");
+    
+    assertEquals("second", directory.getShard(levelId));
+    assertFalse(directory.isMoving(levelId));
+    for (String table : new String[] { "ACTIVITY", "INVITATIONS" }) {
+      assertEquals(table, 0, count(main, table, "LEVEL_ID", levelId));
+      assertEquals(table, 1, count(second, table, "LEVEL_ID", levelId));
+    }
+    assertEquals(0, count(main, "GROUPS", "ID", groupId));
+    assertEquals(1, count(second, "GROUPS", "ID", groupId));
+    // users are copied for the foreign keys and stay on the default shard
+    assertEquals(1, count(main, "USERS", "ID", userId));
+    assertEquals(1, count(second, "USERS", "ID", userId));
+    
+    // routed by the level
+    assertEquals(1, activityRepository.findListItemsByLevelId(levelId,
+        new PageRequest(0, 10)).getContent().size());
+    // no Level to route by, read from every shard
+    assertNotNull(activityRepository.findOne(activityId));
+  }
+  
+  @Test
+  public void writesAreBlockedWhileTheLevelMoves() {
+    main.update("insert into LEVEL_SHARDS (LEVEL_ID, SHARD, MOVING_FROM, "
+        + "MOVING_TO) values (?, ?, ?, ?)", levelId, "main", "main", "second");
+    directory.refresh();
+    
+    try {
+      totalRepository.save(new UserPointsTotal(userId, levelId));
+      throw new AssertionError("The write wasn't blocked");
+    }
+    catch (LevelMovingException e) {
+      // expected
+    }
+    assertEquals(1, activityRepository.findListItemsByLevelId(levelId,
+        new PageRequest(0, 10)).getTotalElements());
+  }
+  
+  @Test
+  public void interruptedMoveIsResumed() {
+    // an attempt that committed the copy of the level but died before
+    // switching the directory
+    main.update("insert into LEVEL_SHARDS (LEVEL_ID, SHARD, MOVING_FROM, "
+        + "MOVING_TO) values (?, ?, ?, ?)", levelId, "main", "main", "second");
+    rows(directory.getDataSource().getShard("second"), Level.class, "id")
+        .insert(levelId);
+    directory.refresh();
+    
+    mover.move(levelId, "second");
+    
+    assertEquals("second", directory.getShard(levelId));
+    assertFalse(directory.isMoving(levelId));
+    assertEquals(1, count(second, "GROUPS", "ID", levelId));
+    assertEquals(1, count(second, "ACTIVITY", "ID", activityId));
+    assertEquals(0, count(main, "ACTIVITY", "ID", activityId));
+    
+    totalRepository.save(new UserPointsTotal(userId, levelId));
+    assertEquals(1, count(second, "USER_POINTS_TOTALS", "LEVEL_ID", levelId));
+  }
+  
+  private EntityRows rows(DataSource shard, Class<?> entity,
+      String... properties) {
+    return new EntityRows(entityManagerFactory, shard, entity, properties);
+  }
+  
+  private static int count(JdbcTemplate shard, String table, String column,
+      Long id) {
+    return shard.queryForObject("select count(*) from " + table + " where "
+        + column + " = ?", Integer.class, id);
+  }
+}
\ No newline at end of file
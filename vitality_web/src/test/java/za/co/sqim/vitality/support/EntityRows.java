@@ -0,0 +1,194 @@
+package za.co.sqim.vitality.support;
+
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.persistence.EntityManagerFactory;
+import javax.sql.DataSource;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.persister.entity.AbstractEntityPersister;
+import org.springframework.jdbc.core.ConnectionCallback;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+/**
+ * Plain JDBC inserts into the table of an entity, for the tests and the load
+ * test generator that need many rows, or rows of entities that aren't part of
+ * this module.
+ * 
+ * The rows are given by property, the columns come from the mapping of the
+ * entity. The discriminator of the entity is written as well and the other
+ * NOT NULL columns without a default get a value unique to the row.
+ * 
+ * @author Avuyile Malotana
+ */
+public class EntityRows
+{
+  private static final AtomicLong sequence = new AtomicLong();
+  
+  private final JdbcTemplate jdbcTemplate;
+  
+  private final String table;
+  
+  private final String idColumn;
+  
+  /** Index of the id in the given values, -1 if it is generated. */
+  private final int idIndex;
+  
+  /** The columns of the given properties, then the discriminator if any. */
+  private final List<String> columns = new ArrayList<>();
+  
+  private final List<Object> discriminator = new ArrayList<>(1);
+  
+  /** JDBC type and size of the columns that get a made up value. */
+  private final Map<String, int[]> filled = new LinkedHashMap<>();
+  
+  public EntityRows(EntityManagerFactory entityManagerFactory,
+      DataSource dataSource, Class<?> entity, String... properties) {
+    AbstractEntityPersister persister =
+        (AbstractEntityPersister) entityManagerFactory
+            .unwrap(SessionFactory.class).getClassMetadata(entity);
+    this.jdbcTemplate = new JdbcTemplate(dataSource);
+    this.table = persister.getTableName();
+    this.idColumn = persister.getIdentifierColumnNames()[0];
+    int id = -1;
+    for (int i = 0; i < properties.length; i++) {
+      if (properties[i].equals(persister.getIdentifierPropertyName())) {
+        columns.add(idColumn);
+        id = i;
+      }
+      else {
+        columns.add(persister.getPropertyColumnNames(properties[i])[0]);
+      }
+    }
+    this.idIndex = id;
+    Set<String> given = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    given.addAll(columns);
+    Set<String> existing = new TreeSet<>(String.CASE_INSENSITIVE_ORDER);
+    jdbcTemplate.execute((ConnectionCallback<Void>) connection -> {
+      DatabaseMetaData meta = connection.getMetaData();
+      String name = meta.storesUpperCaseIdentifiers() ? table.toUpperCase()
+          : meta.storesLowerCaseIdentifiers() ? table.toLowerCase() : table;
+      try (ResultSet rs = meta.getColumns(null, null, name, null)) {
+        while (rs.next()) {
+          String column = rs.getString("COLUMN_NAME");
+          existing.add(column);
+          if (!given.contains(column)
+              && rs.getInt("NULLABLE") == DatabaseMetaData.columnNoNulls
+              && rs.getString("COLUMN_DEF") == null
+              && !"YES".equals(rs.getString("IS_AUTOINCREMENT"))) {
+            filled.put(column, new int[] { rs.getInt("DATA_TYPE"),
+                rs.getInt("COLUMN_SIZE") });
+          }
+        }
+      }
+      return null;
+    });
+    // entities without a hierarchy report a column that doesn't exist
+    String discriminatorColumn = persister.getDiscriminatorColumnName();
+    if (discriminatorColumn != null && existing.contains(discriminatorColumn)
+        && !given.contains(discriminatorColumn)) {
+      columns.add(discriminatorColumn);
+      discriminator.add(persister.getDiscriminatorValue());
+      filled.remove(discriminatorColumn);
+    }
+  }
+  
+  /**
+   * Insert a row with the values of the properties in order, returns its id.
+   */
+  public Long insert(Object... values) {
+    String unique = "row-" + sequence.incrementAndGet();
+    Object[] row = row(values, unique, LocalDateTime.now());
+    return jdbcTemplate.execute((ConnectionCallback<Long>) connection -> {
+      try (PreparedStatement statement = connection.prepareStatement(sql(),
+          new String[] { idColumn })) {
+        for (int i = 0; i < row.length; i++) {
+          statement.setObject(i + 1, row[i]);
+        }
+        statement.executeUpdate();
+        if (idIndex >= 0) {
+          return ((Number) values[idIndex]).longValue();
+        }
+        try (ResultSet keys = statement.getGeneratedKeys()) {
+          keys.next();
+          return keys.getLong(1);
+        }
+      }
+    });
+  }
+  
+  /**
+   * Insert the rows in batches, the made up values are built from the key
+   * and the position of the row so the same rows get the same values.
+   */
+  public void insertAll(String key, List<Object[]> rows, LocalDateTime now,
+      int batchSize) {
+    String sql = sql();
+    List<Object[]> batch = new ArrayList<>(batchSize);
+    for (int i = 0; i < rows.size(); i++) {
+      batch.add(row(rows.get(i), key + "-" + i, now));
+      if (batch.size() == batchSize || i == rows.size() - 1) {
+        jdbcTemplate.batchUpdate(sql, batch);
+        batch.clear();
+      }
+    }
+  }
+  
+  private String sql() {
+    List<String> names = new ArrayList<>(columns);
+    names.addAll(filled.keySet());
+    StringBuilder sql = new StringBuilder("insert into ").append(table)
+        .append(" (").append(String.join(", ", names)).append(") values (");
+    for (int i = 0; i < names.size(); i++) {
+      sql.append(i == 0 ? "?" : ", ?");
+    }
+    return sql.append(")").toString();
+  }
+  
+  private Object[] row(Object[] values, String unique, LocalDateTime now) {
+    List<Object> row = new ArrayList<>(columns.size() + filled.size());
+    Collections.addAll(row, values);
+    row.addAll(discriminator);
+    for (int[] column : filled.values()) {
+      row.add(value(column[0], column[1], unique, now));
+    }
+    return row.toArray();
+  }
+  
+  private static Object value(int type, int size, String unique,
+      LocalDateTime now) {
+    switch (type) {
+    case Types.BOOLEAN:
+    case Types.BIT:
+      return false;
+    case Types.DATE:
+    case Types.TIME:
+    case Types.TIMESTAMP:
+      return Timestamp.valueOf(now);
+    case Types.CHAR:
+    case Types.VARCHAR:
+    case Types.NVARCHAR:
+    case Types.LONGVARCHAR:
+    case Types.CLOB:
+      // the end keeps it unique
+      return size > 0 && unique.length() > size
+          ? unique.substring(unique.length() - size) : unique;
+    default:
+      // ordinals and counters, 0 is valid for both
+      return 0;
+    }
+  }
+}
\ No newline at end of file
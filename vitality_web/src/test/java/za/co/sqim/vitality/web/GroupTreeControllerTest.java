@@ -0,0 +1,187 @@
+package za.co.sqim.vitality.web;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertTrue;
+import static org.springframework.test.web.servlet.request.MockMvcRequestBuilders.get;
+import static org.springframework.test.web.servlet.result.MockMvcResultMatchers.status;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.PersistenceContext;
+import javax.sql.DataSource;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.SpringBootConfiguration;
+import org.springframework.boot.autoconfigure.EnableAutoConfiguration;
+import org.springframework.boot.autoconfigure.domain.EntityScan;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.data.jpa.repository.config.EnableJpaRepositories;
+import org.springframework.test.context.junit4.SpringRunner;
+import org.springframework.test.web.servlet.MockMvc;
+import org.springframework.test.web.servlet.setup.MockMvcBuilders;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import za.co.sqim.vitality.model.Group;
+import za.co.sqim.vitality.model.Level;
+import za.co.sqim.vitality.model.projection.GroupTreeNode;
+import za.co.sqim.vitality.repository.GroupRepository;
+import za.co.sqim.vitality.service.GroupTreeService;
+import za.co.sqim.vitality.support.EntityRows;
+
+/**
+ * The conditional tree request and the changes after moving, deleting and
+ * restoring groups, on the tree Level - A - C and Level - B.
+ * 
+ * @author Avuyile Malotana
+ */
+@RunWith(SpringRunner.class)
+@SpringBootTest(properties = {
+    "spring.datasource.url=jdbc:h2:mem:group-tree;DB_CLOSE_DELAY=-1",
+    "spring.jpa.hibernate.ddl-auto=create-drop",
+    "vitality.jpa.enhance=false" })
+public class GroupTreeControllerTest
+{
+  @SpringBootConfiguration
+  @EnableAutoConfiguration
+  @EntityScan(basePackageClasses = Group.class)
+  @EnableJpaRepositories(basePackageClasses = GroupRepository.class)
+  @Import({ GroupTreeService.class, GroupTreeController.class })
+  static class Config
+  {
+  }
+  
+  @PersistenceContext
+  private EntityManager entityManager;
+  
+  @Autowired
+  private EntityManagerFactory entityManagerFactory;
+  
+  @Autowired
+  private DataSource dataSource;
+  
+  @Autowired
+  private PlatformTransactionManager transactionManager;
+  
+  @Autowired
+  private GroupTreeService groupTreeService;
+  
+  @Autowired
+  private GroupTreeController groupTreeController;
+  
+  private MockMvc mockMvc;
+  
+  private Long levelId;
+  
+  private Long a;
+  
+  private Long b;
+  
+  private Long c;
+  
+  @Before
+  public void setUp() {
+    mockMvc = MockMvcBuilders.standaloneSetup(groupTreeController).build();
+    levelId = new EntityRows(entityManagerFactory, dataSource, Level.class,
+        "name").insert("Level");
+    EntityRows groups = new EntityRows(entityManagerFactory, dataSource,
+        Group.class, "parent", "name");
+    a = groups.insert(levelId, "A");
+    b = groups.insert(levelId, "B");
+    c = groups.insert(a, "C");
+  }
+  
+  @Test
+  public void notModifiedUntilTheTreeChanges() throws Exception {
+    String url = "/api/levels/" + levelId + "/groups/tree";
+    String etag = mockMvc.perform(get(url)).andExpect(status().isOk())
+        .andReturn().getResponse().getHeader("ETag");
+    assertTrue(etag != null);
+    
+    mockMvc.perform(get(url).header("If-None-Match", etag))
+        .andExpect(status().isNotModified());
+    
+    change(() -> group(a).setName("A renamed"));
+    String changed = mockMvc.perform(get(url).header("If-None-Match", etag))
+        .andExpect(status().isOk()).andReturn().getResponse()
+        .getHeader("ETag");
+    assertNotEquals(etag, changed);
+  }
+  
+  @Test
+  public void changesAfterAMove() {
+    String version = groupTreeService.getVersion(levelId);
+    change(() -> group(c).setParent(group(b)));
+    
+    GroupTreeService.Tree changes = groupTreeService.getChanges(levelId,
+        version);
+    assertFalse(changes.isReset());
+    Map<Long, GroupTreeNode> nodes = byId(changes.getNodes());
+    // C and the child counts of both parents
+    assertEquals(3, nodes.size());
+    assertEquals(b, nodes.get(c).getParentId());
+    assertEquals(0, nodes.get(a).getChildCount());
+    assertEquals(1, nodes.get(b).getChildCount());
+    assertTrue(changes.getRemoved().isEmpty());
+  }
+  
+  @Test
+  public void deletedGroupsAreRemoved() {
+    String version = groupTreeService.getVersion(levelId);
+    change(() -> group(a).setDeleted(true));
+    
+    GroupTreeService.Tree changes = groupTreeService.getChanges(levelId,
+        version);
+    assertEquals(1, changes.getRemoved().size());
+    assertEquals(a, changes.getRemoved().get(0));
+    assertFalse(byId(changes.getNodes()).containsKey(a));
+    Map<Long, GroupTreeNode> tree = byId(groupTreeService.getTree(levelId)
+        .getNodes());
+    assertFalse(tree.containsKey(a));
+    assertFalse(tree.containsKey(c));
+    assertTrue(tree.containsKey(b));
+  }
+  
+  @Test
+  public void restoredGroupsComeBackWithTheirChildren() {
+    change(() -> group(a).setDeleted(true));
+    String version = groupTreeService.getVersion(levelId);
+    change(() -> group(a).setDeleted(false));
+    
+    GroupTreeService.Tree changes = groupTreeService.getChanges(levelId,
+        version);
+    Map<Long, GroupTreeNode> nodes = byId(changes.getNodes());
+    assertTrue(nodes.containsKey(a));
+    assertTrue(nodes.containsKey(c));
+    assertTrue(changes.getRemoved().isEmpty());
+  }
+  
+  private Group group(Long id) {
+    return entityManager.find(Group.class, id);
+  }
+  
+  private void change(Runnable change) {
+    new TransactionTemplate(transactionManager).execute(status -> {
+      change.run();
+      return null;
+    });
+  }
+  
+  private static Map<Long, GroupTreeNode> byId(List<GroupTreeNode> nodes) {
+    Map<Long, GroupTreeNode> byId = new HashMap<>();
+    for (GroupTreeNode node : nodes) {
+      byId.put(node.getId(), node);
+    }
+    return byId;
+  }
+}
\ No newline at end of file